@@ -2,14 +2,20 @@ package suncertify;
 
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.JOptionPane;
 
 import suncertify.api.DBConnection;
 import suncertify.api.DBConnectionFactory;
 import suncertify.common.AppProperties;
+import suncertify.common.Log;
+import suncertify.db.Data;
 import suncertify.impl.DBConnectionImpl;
 import suncertify.impl.RemoteDBConnection;
+import suncertify.net.NetServer;
+import suncertify.net.ReplicationServer;
 import suncertify.ui.DataTableFrame;
 import suncertify.ui.ErrorHandler;
 import suncertify.ui.dialog.ClientConnectionDialog;
@@ -46,8 +52,28 @@ public class Main {
 				System.out.println("Starting GUI client");
 				ClientConnectionDialog dialog = new ClientConnectionDialog();
 				if (dialog.isOkOption()) {
-					conn = DBConnectionFactory.getInstance().getRemote(
-							dialog.getHost(), dialog.getPort());
+					DBConnection remote;
+					DBConnection[] followers = new DBConnection[0];
+					if (isNetTransport()) {
+						remote = DBConnectionFactory.getInstance().getNet(
+								dialog.getHost(), dialog.getPort());
+						followers = connectFollowers();
+					} else {
+						remote = DBConnectionFactory.getInstance().getRemote(
+								dialog.getHost(), dialog.getPort());
+					}
+					if (followers.length > 0) {
+						// rows read from a lagging follower could be kept
+						// after their change was notified, so no cache
+						conn = DBConnectionFactory.getInstance().getRouting(
+								remote, followers);
+					} else if (AppProperties
+							.getBoolean(AppProperties.CLIENT_CACHE)) {
+						conn = DBConnectionFactory.getInstance().getCaching(
+								remote);
+					} else {
+						conn = remote;
+					}
 					startGuiClient(conn);
 				}
 			} else if (args.length == 1) {
@@ -60,7 +86,11 @@ public class Main {
 					System.out.println("Starting DB server");
 					ServerDetailsDialog dialog = new ServerDetailsDialog();
 					if (dialog.isOkOption()) {
-						startDbServer(dialog.getPort());
+						if (isNetTransport()) {
+							startNetServer(dialog.getPort());
+						} else {
+							startDbServer(dialog.getPort());
+						}
 					}
 				} else {
 					printUsage();
@@ -82,11 +112,11 @@ public class Main {
 
 	private static void startDbServer(int port) {
 		try {
-			System.out.println("Starting DB server on port " + port);
+			Log.info("Starting DB server on port %s", port);
 			RemoteDBConnection dbConn = new DBConnectionImpl();
 			Registry registry = LocateRegistry.createRegistry(port);
 			registry.rebind(RemoteDBConnection.REGISTRY_KEY, dbConn);
-			System.out.println("Started DB server on port " + port);
+			Log.info("Started DB server on port %s", port);
 			Object[] options = { "Stop DB server" };
 			JOptionPane.showOptionDialog(null,
 					"Server started on port " + port, "DB Server",
@@ -95,7 +125,51 @@ public class Main {
 			registry.unbind(RemoteDBConnection.REGISTRY_KEY);
 			registry = null;
 		} catch (Exception e) {
-			e.printStackTrace();
+			Log.error("Failed to start DB server", e);
+			ErrorHandler.handleException(e, "failed to start DB server", null);
+		} finally {
+			// make sure that all threads of the application finish.
+			System.exit(0);
+		}
+	}
+
+	private static void startNetServer(int port) {
+		try {
+			Log.info("Starting DB server on port %s", port);
+			String leader = AppProperties.get(AppProperties.LEADER).trim();
+			long replicationPort = AppProperties
+					.getLong(AppProperties.REPLICATION_PORT);
+			DBConnection conn;
+			ReplicationServer replicationServer = null;
+			if (leader.length() > 0) {
+				checkAddress(AppProperties.LEADER, leader);
+				Log.info("Following leader %s", leader);
+				conn = DBConnectionFactory.getInstance().getFollower(
+						hostOf(leader), portOf(leader));
+			} else {
+				conn = DBConnectionFactory.getInstance().getLocal();
+				if (replicationPort > 0) {
+					replicationServer = new ReplicationServer(Data
+							.getInstance(), (int) replicationPort);
+					replicationServer.start();
+					Log.info("Accepting followers on port %s",
+							replicationPort);
+				}
+			}
+			NetServer server = new NetServer(conn, port);
+			server.start();
+			Log.info("Started DB server on port %s", port);
+			Object[] options = { "Stop DB server" };
+			JOptionPane.showOptionDialog(null,
+					"Server started on port " + port, "DB Server",
+					JOptionPane.DEFAULT_OPTION,
+					JOptionPane.INFORMATION_MESSAGE, null, options, options[0]);
+			server.stop();
+			if (replicationServer != null) {
+				replicationServer.stop();
+			}
+		} catch (Exception e) {
+			Log.error("Failed to start DB server", e);
 			ErrorHandler.handleException(e, "failed to start DB server", null);
 		} finally {
 			// make sure that all threads of the application finish.
@@ -103,6 +177,72 @@ public class Main {
 		}
 	}
 
+	/**
+	 * Connects to the follower servers listed in the properties, skipping the
+	 * ones which cannot be reached.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if a follower is not given as "host:port".
+	 */
+	private static DBConnection[] connectFollowers() {
+		List<String> addresses = new ArrayList<String>();
+		for (String follower : AppProperties.get(AppProperties.FOLLOWERS)
+				.split(",")) {
+			follower = follower.trim();
+			if (follower.length() > 0) {
+				checkAddress(AppProperties.FOLLOWERS, follower);
+				addresses.add(follower);
+			}
+		}
+		List<DBConnection> followers = new ArrayList<DBConnection>();
+		for (String follower : addresses) {
+			try {
+				followers.add(DBConnectionFactory.getInstance().getNet(
+						hostOf(follower), portOf(follower)));
+			} catch (Exception e) {
+				Log.warn("Skipping follower %s: %s", follower, e);
+			}
+		}
+		return followers.toArray(new DBConnection[followers.size()]);
+	}
+
+	/**
+	 * Checks that a server address read from the given property is given as
+	 * "host:port", with a port number between 1 and 65535.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the address is not valid.
+	 */
+	private static void checkAddress(String key, String address) {
+		int colon = address.lastIndexOf(':');
+		boolean valid = colon > 0;
+		if (valid) {
+			try {
+				int port = Integer.parseInt(address.substring(colon + 1));
+				valid = port > 0 && port <= 65535;
+			} catch (NumberFormatException e) {
+				valid = false;
+			}
+		}
+		if (!valid) {
+			throw new IllegalArgumentException(String.format(
+					"Invalid %s setting '%s', expected host:port", key,
+					address));
+		}
+	}
+
+	private static String hostOf(String address) {
+		return address.substring(0, address.lastIndexOf(':'));
+	}
+
+	private static int portOf(String address) {
+		return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+	}
+
+	private static boolean isNetTransport() {
+		return "net".equals(AppProperties.get(AppProperties.TRANSPORT));
+	}
+
 	private static void startGuiClient(DBConnection conn) {
 		DataTableFrame tFrame = new DataTableFrame(conn);
 		tFrame.createAndShowGui();
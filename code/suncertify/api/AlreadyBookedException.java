@@ -0,0 +1,27 @@
+package suncertify.api;
+
+/**
+ * Exception signalizes an attempt to book a row which is already booked,
+ * possibly by the same customer. Nothing was changed in the database; the
+ * message names the current owner of the row.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class AlreadyBookedException extends Exception {
+
+	/**
+	 * Generated version of the class.
+	 */
+	private static final long serialVersionUID = 2718449153031707244L;
+
+	/**
+	 * Creates an exception instance with a given message.
+	 * 
+	 * @param message
+	 *            message of the exception.
+	 */
+	public AlreadyBookedException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,205 @@
+package suncertify.api;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous variant of {@link DBConnection}. Every method returns at once
+ * with a future completed with the result of the operation, or completed
+ * exceptionally with the exception the corresponding method of
+ * {@link DBConnection} would throw. Several calls may be in progress at the
+ * same time, and their results may be composed without blocking the calling
+ * thread.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public interface AsyncDBConnection {
+
+	/**
+	 * See {@link DBConnection#createRecord(Contractor)}.
+	 * 
+	 * @param contractor
+	 *            entity to be stored
+	 * @return future row number of the stored entity.
+	 */
+	CompletableFuture<Long> createRecord(Contractor contractor);
+
+	/**
+	 * See {@link DBConnection#readRecord(long)}.
+	 * 
+	 * @param recNo
+	 *            row number of an entity to read.
+	 * @return future entity from the database in recNo position.
+	 */
+	CompletableFuture<Contractor> readRecord(long recNo);
+
+	/**
+	 * See {@link DBConnection#readRecords(long[])}.
+	 * 
+	 * @param recNos
+	 *            row numbers of the entities to read.
+	 * @return future entities read, by row number.
+	 */
+	CompletableFuture<BatchResult<Contractor>> readRecords(long[] recNos);
+
+	/**
+	 * See {@link DBConnection#updateRecord(long, Contractor)}.
+	 * 
+	 * @param recNo
+	 *            row number of an entity to update.
+	 * @param record
+	 *            data to update row with.
+	 * @return future completed when the row is updated.
+	 */
+	CompletableFuture<Void> updateRecord(long recNo, Contractor record);
+
+	/**
+	 * See {@link DBConnection#updateRecord(long, Contractor, long)}.
+	 * 
+	 * @param recNo
+	 *            row number of an entity to update.
+	 * @param record
+	 *            data to update row with.
+	 * @param expectedVersion
+	 *            version of the row the client has read.
+	 * @return future new version of the row.
+	 */
+	CompletableFuture<Long> updateRecord(long recNo, Contractor record,
+			long expectedVersion);
+
+	/**
+	 * See {@link DBConnection#updateRecords(Map)}.
+	 * 
+	 * @param records
+	 *            data to update the rows with, by row number.
+	 * @return future entities as stored after the update, by row number.
+	 */
+	CompletableFuture<BatchResult<Contractor>> updateRecords(
+			Map<Long, Contractor> records);
+
+	/**
+	 * See {@link DBConnection#bookRecord(long, String)}.
+	 * 
+	 * @param recNo
+	 *            row number of an entity to book.
+	 * @param ownerId
+	 *            ID of the customer booking the row.
+	 * @return future entity as stored in the database after the operation.
+	 */
+	CompletableFuture<Contractor> bookRecord(long recNo, String ownerId);
+
+	/**
+	 * See {@link DBConnection#deleteRecord(long)}.
+	 * 
+	 * @param recNo
+	 *            row number of an entity to delete.
+	 * @return future completed when the row is deleted.
+	 */
+	CompletableFuture<Void> deleteRecord(long recNo);
+
+	/**
+	 * See {@link DBConnection#deleteRecords(long[])}.
+	 * 
+	 * @param recNos
+	 *            row numbers of the entities to delete.
+	 * @return future outcome of the deletion of each row.
+	 */
+	CompletableFuture<BatchResult<Void>> deleteRecords(long[] recNos);
+
+	/**
+	 * See {@link DBConnection#findByCriteria(Contractor, boolean)}.
+	 * 
+	 * @param criteria
+	 *            search criteria
+	 * @param exactMatch
+	 *            true if search is to be done in 'exact match' mode. false for
+	 *            'contain match' mode.
+	 * @return future list of entities matching the criteria.
+	 */
+	CompletableFuture<List<Contractor>> findByCriteria(Contractor criteria,
+			boolean exactMatch);
+
+	/**
+	 * See
+	 * {@link DBConnection#findByCriteria(Contractor, boolean, ContractorField, boolean, int)}
+	 * .
+	 * 
+	 * @param criteria
+	 *            search criteria
+	 * @param exactMatch
+	 *            true if search is to be done in 'exact match' mode. false for
+	 *            'contain match' mode.
+	 * @param orderBy
+	 *            property to order the result by. null keeps the order of the
+	 *            rows in the database file.
+	 * @param ascending
+	 *            true for ascending, false for descending order.
+	 * @param limit
+	 *            maximum number of entities to be returned. Values lower than
+	 *            1 mean no limit.
+	 * @return future ordered list of at most limit entities matching the
+	 *         criteria.
+	 */
+	CompletableFuture<List<Contractor>> findByCriteria(Contractor criteria,
+			boolean exactMatch, ContractorField orderBy, boolean ascending,
+			int limit);
+
+	/**
+	 * See {@link DBConnection#countAvailable(ContractorField)}.
+	 * 
+	 * @param groupBy
+	 *            property to group contractors by.
+	 * @return future count of available contractors for each value of the
+	 *         property.
+	 */
+	CompletableFuture<Map<String, Integer>> countAvailable(
+			ContractorField groupBy);
+
+	/**
+	 * See {@link DBConnection#findByName(String, int)}.
+	 * 
+	 * @param name
+	 *            name to search for.
+	 * @param maxDistance
+	 *            maximum edit distance between the given and a found name.
+	 * @return future entities with similar names, the closest matches first.
+	 */
+	CompletableFuture<List<Contractor>> findByName(String name,
+			int maxDistance);
+
+	/**
+	 * See {@link DBConnection#changesSince(long, Contractor, boolean)}.
+	 * 
+	 * @param version
+	 *            version of the database the client's result is at, or a
+	 *            negative number for the complete result.
+	 * @param criteria
+	 *            search criteria
+	 * @param exactMatch
+	 *            true if search is to be done in 'exact match' mode. false for
+	 *            'contain match' mode.
+	 * @return future changes of the result since the version.
+	 */
+	CompletableFuture<ChangeSet> changesSince(long version,
+			Contractor criteria, boolean exactMatch);
+
+	/**
+	 * See {@link DBConnection#addChangeListener(ChangeListener)}.
+	 * 
+	 * @param listener
+	 *            listener to register.
+	 * @return future completed when the listener is registered.
+	 */
+	CompletableFuture<Void> addChangeListener(ChangeListener listener);
+
+	/**
+	 * See {@link DBConnection#removeChangeListener(ChangeListener)}.
+	 * 
+	 * @param listener
+	 *            listener to remove.
+	 * @return future completed when the listener is removed.
+	 */
+	CompletableFuture<Void> removeChangeListener(ChangeListener listener);
+}
@@ -0,0 +1,112 @@
+package suncertify.api;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Outcome of a batch operation on several rows, reported separately for each
+ * row: either a result, or the exception the operation on that row failed
+ * with.
+ * 
+ * @param <T>
+ *            type of the result of the operation on a single row.
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class BatchResult<T> implements Serializable {
+
+	/**
+	 * Generated version of this class.
+	 */
+	private static final long serialVersionUID = 3524816007285417839L;
+
+	private final Map<Long, T> results = new TreeMap<Long, T>();
+	private final Map<Long, Exception> failures = new TreeMap<Long, Exception>();
+
+	/**
+	 * Records a successful operation on a row.
+	 * 
+	 * @param recNo
+	 *            row number.
+	 * @param result
+	 *            result of the operation, may be null.
+	 */
+	public void addSuccess(long recNo, T result) {
+		failures.remove(recNo);
+		results.put(recNo, result);
+	}
+
+	/**
+	 * Records a failed operation on a row.
+	 * 
+	 * @param recNo
+	 *            row number.
+	 * @param failure
+	 *            exception the operation failed with.
+	 */
+	public void addFailure(long recNo, Exception failure) {
+		results.remove(recNo);
+		failures.put(recNo, failure);
+	}
+
+	/**
+	 * Tells whether the operation on a row succeeded.
+	 * 
+	 * @param recNo
+	 *            row number.
+	 * @return true if the operation on the row succeeded.
+	 */
+	public boolean isSuccess(long recNo) {
+		return results.containsKey(recNo);
+	}
+
+	/**
+	 * Result of the operation on a row.
+	 * 
+	 * @param recNo
+	 *            row number.
+	 * @return result of the operation on the row, null if the operation
+	 *         failed or has no result.
+	 */
+	public T getResult(long recNo) {
+		return results.get(recNo);
+	}
+
+	/**
+	 * Exception the operation on a row failed with.
+	 * 
+	 * @param recNo
+	 *            row number.
+	 * @return exception the operation on the row failed with, null if it
+	 *         succeeded.
+	 */
+	public Exception getFailure(long recNo) {
+		return failures.get(recNo);
+	}
+
+	/**
+	 * Numbers of the rows the operation succeeded on, in ascending order.
+	 * 
+	 * @return numbers of the rows the operation succeeded on.
+	 */
+	public Set<Long> getSucceeded() {
+		return Collections.unmodifiableSet(results.keySet());
+	}
+
+	/**
+	 * Numbers of the rows the operation failed on, in ascending order.
+	 * 
+	 * @return numbers of the rows the operation failed on.
+	 */
+	public Set<Long> getFailed() {
+		return Collections.unmodifiableSet(failures.keySet());
+	}
+
+	@Override
+	public String toString() {
+		return "succeeded=" + results.keySet() + " failed=" + failures;
+	}
+}
@@ -0,0 +1,38 @@
+package suncertify.api;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Listener notified by the database server of the records created, updated
+ * or deleted by any client, see
+ * {@link DBConnection#addChangeListener(ChangeListener)}. Remote clients
+ * export the listener, so that the server calls it back.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public interface ChangeListener extends Remote {
+
+	/**
+	 * Maximum time between two notifications. When no record changes the
+	 * listener is notified with no record numbers, so that a listener which
+	 * was not notified for longer may assume it has been dropped.
+	 */
+	long HEARTBEAT_MILLIS = 10000;
+
+	/**
+	 * Notifies the listener of changed records. Changes made in a short time
+	 * are notified together, after they were made.
+	 * 
+	 * @param recNos
+	 *            numbers of the changed records in ascending order, empty if
+	 *            nothing changed since the last notification, or null if the
+	 *            changed records are no longer known and any record may have
+	 *            changed.
+	 * @throws RemoteException
+	 *             if the listener cannot be reached; the server stops
+	 *             notifying it.
+	 */
+	void recordsChanged(long[] recNos) throws RemoteException;
+}
@@ -0,0 +1,96 @@
+package suncertify.api;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Changes of a search result since a version of the database, see
+ * {@link DBConnection#changesSince(long, Contractor, boolean)}. Either a
+ * complete result, replacing the one the client has, or the rows to add or
+ * replace and the rows to remove.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class ChangeSet implements Serializable {
+
+	/**
+	 * Generated version of this class.
+	 */
+	private static final long serialVersionUID = -2875300213864719258L;
+
+	private final long version;
+	private final boolean complete;
+	private final List<Contractor> changed;
+	private final long[] removed;
+
+	/**
+	 * Creates a change set.
+	 * 
+	 * @param version
+	 *            version of the database the changes lead to.
+	 * @param complete
+	 *            true if the changed rows are the complete result.
+	 * @param changed
+	 *            rows matching the criteria which were created or modified.
+	 * @param removed
+	 *            numbers of the rows which were deleted or no longer match
+	 *            the criteria.
+	 */
+	public ChangeSet(long version, boolean complete, List<Contractor> changed,
+			long[] removed) {
+		this.version = version;
+		this.complete = complete;
+		this.changed = changed;
+		this.removed = removed;
+	}
+
+	/**
+	 * Version of the database the changes lead to, to be passed to the next
+	 * call.
+	 * 
+	 * @return version of the database the changes lead to.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Tells whether the changed rows are the complete search result, which
+	 * replaces the result the client has. The result is complete when the
+	 * version the client asked for is not known to the server.
+	 * 
+	 * @return true if the changed rows are the complete result.
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Rows matching the criteria which were created or modified, to be added
+	 * to the result or to replace the rows with the same numbers.
+	 * 
+	 * @return rows matching the criteria which were created or modified.
+	 */
+	public List<Contractor> getChanged() {
+		return changed;
+	}
+
+	/**
+	 * Numbers of the rows which were deleted or no longer match the criteria,
+	 * to be removed from the result if present.
+	 * 
+	 * @return numbers of the rows to remove.
+	 */
+	public long[] getRemoved() {
+		return removed;
+	}
+
+	@Override
+	public String toString() {
+		return "version=" + version + (complete ? " complete" : "")
+				+ " changed=" + changed.size() + " removed="
+				+ Arrays.toString(removed);
+	}
+}
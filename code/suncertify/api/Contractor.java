@@ -1,15 +1,24 @@
 package suncertify.api;
 
-import java.io.Serializable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.util.Arrays;
 
+import suncertify.common.WireFormat;
+
 /**
- * Class representing an entity in contractors database.
+ * Class representing an entity in contractors database. Entities are sent
+ * between clients and the database server in a compact hand written format,
+ * see {@link #writeExternal(ObjectOutput)}.
  * 
  * @author Szymon Bochniak (bochniak.szymon@gmail.com)
  * 
  */
-public class Contractor implements Serializable {
+public class Contractor implements Externalizable {
 
 	/**
 	 * Generated version of this class.
@@ -29,11 +38,12 @@ public class Contractor implements Serializable {
 	private String rate;
 	private String owner;
 
-	private final long id;
+	private long id;
+	private long version;
 
 	/**
 	 * Default constructor. Creates an entity with id -1 meaning that it is not
-	 * stored in the database.
+	 * stored in the database. Also used when an entity is deserialized.
 	 */
 	public Contractor() {
 		this.id = -1l;
@@ -63,6 +73,20 @@ public class Contractor implements Serializable {
 		this.id = id;
 	}
 
+	/**
+	 * Creates an entity with data given as String array, as read from the
+	 * database at the given version of the row. See
+	 * {@link #Contractor(String[], long)}.
+	 * 
+	 * @param array
+	 * @param id
+	 * @param version
+	 */
+	public Contractor(String[] array, long id, long version) {
+		this(array, id);
+		this.version = version;
+	}
+
 	/**
 	 * The name of the subcontractor this record relates to.
 	 * 
@@ -192,6 +216,17 @@ public class Contractor implements Serializable {
 		return id;
 	}
 
+	/**
+	 * Version of the database row this entity was read at. The version is
+	 * incremented by every modification of the row, so it can be used to
+	 * update the row only if nobody has modified it in the meantime.
+	 * 
+	 * @return version of the database row.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
 	/**
 	 * Returns this record as a String array. This is a utility method used when
 	 * calling lower level API which takes records as String arrays. Row id is
@@ -212,6 +247,73 @@ public class Contractor implements Serializable {
 		return array;
 	}
 
+	/**
+	 * Writes the entity as the row number and version encoded as variable
+	 * length numbers, followed by the six properties as length prefixed
+	 * strings. Neither class nor property names are written.
+	 * 
+	 * @param out
+	 *            output to write the entity to.
+	 * @throws IOException
+	 *             if writing to the output fails.
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		writeTo(out);
+	}
+
+	/**
+	 * Writes the entity in the format described in
+	 * {@link #writeExternal(ObjectOutput)} to any data output.
+	 * 
+	 * @param out
+	 *            output to write the entity to.
+	 * @throws IOException
+	 *             if writing to the output fails.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		WireFormat.writeSignedVarLong(out, id);
+		WireFormat.writeVarLong(out, version);
+		WireFormat.writeString(out, name);
+		WireFormat.writeString(out, location);
+		WireFormat.writeString(out, specialities);
+		WireFormat.writeString(out, size);
+		WireFormat.writeString(out, rate);
+		WireFormat.writeString(out, owner);
+	}
+
+	/**
+	 * Reads the entity written by {@link #writeExternal(ObjectOutput)}.
+	 * 
+	 * @param in
+	 *            input to read the entity from.
+	 * @throws IOException
+	 *             if reading from the input fails.
+	 */
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		readFrom(in);
+	}
+
+	/**
+	 * Reads the entity written by {@link #writeTo(DataOutput)}.
+	 * 
+	 * @param in
+	 *            input to read the entity from.
+	 * @throws IOException
+	 *             if reading from the input fails.
+	 */
+	public void readFrom(DataInput in) throws IOException {
+		id = WireFormat.readSignedVarLong(in);
+		version = WireFormat.readVarLong(in);
+		name = WireFormat.readString(in);
+		location = WireFormat.readString(in);
+		specialities = WireFormat.readString(in);
+		size = WireFormat.readString(in);
+		rate = WireFormat.readString(in);
+		owner = WireFormat.readString(in);
+	}
+
 	/**
 	 * Prints readable value of the Contractor record.
 	 * 
@@ -0,0 +1,81 @@
+package suncertify.api;
+
+/**
+ * Enumeration of the {@link Contractor} properties. Each constant knows the
+ * position of the property in the record array returned by
+ * {@link Contractor#toArray()} and whether its values are to be compared as
+ * numbers rather than as text.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public enum ContractorField {
+
+	/**
+	 * The name of the subcontractor.
+	 */
+	NAME(0, false),
+
+	/**
+	 * The locality in which the contractor works.
+	 */
+	LOCATION(1, false),
+
+	/**
+	 * Comma separated list of types of work the contractor can perform.
+	 */
+	SPECIALITIES(2, false),
+
+	/**
+	 * The number of workers available.
+	 */
+	SIZE(3, true),
+
+	/**
+	 * Charge per hour, including the currency symbol.
+	 */
+	RATE(4, true),
+
+	/**
+	 * Id of the customer who has booked the contractor.
+	 */
+	OWNER(5, false);
+
+	private final int index;
+	private final boolean numeric;
+
+	private ContractorField(int index, boolean numeric) {
+		this.index = index;
+		this.numeric = numeric;
+	}
+
+	/**
+	 * Position of the property in the record array.
+	 * 
+	 * @return position of the property in the record array.
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Tells whether values of the property are numbers (possibly prefixed
+	 * with a currency symbol) and should be compared as such.
+	 * 
+	 * @return true if values of the property are numeric.
+	 */
+	public boolean isNumeric() {
+		return numeric;
+	}
+
+	/**
+	 * Reads the value of the property from the given contractor.
+	 * 
+	 * @param contractor
+	 *            contractor to read the value from.
+	 * @return value of the property.
+	 */
+	public String getValue(Contractor contractor) {
+		return contractor.toArray()[index];
+	}
+}
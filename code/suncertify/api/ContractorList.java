@@ -0,0 +1,209 @@
+package suncertify.api;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.StreamCorruptedException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import suncertify.common.WireFormat;
+
+/**
+ * List of entities sent between clients and the database server as a single
+ * packed block. Rows of a search result tend to share their locations and
+ * specialities, so each distinct value of these properties is written once
+ * and later rows only refer to it by number.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class ContractorList extends AbstractList<Contractor> implements
+		RandomAccess, Externalizable {
+
+	/**
+	 * Generated version of this class.
+	 */
+	private static final long serialVersionUID = -2684551093513416520L;
+
+	/**
+	 * Code of a deduplicated value written in full, following the code.
+	 * Codes of references to values written before start after it.
+	 */
+	private static final int NEW_VALUE = 1;
+
+	/**
+	 * Code of a null deduplicated value.
+	 */
+	private static final int NULL_VALUE = 0;
+
+	private List<Contractor> rows;
+
+	/**
+	 * Creates an empty list. Also used when the list is deserialized.
+	 */
+	public ContractorList() {
+		this.rows = new ArrayList<Contractor>();
+	}
+
+	/**
+	 * Creates a list holding the given entities.
+	 * 
+	 * @param rows
+	 *            entities to be held by the list.
+	 */
+	public ContractorList(Collection<Contractor> rows) {
+		this.rows = new ArrayList<Contractor>(rows);
+	}
+
+	@Override
+	public Contractor get(int index) {
+		return rows.get(index);
+	}
+
+	@Override
+	public int size() {
+		return rows.size();
+	}
+
+	@Override
+	public Contractor set(int index, Contractor element) {
+		return rows.set(index, element);
+	}
+
+	@Override
+	public void add(int index, Contractor element) {
+		rows.add(index, element);
+	}
+
+	@Override
+	public Contractor remove(int index) {
+		return rows.remove(index);
+	}
+
+	/**
+	 * Writes the number of rows followed by the rows. Each row is written as
+	 * in {@link Contractor#writeExternal(ObjectOutput)}, except that its
+	 * location and specialities are either written in full the first time
+	 * they occur, or referred to by the order in which they first occurred.
+	 * 
+	 * @param out
+	 *            output to write the list to.
+	 * @throws IOException
+	 *             if writing to the output fails.
+	 */
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		writeTo(out);
+	}
+
+	/**
+	 * Writes the list in the format described in
+	 * {@link #writeExternal(ObjectOutput)} to any data output.
+	 * 
+	 * @param out
+	 *            output to write the list to.
+	 * @throws IOException
+	 *             if writing to the output fails.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		WireFormat.writeVarLong(out, rows.size());
+		for (Contractor row : rows) {
+			WireFormat.writeSignedVarLong(out, row.getId());
+			WireFormat.writeVarLong(out, row.getVersion());
+			WireFormat.writeString(out, row.getName());
+			writeShared(out, row.getLocation(), dictionary);
+			writeShared(out, row.getSpecialities(), dictionary);
+			WireFormat.writeString(out, row.getSize());
+			WireFormat.writeString(out, row.getRate());
+			WireFormat.writeString(out, row.getOwner());
+		}
+	}
+
+	/**
+	 * Reads the list written by {@link #writeExternal(ObjectOutput)}.
+	 * 
+	 * @param in
+	 *            input to read the list from.
+	 * @throws IOException
+	 *             if reading from the input fails, or the list is malformed.
+	 */
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		readFrom(in);
+	}
+
+	/**
+	 * Reads the list written by {@link #writeTo(DataOutput)}, replacing the
+	 * current contents.
+	 * 
+	 * @param in
+	 *            input to read the list from.
+	 * @throws IOException
+	 *             if reading from the input fails, or the list is malformed.
+	 */
+	public void readFrom(DataInput in) throws IOException {
+		List<String> dictionary = new ArrayList<String>();
+		// a row takes at least eight bytes
+		int size = WireFormat.readLength(in, 8);
+		// do not trust the size to preallocate memory
+		rows = new ArrayList<Contractor>(Math.min(size, 1024));
+		for (int i = 0; i < size; i++) {
+			long id = WireFormat.readSignedVarLong(in);
+			long version = WireFormat.readVarLong(in);
+			String[] array = new String[6];
+			array[ContractorField.NAME.getIndex()] = WireFormat.readString(in);
+			array[ContractorField.LOCATION.getIndex()] = readShared(in,
+					dictionary);
+			array[ContractorField.SPECIALITIES.getIndex()] = readShared(in,
+					dictionary);
+			array[ContractorField.SIZE.getIndex()] = WireFormat.readString(in);
+			array[ContractorField.RATE.getIndex()] = WireFormat.readString(in);
+			array[ContractorField.OWNER.getIndex()] = WireFormat.readString(in);
+			rows.add(new Contractor(array, id, version));
+		}
+	}
+
+	private static void writeShared(DataOutput out, String value,
+			Map<String, Integer> dictionary) throws IOException {
+		if (value == null) {
+			WireFormat.writeVarLong(out, NULL_VALUE);
+			return;
+		}
+		Integer index = dictionary.get(value);
+		if (index != null) {
+			WireFormat.writeVarLong(out, NEW_VALUE + 1 + index);
+		} else {
+			dictionary.put(value, dictionary.size());
+			WireFormat.writeVarLong(out, NEW_VALUE);
+			WireFormat.writeString(out, value);
+		}
+	}
+
+	private static String readShared(DataInput in, List<String> dictionary)
+			throws IOException {
+		long code = WireFormat.readVarLong(in);
+		if (code == NULL_VALUE) {
+			return null;
+		}
+		if (code == NEW_VALUE) {
+			String value = WireFormat.readString(in);
+			dictionary.add(value);
+			return value;
+		}
+		long index = code - NEW_VALUE - 1;
+		if (index >= dictionary.size()) {
+			throw new StreamCorruptedException("Unknown shared value " + index);
+		}
+		return dictionary.get((int) index);
+	}
+}
@@ -2,10 +2,12 @@ package suncertify.api;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 import suncertify.db.DuplicateKeyException;
 import suncertify.db.RecordNotFoundException;
 import suncertify.db.SecurityException;
+import suncertify.db.VersionConflictException;
 
 /**
  * Main database interface exposing create/update/delete/find functionalities.
@@ -47,6 +49,19 @@ public interface DBConnection {
 	Contractor readRecord(long recNo) throws RecordNotFoundException,
 			IOException;
 
+	/**
+	 * Reads a set of entities in a single call. All the rows are read as they
+	 * were at the same point in time.
+	 * 
+	 * @param recNos
+	 *            row numbers of the entities to read.
+	 * @return the entities read, by row number, or the
+	 *         {@link RecordNotFoundException} for rows which do not exist.
+	 * @throws IOException
+	 *             if an I/O error occurred while accessing the database.
+	 */
+	BatchResult<Contractor> readRecords(long[] recNos) throws IOException;
+
 	/**
 	 * Updates an entity in the database a the given position with a given data.
 	 * Null values in updating record will not change the database values.
@@ -66,6 +81,84 @@ public interface DBConnection {
 	void updateRecord(long recNo, Contractor record)
 			throws RecordNotFoundException, SecurityException, IOException;
 
+	/**
+	 * Updates an entity in the database only if the row was not modified since
+	 * it was read at the expected version (see {@link Contractor#getVersion()}
+	 * ). The update does not lock the row and never waits: if the row was
+	 * modified or is being modified by another client, it fails with a
+	 * conflict and the client should read the row again. Null values in
+	 * updating record will not change the database values.
+	 * 
+	 * @param recNo
+	 *            row number of an entity to update.
+	 * @param record
+	 *            data to update row with.
+	 * @param expectedVersion
+	 *            version of the row the client has read.
+	 * @return the new version of the row.
+	 * @throws RecordNotFoundException
+	 *             if the database has no row on position recNo, or that row was
+	 *             marked as deleted.
+	 * @throws VersionConflictException
+	 *             if the row was modified since the expected version, or is
+	 *             locked by another client.
+	 * @throws IOException
+	 *             if an I/O error occurred while accessing the database.
+	 */
+	long updateRecord(long recNo, Contractor record, long expectedVersion)
+			throws RecordNotFoundException, VersionConflictException,
+			IOException;
+
+	/**
+	 * Updates a set of entities in a single call. Rows which do not exist are
+	 * reported as failed. All the other rows are locked together, in an order
+	 * which rules out deadlocks with other clients, and updated before any of
+	 * them is unlocked, so other clients see either none or all of the
+	 * updates. Null values in updating records will not change the database
+	 * values.
+	 * 
+	 * @param records
+	 *            data to update the rows with, by row number.
+	 * @return the entities as stored after the update, by row number, or the
+	 *         {@link RecordNotFoundException} for rows which do not exist.
+	 * @throws SecurityException
+	 *             if there was a problem with locking the rows for update.
+	 * @throws IOException
+	 *             if an I/O error occurred while accessing the database.
+	 */
+	BatchResult<Contractor> updateRecords(Map<Long, Contractor> records)
+			throws SecurityException, IOException;
+
+	/**
+	 * Books an entity for a customer. The owner of the row is set to the
+	 * given customer ID only if the row is not booked yet, that is its owner
+	 * is blank. The check and the update are done atomically by the database
+	 * server, so of two customers booking the same row only one succeeds.
+	 * 
+	 * @param recNo
+	 *            row number of an entity to book.
+	 * @param ownerId
+	 *            ID of the customer booking the row.
+	 * @return entity as stored in the database after the booking.
+	 * @throws AlreadyBookedException
+	 *             if the row is already booked, even by the same customer; the
+	 *             row is left unchanged.
+	 * @throws IllegalArgumentException
+	 *             if ownerId is null or blank; a booking is changed or
+	 *             cancelled with {@link #updateRecord(long, Contractor, long)}
+	 *             instead.
+	 * @throws RecordNotFoundException
+	 *             if the database has no row on position recNo, or that row was
+	 *             marked as deleted.
+	 * @throws SecurityException
+	 *             if there was a problem with locking the row for update.
+	 * @throws IOException
+	 *             if an I/O error occurred while accessing the database.
+	 */
+	Contractor bookRecord(long recNo, String ownerId)
+			throws AlreadyBookedException, RecordNotFoundException,
+			SecurityException, IOException;
+
 	/**
 	 * Deletes an entity at the given position from the database.
 	 * 
@@ -82,6 +175,20 @@ public interface DBConnection {
 	void deleteRecord(long recNo) throws RecordNotFoundException,
 			SecurityException, IOException;
 
+	/**
+	 * Deletes a set of entities in a single call. Each row is locked and
+	 * deleted separately, so a failure to delete one row does not prevent the
+	 * others from being deleted.
+	 * 
+	 * @param recNos
+	 *            row numbers of the entities to delete.
+	 * @return outcome of the deletion of each row: no result if the row was
+	 *         deleted, or the exception the deletion failed with.
+	 * @throws IOException
+	 *             if an I/O error occurred while accessing the database.
+	 */
+	BatchResult<Void> deleteRecords(long[] recNos) throws IOException;
+
 	/**
 	 * Finds entities by the given search criteria. Null value in criteria
 	 * object matches any text string. There are two search modes possible:
@@ -106,4 +213,116 @@ public interface DBConnection {
 	 */
 	List<Contractor> findByCriteria(Contractor criteria, boolean exactMatch)
 			throws IOException;
+
+	/**
+	 * Finds entities by the given search criteria, orders them by the given
+	 * property and returns at most limit of them. Ordering and limiting is
+	 * done by the database server, so only the requested rows are transferred
+	 * to the client. Matching rules are the same as for
+	 * {@link #findByCriteria(Contractor, boolean)}.
+	 * 
+	 * @param criteria
+	 *            search criteria
+	 * @param exactMatch
+	 *            true if search is to be done in 'exact match' mode. false for
+	 *            'contain match' mode.
+	 * @param orderBy
+	 *            property to order the result by. null keeps the order of the
+	 *            rows in the database file.
+	 * @param ascending
+	 *            true for ascending, false for descending order.
+	 * @param limit
+	 *            maximum number of entities to be returned. Values lower than
+	 *            1 mean no limit.
+	 * @return ordered list of at most limit entities matching the criteria.
+	 * @throws IOException
+	 *             if an I/O error occurred while accessing the database.
+	 */
+	List<Contractor> findByCriteria(Contractor criteria, boolean exactMatch,
+			ContractorField orderBy, boolean ascending, int limit)
+			throws IOException;
+
+	/**
+	 * Counts the contractors available for booking (having no owner) grouped
+	 * by the value of the given property. For
+	 * {@link ContractorField#SPECIALITIES} each contractor is counted once for
+	 * every speciality in its list. The counts are maintained by the database
+	 * server as records are modified, so this call does not scan the
+	 * database.
+	 * 
+	 * @param groupBy
+	 *            property to group contractors by.
+	 * @return count of available contractors for each value of the property.
+	 * @throws IOException
+	 *             if an I/O error occurred while accessing the database.
+	 */
+	Map<String, Integer> countAvailable(ContractorField groupBy)
+			throws IOException;
+
+	/**
+	 * Finds entities whose name differs from the given one by at most
+	 * maxDistance single character insertions, deletions or substitutions
+	 * (edit distance), ignoring case. Useful when the exact spelling of the
+	 * name is not known.
+	 * 
+	 * @param name
+	 *            name to search for.
+	 * @param maxDistance
+	 *            maximum edit distance between the given and a found name.
+	 * @return entities with similar names, the closest matches first.
+	 * @throws IOException
+	 *             if an I/O error occurred while accessing the database.
+	 */
+	List<Contractor> findByName(String name, int maxDistance)
+			throws IOException;
+
+	/**
+	 * Returns the changes of the result of
+	 * {@link #findByCriteria(Contractor, boolean)} since the given version of
+	 * the database: the rows created or modified since then which match the
+	 * criteria, and the rows deleted or modified so that they no longer
+	 * match. A client refreshing a search periodically passes the version of
+	 * the previous change set, so each refresh transfers only the rows which
+	 * changed. The first call passes a negative version and gets the complete
+	 * result.
+	 * 
+	 * @param version
+	 *            version of the database the client's result is at, from
+	 *            {@link ChangeSet#getVersion()}, or a negative number for the
+	 *            complete result.
+	 * @param criteria
+	 *            search criteria
+	 * @param exactMatch
+	 *            true if search is to be done in 'exact match' mode. false for
+	 *            'contain match' mode.
+	 * @return changes of the result since the version, or the complete result
+	 *         if the version is not known.
+	 * @throws IOException
+	 *             if an I/O error occurred while accessing the database.
+	 */
+	ChangeSet changesSince(long version, Contractor criteria,
+			boolean exactMatch) throws IOException;
+
+	/**
+	 * Registers a listener notified of the records created, updated or
+	 * deleted by any client from now on. Used by clients keeping copies of
+	 * the records to find out which copies are out of date.
+	 * 
+	 * @param listener
+	 *            listener to register.
+	 * @throws IOException
+	 *             if an I/O error occurred while registering the listener.
+	 */
+	void addChangeListener(ChangeListener listener) throws IOException;
+
+	/**
+	 * Stops notifying a listener registered with
+	 * {@link #addChangeListener(ChangeListener)}.
+	 * 
+	 * @param listener
+	 *            listener to remove.
+	 * @throws IOException
+	 *             if an I/O error occurred while removing the listener.
+	 */
+	void removeChangeListener(ChangeListener listener) throws IOException;
 }
@@ -1,12 +1,21 @@
 package suncertify.api;
 
+import java.io.IOException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.concurrent.ExecutorService;
 
+import suncertify.impl.CachingDBConnection;
 import suncertify.impl.DBConnectionImpl;
+import suncertify.impl.ExecutorAsyncDBConnection;
+import suncertify.impl.RequestExecutors;
 import suncertify.impl.RemoteDBConnection;
+import suncertify.impl.ReplicaDBConnection;
+import suncertify.impl.RoutingDBConnection;
+import suncertify.net.NetDBConnection;
+import suncertify.net.ReplicationClient;
 
 /**
  * Singleton implementation of database connection factory. Returns either a
@@ -20,6 +29,8 @@ public class DBConnectionFactory {
 
 	private static DBConnectionFactory instance;
 
+	private ExecutorService asyncExecutor;
+
 	private DBConnectionFactory() {
 		// hidden constructor
 	}
@@ -48,6 +59,23 @@ public class DBConnectionFactory {
 		return conn;
 	}
 
+	/**
+	 * Returns a connection to a database server speaking the binary protocol,
+	 * located on a given host listening on the given port number. The
+	 * connection may be shared by many threads, their requests are pipelined.
+	 * 
+	 * @param host
+	 *            name of the host where database server is running.
+	 * @param port
+	 *            port number which database server listens on.
+	 * @return connection to a remote database server.
+	 * @throws IOException
+	 *             if the connection cannot be established.
+	 */
+	public DBConnection getNet(String host, int port) throws IOException {
+		return new NetDBConnection(host, port);
+	}
+
 	/**
 	 * Returns a reference to local database server connector running in the
 	 * same JVM bypassing all networking.
@@ -60,6 +88,76 @@ public class DBConnectionFactory {
 		return new DBConnectionImpl();
 	}
 
+	/**
+	 * Returns a read-only connection to a local copy of a leader database,
+	 * kept up to date by following the replication stream of the leader.
+	 * Used by follower servers, which serve reads of the leader database. The
+	 * connection fails the reads until the copy is loaded.
+	 * 
+	 * @param leaderHost
+	 *            name of the host where the leader is running.
+	 * @param replicationPort
+	 *            replication port number of the leader.
+	 * @return read-only connection to a copy of the leader database.
+	 */
+	public DBConnection getFollower(String leaderHost, int replicationPort) {
+		ReplicaDBConnection replica = new ReplicaDBConnection();
+		new ReplicationClient(leaderHost, replicationPort, replica).start();
+		return replica;
+	}
+
+	/**
+	 * Returns a connection sending the reads to the given follower servers,
+	 * and the modifications and everything else to the leader server.
+	 * 
+	 * @param leader
+	 *            connection to the leader server.
+	 * @param followers
+	 *            connections to the follower servers.
+	 * @return routing database connection.
+	 */
+	public DBConnection getRouting(DBConnection leader,
+			DBConnection[] followers) {
+		return new RoutingDBConnection(leader, followers);
+	}
+
+	/**
+	 * Returns a connection keeping the rows read through the given remote
+	 * connection until the server notifies they changed, so that reading a
+	 * row which has not changed costs no call to the server.
+	 * 
+	 * @param conn
+	 *            connection to a remote database server.
+	 * @return caching database connection.
+	 * @throws IOException
+	 *             if the connection cannot register for the change
+	 *             notifications.
+	 */
+	public DBConnection getCaching(DBConnection conn) throws IOException {
+		return new CachingDBConnection(conn);
+	}
+
+	/**
+	 * Returns an asynchronous variant of a database connection obtained from
+	 * this factory. Calls of a binary protocol connection are sent without
+	 * holding a thread while waiting for the response; calls of the local and
+	 * the RMI connections are run by an executor shared by all the
+	 * asynchronous connections.
+	 * 
+	 * @param conn
+	 *            database connection to run the calls on.
+	 * @return asynchronous database connection.
+	 */
+	public synchronized AsyncDBConnection getAsync(DBConnection conn) {
+		if (conn instanceof NetDBConnection) {
+			return ((NetDBConnection) conn).getAsync();
+		}
+		if (asyncExecutor == null) {
+			asyncExecutor = RequestExecutors.newRequestExecutor("db-async");
+		}
+		return new ExecutorAsyncDBConnection(conn, asyncExecutor);
+	}
+
 	/**
 	 * Instance of database connection factory.
 	 * 
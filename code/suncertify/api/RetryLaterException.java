@@ -0,0 +1,42 @@
+package suncertify.api;
+
+import java.io.IOException;
+
+/**
+ * Exception signalizes that the database server could not perform the
+ * operation at the moment, for example because the row stayed locked by
+ * another client for too long. Nothing was changed in the database and the
+ * operation may succeed when it is retried later.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class RetryLaterException extends IOException {
+
+	/**
+	 * Generated version of the class.
+	 */
+	private static final long serialVersionUID = 6102865290733315947L;
+
+	/**
+	 * Creates an exception instance with a given message.
+	 * 
+	 * @param message
+	 *            message of the exception.
+	 */
+	public RetryLaterException(String message) {
+		super(message);
+	}
+
+	/**
+	 * Creates an exception instance with a given message and cause.
+	 * 
+	 * @param message
+	 *            message of the exception.
+	 * @param cause
+	 *            cause of the exception.
+	 */
+	public RetryLaterException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
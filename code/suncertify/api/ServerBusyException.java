@@ -0,0 +1,28 @@
+package suncertify.api;
+
+/**
+ * Exception signalizes that the database server has too many requests
+ * waiting and rejected the operation without running it. Nothing was
+ * changed in the database and the operation may succeed when it is retried
+ * later, preferably after a short pause.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class ServerBusyException extends RetryLaterException {
+
+	/**
+	 * Generated version of the class.
+	 */
+	private static final long serialVersionUID = -3412187302905539081L;
+
+	/**
+	 * Creates an exception instance with a given message.
+	 * 
+	 * @param message
+	 *            message of the exception.
+	 */
+	public ServerBusyException(String message) {
+		super(message);
+	}
+}
@@ -38,9 +38,123 @@ public class AppProperties {
 	 */
 	public static final String DB_FILENAME = "db.filename";
 
+	/**
+	 * Key for maximum number of search results cached by database server.
+	 */
+	public static final String CACHE_ENTRIES = "db.server.cache.entries";
+
+	/**
+	 * Key for maximum memory in bytes taken by search results cached by
+	 * database server.
+	 */
+	public static final String CACHE_BYTES = "db.server.cache.bytes";
+
+	/**
+	 * Key for maximum time in milliseconds database server waits for a locked
+	 * row before it gives up the operation.
+	 */
+	public static final String LOCK_TIMEOUT = "db.server.lock.timeout";
+
+	/**
+	 * Key for time in milliseconds after which a row lock, which was neither
+	 * released nor renewed, expires.
+	 */
+	public static final String LOCK_LEASE = "db.server.lock.lease";
+
+	/**
+	 * Key for the flag telling database server to grant row locks in the order
+	 * they were requested.
+	 */
+	public static final String LOCK_FAIR = "db.server.lock.fair";
+
+	/**
+	 * Key for the kind of threads database server runs requests on, either
+	 * "platform" or "virtual".
+	 */
+	public static final String SERVER_THREADS = "db.server.threads";
+
+	/**
+	 * Key for the maximum number of requests database server runs at once, at
+	 * least two, as one is always kept for the modifications.
+	 */
+	public static final String SERVER_WORKERS = "db.server.workers";
+
+	/**
+	 * Key for the maximum number of read requests waiting to run, further
+	 * ones are rejected as the server is busy.
+	 */
+	public static final String MAX_QUEUED_READS = "db.server.queue.reads";
+
+	/**
+	 * Key for the maximum number of write requests waiting to run, further
+	 * ones are rejected as the server is busy.
+	 */
+	public static final String MAX_QUEUED_WRITES = "db.server.queue.writes";
+
+	/**
+	 * Key for the transport database server and clients talk over, either
+	 * "rmi" or "net" for the binary protocol.
+	 */
+	public static final String TRANSPORT = "db.transport";
+
+	/**
+	 * Key for the flag telling the client to keep the rows it read until the
+	 * server notifies they changed. Off by default, as the server then calls
+	 * every client back after each modification.
+	 */
+	public static final String CLIENT_CACHE = "db.client.cache";
+
+	/**
+	 * Key for maximum time in milliseconds the client waits for the response
+	 * of the server over the binary protocol before it gives up the call.
+	 */
+	public static final String CLIENT_TIMEOUT = "db.client.timeout";
+
+	/**
+	 * Key for the port number database server streams its modifications to
+	 * the follower servers on, 0 not to accept followers.
+	 */
+	public static final String REPLICATION_PORT = "db.server.replication.port";
+
+	/**
+	 * Key for the host and replication port of the leader, as "host:port", a
+	 * database server follows and serves reads of. Empty for a server owning
+	 * the database file.
+	 */
+	public static final String LEADER = "db.server.leader";
+
+	/**
+	 * Key for the comma separated list of the follower servers, as
+	 * "host:port", the client sends its reads to. Empty to read from the
+	 * leader only.
+	 */
+	public static final String FOLLOWERS = "db.followers";
+
+	/**
+	 * Key for the lowest level of the diagnostic messages database server
+	 * writes, one of "debug", "info", "warn", "error" or "off".
+	 */
+	public static final String LOG_LEVEL = "db.log.level";
+
 	private static final String DEFAULT_HOST = "localhost";
 	private static final String DEFAULT_PORT = "1099";
 	private static final String DEFAULT_DB_FILENAME = "db-2x2.db";
+	private static final String DEFAULT_CACHE_ENTRIES = "256";
+	private static final String DEFAULT_CACHE_BYTES = "8388608";
+	private static final String DEFAULT_LOCK_TIMEOUT = "5000";
+	private static final String DEFAULT_LOCK_LEASE = "30000";
+	private static final String DEFAULT_LOCK_FAIR = "true";
+	private static final String DEFAULT_SERVER_THREADS = "platform";
+	private static final String DEFAULT_SERVER_WORKERS = "16";
+	private static final String DEFAULT_MAX_QUEUED_READS = "64";
+	private static final String DEFAULT_MAX_QUEUED_WRITES = "64";
+	private static final String DEFAULT_TRANSPORT = "rmi";
+	private static final String DEFAULT_CLIENT_CACHE = "false";
+	private static final String DEFAULT_CLIENT_TIMEOUT = "60000";
+	private static final String DEFAULT_REPLICATION_PORT = "0";
+	private static final String DEFAULT_LEADER = "";
+	private static final String DEFAULT_FOLLOWERS = "";
+	private static final String DEFAULT_LOG_LEVEL = "info";
 	private static final Properties DEFAULTS = new Properties();
 	private static final File PROPERTIES_FILE = new File(
 			"suncertify.properties");
@@ -50,6 +164,22 @@ public class AppProperties {
 		DEFAULTS.put(PORT, DEFAULT_PORT);
 		DEFAULTS.put(SERVER_PORT, DEFAULT_PORT);
 		DEFAULTS.put(DB_FILENAME, DEFAULT_DB_FILENAME);
+		DEFAULTS.put(CACHE_ENTRIES, DEFAULT_CACHE_ENTRIES);
+		DEFAULTS.put(CACHE_BYTES, DEFAULT_CACHE_BYTES);
+		DEFAULTS.put(LOCK_TIMEOUT, DEFAULT_LOCK_TIMEOUT);
+		DEFAULTS.put(LOCK_LEASE, DEFAULT_LOCK_LEASE);
+		DEFAULTS.put(LOCK_FAIR, DEFAULT_LOCK_FAIR);
+		DEFAULTS.put(SERVER_THREADS, DEFAULT_SERVER_THREADS);
+		DEFAULTS.put(SERVER_WORKERS, DEFAULT_SERVER_WORKERS);
+		DEFAULTS.put(MAX_QUEUED_READS, DEFAULT_MAX_QUEUED_READS);
+		DEFAULTS.put(MAX_QUEUED_WRITES, DEFAULT_MAX_QUEUED_WRITES);
+		DEFAULTS.put(TRANSPORT, DEFAULT_TRANSPORT);
+		DEFAULTS.put(CLIENT_CACHE, DEFAULT_CLIENT_CACHE);
+		DEFAULTS.put(CLIENT_TIMEOUT, DEFAULT_CLIENT_TIMEOUT);
+		DEFAULTS.put(REPLICATION_PORT, DEFAULT_REPLICATION_PORT);
+		DEFAULTS.put(LEADER, DEFAULT_LEADER);
+		DEFAULTS.put(FOLLOWERS, DEFAULT_FOLLOWERS);
+		DEFAULTS.put(LOG_LEVEL, DEFAULT_LOG_LEVEL);
 	}
 
 	private static Properties properties = new Properties(DEFAULTS);
@@ -108,4 +238,32 @@ public class AppProperties {
 		return properties.getProperty(key);
 	}
 
+	/**
+	 * Reads numeric value of a property from preferences. If the stored value
+	 * is not a number the default value is used.
+	 * 
+	 * @param key
+	 *            key of the property to read.
+	 * @return numeric value of the property.
+	 */
+	public static long getLong(String key) {
+		try {
+			return Long.parseLong(get(key).trim());
+		} catch (NumberFormatException e) {
+			return Long.parseLong(DEFAULTS.getProperty(key));
+		}
+	}
+
+	/**
+	 * Reads boolean value of a property from preferences. Only "true",
+	 * ignoring case, is read as true.
+	 * 
+	 * @param key
+	 *            key of the property to read.
+	 * @return boolean value of the property.
+	 */
+	public static boolean getBoolean(String key) {
+		return Boolean.parseBoolean(get(key).trim());
+	}
+
 }
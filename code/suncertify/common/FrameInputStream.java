@@ -0,0 +1,36 @@
+package suncertify.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+
+/**
+ * Data input reading a single frame received over the network. Unlike a
+ * stream it knows how many bytes are left, so lengths and counts read from
+ * the frame are checked against the frame before anything is allocated for
+ * them, see {@link WireFormat#readLength(java.io.DataInput, int)}.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class FrameInputStream extends DataInputStream {
+
+	/**
+	 * Creates an input reading the given frame.
+	 * 
+	 * @param frame
+	 *            bytes of the frame.
+	 */
+	public FrameInputStream(byte[] frame) {
+		super(new ByteArrayInputStream(frame));
+	}
+
+	/**
+	 * Number of bytes of the frame not read yet.
+	 * 
+	 * @return number of bytes left.
+	 */
+	public int remaining() {
+		// exact for a byte array input
+		return ((ByteArrayInputStream) in).available();
+	}
+}
@@ -0,0 +1,456 @@
+package suncertify.common;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous log of the database server diagnostics. A logging thread only
+ * checks the level and offers the message, unformatted, to a bounded
+ * {@link ArrayBlockingQueue}; a background thread takes the waiting messages
+ * in batches, formats them and writes them to the standard output. So
+ * logging never waits for the console: threads logging at once share only
+ * the lock of the queue, held for a single insertion or batch removal, and
+ * never while a message is formatted or written.
+ * <p/>
+ * Messages below the level set by {@link AppProperties#LOG_LEVEL} are
+ * dropped after a single field read, and never formatted. Debug and
+ * informational calls with up to three arguments do not even create an
+ * argument array; hot paths passing more should check
+ * {@link #isEnabled(Level)} first. When the queue is full the messages are
+ * dropped and counted, rather than slowing the server down. The arguments
+ * are formatted later in the background thread, so they must not be
+ * modified after they were logged.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class Log {
+
+	/**
+	 * Importance of a message.
+	 */
+	public enum Level {
+		/**
+		 * Tracing of every request.
+		 */
+		DEBUG,
+		/**
+		 * Events worth noting, like clients connecting.
+		 */
+		INFO,
+		/**
+		 * Problems the server recovers from.
+		 */
+		WARN,
+		/**
+		 * Failures of the requests or of the server.
+		 */
+		ERROR,
+		/**
+		 * Level disabling all the messages.
+		 */
+		OFF
+	}
+
+	private static final int CAPACITY = 4096;
+	private static final long FLUSH_TIMEOUT_MILLIS = 1000;
+	private static final Object[] NO_ARGS = new Object[0];
+
+	private static final BlockingQueue<Entry> entries = new ArrayBlockingQueue<Entry>(
+			CAPACITY);
+	private static final AtomicLong dropped = new AtomicLong();
+	// messages put into the queue and not written yet
+	private static final AtomicInteger pending = new AtomicInteger();
+	private static volatile int threshold = parseLevel(
+			AppProperties.get(AppProperties.LOG_LEVEL)).ordinal();
+
+	static {
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeEntries();
+			}
+		}, "db-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, "db-log-flush"));
+	}
+
+	private Log() {
+		// hidden constructor
+	}
+
+	/**
+	 * Sets the lowest level of the messages written.
+	 * 
+	 * @param level
+	 *            lowest level written, {@link Level#OFF} to write nothing.
+	 */
+	public static void setLevel(Level level) {
+		threshold = level.ordinal();
+	}
+
+	/**
+	 * Tells whether messages of the given level are written.
+	 * 
+	 * @param level
+	 *            level of the message.
+	 * @return true if messages of the level are written.
+	 */
+	public static boolean isEnabled(Level level) {
+		return level.ordinal() >= threshold;
+	}
+
+	/**
+	 * Logs a debug message, see {@link #log(Level, String, Object...)}.
+	 * 
+	 * @param message
+	 *            the message.
+	 */
+	public static void debug(String message) {
+		if (Level.DEBUG.ordinal() >= threshold) {
+			add(Level.DEBUG, message, NO_ARGS);
+		}
+	}
+
+	/**
+	 * Logs a debug message, see {@link #log(Level, String, Object...)}.
+	 * 
+	 * @param format
+	 *            format of the message.
+	 * @param arg
+	 *            argument of the format.
+	 */
+	public static void debug(String format, Object arg) {
+		if (Level.DEBUG.ordinal() >= threshold) {
+			add(Level.DEBUG, format, new Object[] { arg });
+		}
+	}
+
+	/**
+	 * Logs a debug message, see {@link #log(Level, String, Object...)}.
+	 * 
+	 * @param format
+	 *            format of the message.
+	 * @param arg1
+	 *            first argument of the format.
+	 * @param arg2
+	 *            second argument of the format.
+	 */
+	public static void debug(String format, Object arg1, Object arg2) {
+		if (Level.DEBUG.ordinal() >= threshold) {
+			add(Level.DEBUG, format, new Object[] { arg1, arg2 });
+		}
+	}
+
+	/**
+	 * Logs a debug message, see {@link #log(Level, String, Object...)}.
+	 * 
+	 * @param format
+	 *            format of the message.
+	 * @param arg1
+	 *            first argument of the format.
+	 * @param arg2
+	 *            second argument of the format.
+	 * @param arg3
+	 *            third argument of the format.
+	 */
+	public static void debug(String format, Object arg1, Object arg2,
+			Object arg3) {
+		if (Level.DEBUG.ordinal() >= threshold) {
+			add(Level.DEBUG, format, new Object[] { arg1, arg2, arg3 });
+		}
+	}
+
+	/**
+	 * Logs a debug message, see {@link #log(Level, String, Object...)}.
+	 * 
+	 * @param format
+	 *            format of the message.
+	 * @param args
+	 *            arguments of the format.
+	 */
+	public static void debug(String format, Object... args) {
+		log(Level.DEBUG, format, args);
+	}
+
+	/**
+	 * Logs an informational message, see
+	 * {@link #log(Level, String, Object...)}.
+	 * 
+	 * @param message
+	 *            the message.
+	 */
+	public static void info(String message) {
+		if (Level.INFO.ordinal() >= threshold) {
+			add(Level.INFO, message, NO_ARGS);
+		}
+	}
+
+	/**
+	 * Logs an informational message, see
+	 * {@link #log(Level, String, Object...)}.
+	 * 
+	 * @param format
+	 *            format of the message.
+	 * @param arg
+	 *            argument of the format.
+	 */
+	public static void info(String format, Object arg) {
+		if (Level.INFO.ordinal() >= threshold) {
+			add(Level.INFO, format, new Object[] { arg });
+		}
+	}
+
+	/**
+	 * Logs an informational message, see
+	 * {@link #log(Level, String, Object...)}.
+	 * 
+	 * @param format
+	 *            format of the message.
+	 * @param arg1
+	 *            first argument of the format.
+	 * @param arg2
+	 *            second argument of the format.
+	 */
+	public static void info(String format, Object arg1, Object arg2) {
+		if (Level.INFO.ordinal() >= threshold) {
+			add(Level.INFO, format, new Object[] { arg1, arg2 });
+		}
+	}
+
+	/**
+	 * Logs an informational message, see
+	 * {@link #log(Level, String, Object...)}.
+	 * 
+	 * @param format
+	 *            format of the message.
+	 * @param arg1
+	 *            first argument of the format.
+	 * @param arg2
+	 *            second argument of the format.
+	 * @param arg3
+	 *            third argument of the format.
+	 */
+	public static void info(String format, Object arg1, Object arg2,
+			Object arg3) {
+		if (Level.INFO.ordinal() >= threshold) {
+			add(Level.INFO, format, new Object[] { arg1, arg2, arg3 });
+		}
+	}
+
+	/**
+	 * Logs an informational message, see
+	 * {@link #log(Level, String, Object...)}.
+	 * 
+	 * @param format
+	 *            format of the message.
+	 * @param args
+	 *            arguments of the format.
+	 */
+	public static void info(String format, Object... args) {
+		log(Level.INFO, format, args);
+	}
+
+	/**
+	 * Logs a warning, see {@link #log(Level, String, Object...)}.
+	 * 
+	 * @param format
+	 *            format of the message.
+	 * @param args
+	 *            arguments of the format.
+	 */
+	public static void warn(String format, Object... args) {
+		log(Level.WARN, format, args);
+	}
+
+	/**
+	 * Logs an error, see {@link #log(Level, String, Object...)}.
+	 * 
+	 * @param format
+	 *            format of the message.
+	 * @param args
+	 *            arguments of the format.
+	 */
+	public static void error(String format, Object... args) {
+		log(Level.ERROR, format, args);
+	}
+
+	/**
+	 * Logs a message if its level is enabled. The message is formatted by
+	 * {@link String#format(String, Object...)}, with arrays among the
+	 * arguments written as their elements. If the last argument is a
+	 * {@link Throwable} not used by the format, its stack trace is written
+	 * after the message.
+	 * 
+	 * @param level
+	 *            level of the message.
+	 * @param format
+	 *            format of the message.
+	 * @param args
+	 *            arguments of the format.
+	 */
+	public static void log(Level level, String format, Object... args) {
+		if (level.ordinal() >= threshold) {
+			add(level, format, args);
+		}
+	}
+
+	private static void add(Level level, String format, Object[] args) {
+		pending.incrementAndGet();
+		if (!entries.offer(new Entry(level, format, args))) {
+			pending.decrementAndGet();
+			dropped.incrementAndGet();
+		}
+	}
+
+	private static void writeEntries() {
+		List<Entry> batch = new ArrayList<Entry>();
+		while (true) {
+			try {
+				batch.add(entries.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			entries.drainTo(batch);
+			write(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Writes the messages still in the queue, called when the application
+	 * exits. Waits a while for the batch the background thread may be
+	 * writing.
+	 */
+	private static void flush() {
+		List<Entry> batch = new ArrayList<Entry>();
+		entries.drainTo(batch);
+		write(batch);
+		long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT_MILLIS;
+		while (pending.get() > 0 && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private static synchronized void write(List<Entry> batch) {
+		StringBuilder text = new StringBuilder();
+		SimpleDateFormat timeFormat = new SimpleDateFormat(
+				"yyyy-MM-dd HH:mm:ss.SSS");
+		for (Entry entry : batch) {
+			text.append(timeFormat.format(new Date(entry.time))).append(' ')
+					.append(entry.level).append(" [").append(entry.thread)
+					.append("] ");
+			entry.appendMessage(text);
+			text.append(System.getProperty("line.separator"));
+		}
+		long lost = dropped.getAndSet(0);
+		if (lost > 0) {
+			text.append(lost).append(" log messages dropped").append(
+					System.getProperty("line.separator"));
+		}
+		System.out.print(text);
+		System.out.flush();
+		pending.addAndGet(-batch.size());
+	}
+
+	/**
+	 * Reads a level name, ignoring case; unknown names are read as
+	 * {@link Level#INFO}.
+	 */
+	private static Level parseLevel(String name) {
+		try {
+			return Level.valueOf(name.trim().toUpperCase());
+		} catch (RuntimeException e) {
+			return Level.INFO;
+		}
+	}
+
+	/**
+	 * Message waiting in the queue, formatted only when written.
+	 */
+	private static class Entry {
+
+		private final Level level;
+		private final long time = System.currentTimeMillis();
+		private final String thread = Thread.currentThread().getName();
+		private final String format;
+		private final Object[] args;
+
+		private Entry(Level level, String format, Object[] args) {
+			this.level = level;
+			this.format = format;
+			this.args = args;
+		}
+
+		private void appendMessage(StringBuilder text) {
+			Object[] printable = new Object[args.length];
+			for (int i = 0; i < args.length; i++) {
+				printable[i] = printable(args[i]);
+			}
+			try {
+				text.append(args.length == 0 ? format : String.format(format,
+						printable));
+			} catch (RuntimeException e) {
+				text.append(format).append(' ').append(
+						Arrays.deepToString(printable));
+			}
+			if (args.length > conversions(format)
+					&& args[args.length - 1] instanceof Throwable) {
+				StringWriter trace = new StringWriter();
+				((Throwable) args[args.length - 1])
+						.printStackTrace(new PrintWriter(trace));
+				text.append(System.getProperty("line.separator")).append(
+						trace.toString().trim());
+			}
+		}
+
+		/**
+		 * Counts the arguments the format uses, assuming it has no explicit
+		 * argument indices.
+		 */
+		private static int conversions(String format) {
+			int count = 0;
+			int i = format.indexOf('%');
+			while (i >= 0 && i + 1 < format.length()) {
+				char next = format.charAt(i + 1);
+				if (next != '%' && next != 'n') {
+					count++;
+				}
+				i = format.indexOf('%', i + 2);
+			}
+			return count;
+		}
+
+		private static Object printable(Object arg) {
+			if (arg instanceof Object[]) {
+				return Arrays.deepToString((Object[]) arg);
+			}
+			if (arg instanceof long[]) {
+				return Arrays.toString((long[]) arg);
+			}
+			if (arg instanceof int[]) {
+				return Arrays.toString((int[]) arg);
+			}
+			return arg;
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package suncertify.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Primitives of the compact binary encoding of the data sent between clients
+ * and the database server. Numbers are written as variable length integers,
+ * seven bits per byte with the highest bit telling that more bytes follow,
+ * so small numbers take a single byte. Strings are written as their length
+ * followed by their bytes; the database holds plain ASCII text, which takes
+ * one byte per character, other characters are encoded in UTF-8.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class WireFormat {
+
+	private static final String UTF_8 = "UTF-8";
+
+	/**
+	 * Maximum length or count read from an input which is not a single frame,
+	 * so that it cannot be checked against the bytes left.
+	 */
+	private static final int MAX_UNFRAMED_LENGTH = 16 * 1024 * 1024;
+
+	private WireFormat() {
+		// hidden constructor
+	}
+
+	/**
+	 * Writes a number which is usually small and not negative. Negative
+	 * numbers take ten bytes.
+	 * 
+	 * @param out
+	 *            output to write to.
+	 * @param value
+	 *            number to write.
+	 * @throws IOException
+	 *             if writing to the output fails.
+	 */
+	public static void writeVarLong(DataOutput out, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	/**
+	 * Reads a number written by {@link #writeVarLong(DataOutput, long)}.
+	 * 
+	 * @param in
+	 *            input to read from.
+	 * @return number read.
+	 * @throws IOException
+	 *             if reading from the input fails, or the number is malformed.
+	 */
+	public static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new StreamCorruptedException("Malformed variable length number");
+	}
+
+	/**
+	 * Writes a number which may be small and negative, such as -1 for an
+	 * entity not stored in the database. The sign is moved to the lowest bit,
+	 * so small negative numbers take a single byte too.
+	 * 
+	 * @param out
+	 *            output to write to.
+	 * @param value
+	 *            number to write.
+	 * @throws IOException
+	 *             if writing to the output fails.
+	 */
+	public static void writeSignedVarLong(DataOutput out, long value)
+			throws IOException {
+		writeVarLong(out, (value << 1) ^ (value >> 63));
+	}
+
+	/**
+	 * Reads a number written by
+	 * {@link #writeSignedVarLong(DataOutput, long)}.
+	 * 
+	 * @param in
+	 *            input to read from.
+	 * @return number read.
+	 * @throws IOException
+	 *             if reading from the input fails, or the number is malformed.
+	 */
+	public static long readSignedVarLong(DataInput in) throws IOException {
+		long value = readVarLong(in);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * Writes a string, possibly null, as its length in bytes plus one (zero
+	 * meaning null) followed by the bytes.
+	 * 
+	 * @param out
+	 *            output to write to.
+	 * @param value
+	 *            string to write.
+	 * @throws IOException
+	 *             if writing to the output fails.
+	 */
+	public static void writeString(DataOutput out, String value)
+			throws IOException {
+		if (value == null) {
+			writeVarLong(out, 0);
+			return;
+		}
+		if (isAscii(value)) {
+			writeVarLong(out, value.length() + 1);
+			out.writeBytes(value);
+		} else {
+			byte[] bytes = value.getBytes(UTF_8);
+			writeVarLong(out, bytes.length + 1);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutput, String)}.
+	 * 
+	 * @param in
+	 *            input to read from.
+	 * @return string read, possibly null.
+	 * @throws IOException
+	 *             if reading from the input fails, or the string is malformed.
+	 */
+	public static String readString(DataInput in) throws IOException {
+		long length = readVarLong(in) - 1;
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[checkLength(in, length, 1)];
+		in.readFully(bytes);
+		return decode(bytes);
+	}
+
+	/**
+	 * Reads the number of elements, or bytes, which follow in the input. When
+	 * reading a {@link FrameInputStream} the elements must fit in the bytes
+	 * left in the frame, so that a malformed or hostile frame cannot make the
+	 * reader allocate more memory than the frame takes; other inputs are
+	 * limited to a fixed maximum.
+	 * 
+	 * @param in
+	 *            input to read from.
+	 * @param minBytesEach
+	 *            smallest number of bytes a single element takes.
+	 * @return number of elements read.
+	 * @throws IOException
+	 *             if reading from the input fails, or the elements cannot fit
+	 *             in the input.
+	 */
+	public static int readLength(DataInput in, int minBytesEach)
+			throws IOException {
+		return checkLength(in, readVarLong(in), minBytesEach);
+	}
+
+	private static int checkLength(DataInput in, long length, int minBytesEach)
+			throws StreamCorruptedException {
+		long limit = MAX_UNFRAMED_LENGTH;
+		if (in instanceof FrameInputStream) {
+			limit = ((FrameInputStream) in).remaining() / minBytesEach;
+		}
+		if (length < 0 || length > limit) {
+			throw new StreamCorruptedException("Invalid length " + length);
+		}
+		return (int) length;
+	}
+
+	private static boolean isAscii(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) > 0x7F) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String decode(byte[] bytes)
+			throws UnsupportedEncodingException {
+		char[] chars = new char[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] < 0) {
+				// not plain ASCII
+				return new String(bytes, UTF_8);
+			}
+			chars[i] = (char) bytes[i];
+		}
+		return new String(chars);
+	}
+}
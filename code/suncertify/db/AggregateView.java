@@ -0,0 +1,101 @@
+package suncertify.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Materialized aggregate counting database records grouped by the value of a
+ * single field. The view is built once from the database file and then kept
+ * up to date by {@link Data} on every create, update and delete, so reading
+ * it costs time proportional to the number of groups rather than to the
+ * number of records.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class AggregateView {
+
+	/**
+	 * Separator of the values in a multi valued field.
+	 */
+	private static final String VALUE_SEPARATOR = ",";
+
+	private final int groupField;
+	private final boolean multiValued;
+	private final int blankField;
+	private final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+	/**
+	 * Creates an empty view.
+	 * 
+	 * @param groupField
+	 *            index of the field records are grouped by.
+	 * @param multiValued
+	 *            true if the group field holds a comma separated list of
+	 *            values, and a record is to be counted in the group of each
+	 *            of them.
+	 * @param blankField
+	 *            index of the field which has to be blank for the record to be
+	 *            counted. -1 counts all records.
+	 */
+	AggregateView(int groupField, boolean multiValued, int blankField) {
+		this.groupField = groupField;
+		this.multiValued = multiValued;
+		this.blankField = blankField;
+	}
+
+	/**
+	 * Includes a record in the aggregate.
+	 * 
+	 * @param record
+	 *            values of the record.
+	 */
+	synchronized void add(String[] record) {
+		update(record, 1);
+	}
+
+	/**
+	 * Excludes a record from the aggregate.
+	 * 
+	 * @param record
+	 *            values of the record.
+	 */
+	synchronized void remove(String[] record) {
+		update(record, -1);
+	}
+
+	private void update(String[] record, int delta) {
+		if (blankField != -1 && record[blankField] != null
+				&& record[blankField].trim().length() > 0) {
+			return;
+		}
+		String value = record[groupField] == null ? "" : record[groupField];
+		if (multiValued) {
+			for (String v : value.split(VALUE_SEPARATOR)) {
+				updateGroup(v.trim(), delta);
+			}
+		} else {
+			updateGroup(value.trim(), delta);
+		}
+	}
+
+	private void updateGroup(String group, int delta) {
+		Integer count = counts.get(group);
+		int newCount = (count == null ? 0 : count) + delta;
+		if (newCount > 0) {
+			counts.put(group, newCount);
+		} else {
+			counts.remove(group);
+		}
+	}
+
+	/**
+	 * Current counts of the records in each group.
+	 * 
+	 * @return a copy of the counts sorted by the group value.
+	 */
+	public synchronized Map<String, Integer> getCounts() {
+		return new TreeMap<String, Integer>(counts);
+	}
+}
@@ -0,0 +1,168 @@
+package suncertify.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * BK-tree index of the values of a single field, answering which records have
+ * a value within a given edit (Levenshtein) distance from a searched value.
+ * Values are compared case insensitively, and a null value as an empty one.
+ * A search visits only the subtrees which, by the triangle inequality, may
+ * contain values close enough, so it does not need to compare the searched
+ * value with every indexed value.
+ * <p/>
+ * Removing a record only removes its number from the node of its value; the
+ * node itself stays in the tree to route searches to its children.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class BkTreeIndex {
+
+	private Node root;
+
+	/**
+	 * Adds a record with the given value to the index.
+	 * 
+	 * @param value
+	 *            value of the indexed field.
+	 * @param recNo
+	 *            number of the record.
+	 */
+	synchronized void add(String value, long recNo) {
+		String key = keyOf(value);
+		if (root == null) {
+			root = new Node(key);
+		}
+		Node node = root;
+		while (true) {
+			int distance = distance(key, node.value);
+			if (distance == 0) {
+				node.recNos.add(recNo);
+				return;
+			}
+			Node child = node.children.get(distance);
+			if (child == null) {
+				child = new Node(key);
+				child.recNos.add(recNo);
+				node.children.put(distance, child);
+				return;
+			}
+			node = child;
+		}
+	}
+
+	/**
+	 * Removes a record with the given value from the index.
+	 * 
+	 * @param value
+	 *            value of the indexed field.
+	 * @param recNo
+	 *            number of the record.
+	 */
+	synchronized void remove(String value, long recNo) {
+		String key = keyOf(value);
+		Node node = root;
+		while (node != null) {
+			int distance = distance(key, node.value);
+			if (distance == 0) {
+				node.recNos.remove(recNo);
+				return;
+			}
+			node = node.children.get(distance);
+		}
+	}
+
+	/**
+	 * Finds records whose value is within the given edit distance from the
+	 * searched value.
+	 * 
+	 * @param value
+	 *            searched value.
+	 * @param maxDistance
+	 *            maximum edit distance.
+	 * @return numbers of the found records, the closest first.
+	 */
+	synchronized long[] find(String value, int maxDistance) {
+		String key = keyOf(value);
+		// found record numbers grouped by the distance
+		TreeMap<Integer, TreeSet<Long>> found = new TreeMap<Integer, TreeSet<Long>>();
+		List<Node> toVisit = new ArrayList<Node>();
+		if (root != null) {
+			toVisit.add(root);
+		}
+		while (!toVisit.isEmpty()) {
+			Node node = toVisit.remove(toVisit.size() - 1);
+			int distance = distance(key, node.value);
+			if (distance <= maxDistance && !node.recNos.isEmpty()) {
+				TreeSet<Long> recNos = found.get(distance);
+				if (recNos == null) {
+					recNos = new TreeSet<Long>();
+					found.put(distance, recNos);
+				}
+				recNos.addAll(node.recNos);
+			}
+			for (Map.Entry<Integer, Node> e : node.children.entrySet()) {
+				if (Math.abs(e.getKey() - distance) <= maxDistance) {
+					toVisit.add(e.getValue());
+				}
+			}
+		}
+		List<Long> result = new ArrayList<Long>();
+		for (TreeSet<Long> recNos : found.values()) {
+			result.addAll(recNos);
+		}
+		long[] array = new long[result.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = result.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * Key a value is indexed and searched by: lower case, and empty for null.
+	 */
+	private static String keyOf(String value) {
+		return value == null ? "" : value.toLowerCase();
+	}
+
+	/**
+	 * Levenshtein distance between two strings.
+	 */
+	static int distance(String s1, String s2) {
+		int[] previous = new int[s2.length() + 1];
+		int[] current = new int[s2.length() + 1];
+		for (int j = 0; j <= s2.length(); j++) {
+			previous[j] = j;
+		}
+		for (int i = 1; i <= s1.length(); i++) {
+			current[0] = i;
+			for (int j = 1; j <= s2.length(); j++) {
+				int cost = s1.charAt(i - 1) == s2.charAt(j - 1) ? 0 : 1;
+				current[j] = Math.min(Math.min(current[j - 1] + 1,
+						previous[j] + 1), previous[j - 1] + cost);
+			}
+			int[] tmp = previous;
+			previous = current;
+			current = tmp;
+		}
+		return previous[s2.length()];
+	}
+
+	/**
+	 * Node of the tree holding a distinct value and the records having it.
+	 */
+	private static class Node {
+		private final String value;
+		private final TreeSet<Long> recNos = new TreeSet<Long>();
+		private final Map<Integer, Node> children = new HashMap<Integer, Node>();
+
+		private Node(String value) {
+			this.value = value;
+		}
+	}
+}
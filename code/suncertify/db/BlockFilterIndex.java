@@ -0,0 +1,103 @@
+package suncertify.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Index telling which blocks of records cannot match search criteria. Records
+ * are divided into blocks of fixed size and for each block and each field a
+ * {@link BloomFilter} of the value prefixes is kept. A block whose filter does
+ * not contain the prefix of a criteria value has no record starting with that
+ * value, so a scan can skip the block without reading it.
+ * <p/>
+ * Values are only ever added to the filters. Values replaced by an update or
+ * removed by a delete stay in the filter, which may make a block be read in
+ * vain but never makes a matching record be skipped.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class BlockFilterIndex {
+
+	/**
+	 * Number of records in a block.
+	 */
+	static final int BLOCK_SIZE = 64;
+
+	/**
+	 * Length of the longest prefix added to the filters. Longer criteria
+	 * values are checked by their prefix of this length.
+	 */
+	private static final int PREFIX_LENGTH = 3;
+	private static final int FILTER_BITS = 2048;
+	private static final int FILTER_HASHES = 3;
+
+	private final int numFields;
+	private final List<BloomFilter[]> blocks = new ArrayList<BloomFilter[]>();
+
+	/**
+	 * Creates an empty index.
+	 * 
+	 * @param numFields
+	 *            number of fields in a record.
+	 */
+	BlockFilterIndex(int numFields) {
+		this.numFields = numFields;
+	}
+
+	/**
+	 * Adds values of a record to the filters of its block.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @param record
+	 *            values of the record.
+	 */
+	synchronized void add(long recNo, String[] record) {
+		int block = (int) (recNo / BLOCK_SIZE);
+		while (blocks.size() <= block) {
+			BloomFilter[] filters = new BloomFilter[numFields];
+			for (int i = 0; i < numFields; i++) {
+				filters[i] = new BloomFilter(FILTER_BITS, FILTER_HASHES);
+			}
+			blocks.add(filters);
+		}
+		BloomFilter[] filters = blocks.get(block);
+		for (int i = 0; i < numFields; i++) {
+			String value = record[i];
+			int length = Math.min(PREFIX_LENGTH, value.length());
+			for (int j = 1; j <= length; j++) {
+				filters[i].add(value.substring(0, j));
+			}
+		}
+	}
+
+	/**
+	 * Tells whether the block might contain a record whose values start with
+	 * the criteria values.
+	 * 
+	 * @param block
+	 *            number of the block.
+	 * @param criteria
+	 *            criteria values, null matches any value.
+	 * @return false if no record in the block matches the criteria, true if
+	 *         some might.
+	 */
+	synchronized boolean mightMatch(int block, String[] criteria) {
+		if (block >= blocks.size()) {
+			return true;
+		}
+		BloomFilter[] filters = blocks.get(block);
+		for (int i = 0; i < criteria.length && i < numFields; i++) {
+			String crit = criteria[i];
+			if (crit != null && crit.length() > 0) {
+				String prefix = crit.substring(0, Math.min(PREFIX_LENGTH, crit
+						.length()));
+				if (!filters[i].mightContain(prefix)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
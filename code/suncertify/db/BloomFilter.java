@@ -0,0 +1,78 @@
+package suncertify.db;
+
+/**
+ * Simple Bloom filter of strings. Tells for sure that a string was never added
+ * to the filter, or that it probably was. Strings cannot be removed from the
+ * filter.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class BloomFilter {
+
+	private final long[] bits;
+	private final int numBits;
+	private final int numHashes;
+
+	/**
+	 * Creates an empty filter.
+	 * 
+	 * @param numBits
+	 *            size of the filter in bits, rounded up to a multiple of 64.
+	 * @param numHashes
+	 *            number of bits set for each added string.
+	 */
+	BloomFilter(int numBits, int numHashes) {
+		this.bits = new long[(numBits + 63) / 64];
+		this.numBits = bits.length * 64;
+		this.numHashes = numHashes;
+	}
+
+	/**
+	 * Adds a string to the filter.
+	 * 
+	 * @param value
+	 *            string to be added.
+	 */
+	void add(String value) {
+		int h1 = value.hashCode();
+		int h2 = secondHash(value);
+		for (int i = 0; i < numHashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Tells whether the string might have been added to the filter.
+	 * 
+	 * @param value
+	 *            string to be checked.
+	 * @return false if the string was definitely never added, true if it
+	 *         probably was.
+	 */
+	boolean mightContain(String value) {
+		int h1 = value.hashCode();
+		int h2 = secondHash(value);
+		for (int i = 0; i < numHashes; i++) {
+			int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+			if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * FNV-1a hash of the string, independent of {@link String#hashCode()}.
+	 */
+	private static int secondHash(String value) {
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x01000193;
+		}
+		// odd, so that the probed bits differ for all hashes
+		return hash | 1;
+	}
+}
@@ -0,0 +1,131 @@
+package suncertify.db;
+
+/**
+ * Single modification of a database record published by the
+ * {@link ChangeFeed}: the record number, the operation and the values of the
+ * record before and after it.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class ChangeEvent {
+
+	/**
+	 * Kind of the modification.
+	 */
+	public enum Operation {
+		/**
+		 * Record was created, there are no values before it.
+		 */
+		CREATE,
+		/**
+		 * Record was updated.
+		 */
+		UPDATE,
+		/**
+		 * Record was deleted, there are no values after it.
+		 */
+		DELETE
+	}
+
+	private final long sequence;
+	private final long recNo;
+	private final long recordVersion;
+	private final String[] before;
+	private final String[] after;
+
+	/**
+	 * Creates an event.
+	 * 
+	 * @param sequence
+	 *            database version made by the modification.
+	 * @param recNo
+	 *            number of the modified record.
+	 * @param recordVersion
+	 *            version of the record after the modification.
+	 * @param before
+	 *            values of the record before the modification, null if it was
+	 *            created.
+	 * @param after
+	 *            values of the record after the modification, null if it was
+	 *            deleted.
+	 */
+	ChangeEvent(long sequence, long recNo, long recordVersion,
+			String[] before, String[] after) {
+		this.sequence = sequence;
+		this.recNo = recNo;
+		this.recordVersion = recordVersion;
+		this.before = before;
+		this.after = after;
+	}
+
+	/**
+	 * Sequence number of the event, which is the database version made by
+	 * the modification (see {@link Data#getVersion()}). Events are published
+	 * in the order of their sequence numbers.
+	 * 
+	 * @return sequence number of the event.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Number of the modified record.
+	 * 
+	 * @return number of the modified record.
+	 */
+	public long getRecNo() {
+		return recNo;
+	}
+
+	/**
+	 * Version of the record after the modification, the one it is read with
+	 * afterwards (see {@link VersionedRecord#getVersion()}).
+	 * 
+	 * @return version of the record after the modification.
+	 */
+	public long getRecordVersion() {
+		return recordVersion;
+	}
+
+	/**
+	 * Kind of the modification.
+	 * 
+	 * @return kind of the modification.
+	 */
+	public Operation getOperation() {
+		if (before == null) {
+			return Operation.CREATE;
+		}
+		return after == null ? Operation.DELETE : Operation.UPDATE;
+	}
+
+	/**
+	 * Values of the record before the modification. The array is shared by
+	 * all the listeners and must not be modified.
+	 * 
+	 * @return values of the record before the modification, null if it was
+	 *         created.
+	 */
+	public String[] getBefore() {
+		return before;
+	}
+
+	/**
+	 * Values of the record after the modification, as stored in the database
+	 * file. The array is shared by all the listeners and must not be
+	 * modified.
+	 * 
+	 * @return values of the record after the modification, null if it was
+	 *         deleted.
+	 */
+	public String[] getAfter() {
+		return after;
+	}
+
+	@Override
+	public String toString() {
+		return "#" + sequence + " " + getOperation() + " " + recNo;
+	}
+}
@@ -0,0 +1,273 @@
+package suncertify.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import suncertify.common.Log;
+
+/**
+ * Bounded ring buffer of the most recent {@link ChangeEvent}s, delivered to
+ * the subscribed {@link ChangeFeedListener}s. Each subscriber has its own
+ * position in the buffer and its own delivery thread, so a slow listener
+ * does not delay the others.
+ * <p/>
+ * The buffer is shared by all the subscribers: an event stays in it until
+ * every subscriber has received it. When the buffer is full, the writers wait
+ * for the slowest subscriber, but at most the publish timeout; subscribers
+ * still lagging behind then are overrun: dropped and notified with
+ * {@link ChangeFeedListener#overrun()}. This way a stuck listener can slow
+ * the writers down, but never stop them.
+ * <p/>
+ * While nobody is subscribed, publishing costs a single volatile read and no
+ * event is created.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class ChangeFeed {
+
+	private final ChangeEvent[] events;
+	private final long publishTimeoutNanos;
+	private final Lock lock = new ReentrantLock();
+	/*
+	 * signalled when an event was published or a subscriber was cancelled
+	 */
+	private final Condition published = lock.newCondition();
+	/*
+	 * signalled when a subscriber received an event or was cancelled
+	 */
+	private final Condition consumed = lock.newCondition();
+	private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+	private volatile boolean subscribed;
+	/*
+	 * number of the events published so far, the position of the next one
+	 */
+	private long tail;
+
+	/**
+	 * Creates an empty feed.
+	 * 
+	 * @param capacity
+	 *            number of the events a subscriber may lag behind.
+	 * @param publishTimeout
+	 *            maximum time a writer waits for the slowest subscriber when
+	 *            the buffer is full.
+	 * @param unit
+	 *            unit of the timeout.
+	 */
+	ChangeFeed(int capacity, long publishTimeout, TimeUnit unit) {
+		this.events = new ChangeEvent[capacity];
+		this.publishTimeoutNanos = unit.toNanos(publishTimeout);
+	}
+
+	/**
+	 * Subscribes a listener to the events published from now on, starting its
+	 * delivery thread.
+	 * 
+	 * @param listener
+	 *            listener to subscribe.
+	 */
+	void subscribe(ChangeFeedListener listener) {
+		lock.lock();
+		try {
+			Subscriber subscriber = new Subscriber(listener, tail);
+			subscribers.add(subscriber);
+			subscribed = true;
+			Thread thread = new Thread(subscriber, "db-change-feed");
+			thread.setDaemon(true);
+			thread.start();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Unsubscribes a listener. Events already taken by its delivery thread
+	 * may still be delivered.
+	 * 
+	 * @param listener
+	 *            listener to unsubscribe.
+	 */
+	void unsubscribe(ChangeFeedListener listener) {
+		lock.lock();
+		try {
+			for (Subscriber subscriber : new ArrayList<Subscriber>(
+					subscribers)) {
+				if (subscriber.listener == listener) {
+					cancel(subscriber);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until there is room for an event in the buffer, at most the
+	 * publish timeout, and overruns the lagging subscribers if there is
+	 * still none. Called by the writers before a modification, so that they
+	 * wait without holding the lock of the modification log. Returns at once
+	 * if nobody is subscribed.
+	 */
+	void awaitCapacity() {
+		if (!subscribed) {
+			return;
+		}
+		lock.lock();
+		try {
+			long deadline = System.nanoTime() + publishTimeoutNanos;
+			while (isFull()) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					overrunLagging();
+					return;
+				}
+				try {
+					consumed.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					overrunLagging();
+					return;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Publishes an event of a modification. Called in the order of the
+	 * modifications, so never waits: if concurrent writers filled the buffer
+	 * since {@link #awaitCapacity()}, the lagging subscribers are overrun at
+	 * once. Does nothing if nobody is subscribed.
+	 * 
+	 * @param sequence
+	 *            database version made by the modification.
+	 * @param recNo
+	 *            number of the modified record.
+	 * @param recordVersion
+	 *            version of the record after the modification.
+	 * @param before
+	 *            values of the record before the modification, null if it was
+	 *            created.
+	 * @param after
+	 *            values of the record after the modification, null if it was
+	 *            deleted.
+	 */
+	void publish(long sequence, long recNo, long recordVersion,
+			String[] before, String[] after) {
+		if (!subscribed) {
+			return;
+		}
+		ChangeEvent event = new ChangeEvent(sequence, recNo, recordVersion,
+				before, after);
+		lock.lock();
+		try {
+			if (isFull()) {
+				overrunLagging();
+			}
+			events[(int) (tail % events.length)] = event;
+			tail++;
+			published.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Tells whether the slowest subscriber is a whole buffer behind. Called
+	 * while holding the lock.
+	 */
+	private boolean isFull() {
+		for (Subscriber subscriber : subscribers) {
+			if (tail - subscriber.next >= events.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Cancels the subscribers whose next event is about to be overwritten.
+	 * Called while holding the lock.
+	 */
+	private void overrunLagging() {
+		for (Subscriber subscriber : new ArrayList<Subscriber>(subscribers)) {
+			if (tail - subscriber.next >= events.length) {
+				subscriber.overrun = true;
+				cancel(subscriber);
+			}
+		}
+	}
+
+	/**
+	 * Removes a subscriber and wakes its delivery thread up, so that it ends.
+	 * Called while holding the lock.
+	 */
+	private void cancel(Subscriber subscriber) {
+		subscriber.cancelled = true;
+		subscribers.remove(subscriber);
+		subscribed = !subscribers.isEmpty();
+		published.signalAll();
+		consumed.signalAll();
+	}
+
+	/**
+	 * Position of a listener in the buffer, and the task delivering it the
+	 * events.
+	 */
+	private class Subscriber implements Runnable {
+
+		private final ChangeFeedListener listener;
+		/*
+		 * guarded by the lock of the feed
+		 */
+		private long next;
+		private boolean cancelled;
+		private boolean overrun;
+
+		private Subscriber(ChangeFeedListener listener, long next) {
+			this.listener = listener;
+			this.next = next;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				ChangeEvent event;
+				lock.lock();
+				try {
+					while (!cancelled && next == tail) {
+						published.awaitUninterruptibly();
+					}
+					if (cancelled) {
+						break;
+					}
+					event = events[(int) (next % events.length)];
+				} finally {
+					lock.unlock();
+				}
+				try {
+					listener.changed(event);
+				} catch (RuntimeException e) {
+					Log.warn("Change feed listener %s failed on %s",
+							listener, event, e);
+				}
+				lock.lock();
+				try {
+					next++;
+					consumed.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+			if (overrun) {
+				listener.overrun();
+			}
+		}
+	}
+}
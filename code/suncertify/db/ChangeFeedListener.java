@@ -0,0 +1,30 @@
+package suncertify.db;
+
+/**
+ * Listener of the modifications of the database, subscribed with
+ * {@link Data#subscribe(ChangeFeedListener)}. Each listener is called by a
+ * thread of its own, one event at a time, in the order of the event
+ * sequence numbers.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public interface ChangeFeedListener {
+
+	/**
+	 * Notifies the listener of a modification. The modification is already
+	 * visible to the readers of the database.
+	 * 
+	 * @param event
+	 *            the modification.
+	 */
+	void changed(ChangeEvent event);
+
+	/**
+	 * Notifies the listener that it fell behind so far that events it has not
+	 * received were dropped from the feed. The listener is unsubscribed; to
+	 * continue it has to subscribe again and catch up with the database some
+	 * other way, e.g. by reading a snapshot.
+	 */
+	void overrun();
+}
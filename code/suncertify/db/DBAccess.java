@@ -1,5 +1,7 @@
 package suncertify.db;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Inner database interface exposing create, update, delete find functionalities
  * as well as lock / unlock for data modification.
@@ -112,4 +114,48 @@ public interface DBAccess {
 	 *             if row recNo was locked with different cookie.
 	 */
 	public void unlock(long recNo, long cookie) throws SecurityException;
+
+	/**
+	 * Locks a record so that it can only be updated or deleted by this client.
+	 * Behaves like {@link #lockRecord(long)}, but if the record is already
+	 * locked by a different client it does not wait at all.
+	 * 
+	 * @param recNo
+	 *            number of record to lock
+	 * @return cookie that must be used when the record is unlocked, updated, or
+	 *         deleted.
+	 * @throws RecordNotFoundException
+	 *             if there is no record at recNo position, or it is marked as
+	 *             deleted.
+	 * @throws LockTimeoutException
+	 *             if the record is locked by a different client.
+	 */
+	public long tryLockRecord(long recNo) throws RecordNotFoundException,
+			LockTimeoutException;
+
+	/**
+	 * Locks a record so that it can only be updated or deleted by this client.
+	 * Behaves like {@link #lockRecord(long)}, but if the record is already
+	 * locked by a different client the current thread waits for at most the
+	 * given time, and the wait can be interrupted.
+	 * 
+	 * @param recNo
+	 *            number of record to lock
+	 * @param timeout
+	 *            maximum time to wait for the record to be unlocked.
+	 * @param unit
+	 *            unit of the timeout.
+	 * @return cookie that must be used when the record is unlocked, updated, or
+	 *         deleted.
+	 * @throws RecordNotFoundException
+	 *             if there is no record at recNo position, or it is marked as
+	 *             deleted.
+	 * @throws LockTimeoutException
+	 *             if the record was not unlocked within the given time.
+	 * @throws InterruptedException
+	 *             if the current thread was interrupted while waiting.
+	 */
+	public long lockRecord(long recNo, long timeout, TimeUnit unit)
+			throws RecordNotFoundException, LockTimeoutException,
+			InterruptedException;
 }
@@ -2,14 +2,20 @@ package suncertify.db;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Condition;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import suncertify.common.AppProperties;
+import suncertify.common.Log;
 import suncertify.db.file.DbFileHandler;
 import suncertify.db.file.MetaData;
 import suncertify.db.file.Record;
@@ -23,11 +29,52 @@ import suncertify.db.file.Record;
  */
 public class Data implements DBAccess {
 
+	/**
+	 * Number of the most recent modifications kept in the modification log.
+	 */
+	private static final int MODIFICATION_LOG_CAPACITY = 1024;
+
+	/**
+	 * Number of the change events a subscriber of the change feed may lag
+	 * behind.
+	 */
+	private static final int CHANGE_FEED_CAPACITY = 1024;
+
+	/**
+	 * Maximum time in milliseconds a modification waits for the slowest
+	 * subscriber of the full change feed before the subscriber is overrun.
+	 */
+	private static final long CHANGE_FEED_TIMEOUT = 100;
+
 	private final DbFileHandler fileHandler = new DbFileHandler(AppProperties
 			.get(AppProperties.DB_FILENAME));
-	private final Map<Long, Long> lockedRows = new HashMap<Long, Long>();
-	private final Lock lock = new ReentrantLock();
-	private final Condition lockReleased = lock.newCondition();
+	private final RecordStamps recordStamps = new RecordStamps();
+	private final LockManager lockManager = new LockManager(AppProperties
+			.getLong(AppProperties.LOCK_LEASE), TimeUnit.MILLISECONDS,
+			AppProperties.getBoolean(AppProperties.LOCK_FAIR));
+
+	/*
+	 * serializes creation of records, so that two records are never written
+	 * to the same empty slot
+	 */
+	private final Lock createLock = new ReentrantLock();
+
+	/*
+	 * modifications hold the read lock while writing a record and updating
+	 * the in-memory views, building a new view holds the write lock, so that
+	 * no modification is lost or counted twice; a batch update holds the
+	 * write lock too, so that no other modification interleaves with it
+	 */
+	private final ReadWriteLock viewsLock = new ReentrantReadWriteLock();
+	private final Map<String, AggregateView> aggregates = new ConcurrentHashMap<String, AggregateView>();
+	private volatile BlockFilterIndex blockFilterIndex;
+	private final Map<Integer, BkTreeIndex> bkTreeIndexes = new ConcurrentHashMap<Integer, BkTreeIndex>();
+	private final ChangeFeed changeFeed = new ChangeFeed(
+			CHANGE_FEED_CAPACITY, CHANGE_FEED_TIMEOUT, TimeUnit.MILLISECONDS);
+	private final ModificationLog modificationLog = new ModificationLog(
+			MODIFICATION_LOG_CAPACITY, changeFeed);
+	private final VersionStore versionStore = new VersionStore(
+			modificationLog);
 
 	/*
 	 * protected access for test purposes
@@ -54,28 +101,97 @@ public class Data implements DBAccess {
 
 	@Override
 	public long createRecord(String[] data) throws DuplicateKeyException {
-		return fileHandler.writeRecord(data);
+		viewsLock.readLock().lock();
+		createLock.lock();
+		try {
+			long recNo = fileHandler.getFirstEmptySlot();
+			recordStamps.beginWrite(recNo);
+			try {
+				fileHandler.writeRecord(recNo, data);
+				recordChanged(recNo, null, readStored(recNo));
+			} finally {
+				recordStamps.endWrite(recNo);
+			}
+			return recNo;
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to create a record", e);
+		} finally {
+			createLock.unlock();
+			viewsLock.readLock().unlock();
+		}
 	}
 
 	@Override
 	public void deleteRecord(long recNo, long lockCookie)
 			throws RecordNotFoundException, SecurityException {
 		checkLock(recNo, lockCookie);
-		if (!fileHandler.markAsDeleted(recNo)) {
-			throw new RecordNotFoundException("Failed to delete record "
-					+ recNo);
+		viewsLock.readLock().lock();
+		recordStamps.beginWrite(recNo);
+		boolean deleted = false;
+		try {
+			String[] before = readCurrent(recNo);
+			if (!fileHandler.markAsDeleted(recNo)) {
+				throw new RecordNotFoundException("Failed to delete record "
+						+ recNo);
+			}
+			deleted = true;
+			recordChanged(recNo, before, null);
+		} finally {
+			finishWrite(recNo, deleted);
+			viewsLock.readLock().unlock();
 		}
 	}
 
+	/**
+	 * {@inheritDoc} The search is run on a snapshot of the database opened
+	 * when it starts, see {@link #findByCriteria(String[], Snapshot)}.
+	 */
 	@Override
 	public long[] findByCriteria(String[] criteria) {
+		Snapshot snapshot = openSnapshot();
+		try {
+			return findByCriteria(criteria, snapshot);
+		} finally {
+			snapshot.release();
+		}
+	}
+
+	/**
+	 * Returns an array of record numbers that match the specified criteria as
+	 * the records were at the version of the given snapshot. Records modified
+	 * during the search are matched in their state from the snapshot, so the
+	 * result never mixes states from different points in time, and the search
+	 * does not block writers. Blocks of records which according to the block
+	 * filter index contain no matching record are skipped without being read.
+	 * 
+	 * @param criteria
+	 *            search criteria, see {@link #findByCriteria(String[])}.
+	 * @param snapshot
+	 *            snapshot to search.
+	 * @return numbers of records matching the criteria in the snapshot.
+	 */
+	public long[] findByCriteria(String[] criteria, Snapshot snapshot) {
 		List<Long> result = new ArrayList<Long>();
-		long i = 0;
-		Record r = null;
-		// read all
-		do {
-			r = fileHandler.readRecord(i);
-			if (r != null && !r.isDeleted()) {
+		BlockFilterIndex index;
+		long count;
+		try {
+			index = getBlockFilterIndex(fileHandler.getMetaData()
+					.getNumberOfFields());
+			count = fileHandler.getRecordCount();
+		} catch (IOException e) {
+			Log.error("Failed to search the database file", e);
+			return new long[0];
+		}
+		for (long i = 0; i < count; i++) {
+			if (i % BlockFilterIndex.BLOCK_SIZE == 0
+					&& !index.mightMatch(
+							(int) (i / BlockFilterIndex.BLOCK_SIZE), criteria)) {
+				// no record in this block matches
+				i += BlockFilterIndex.BLOCK_SIZE - 1;
+				continue;
+			}
+			VersionedRecord r = readVisible(i, snapshot);
+			if (r != null) {
 				boolean matches = true;
 				for (int j = 0; j < criteria.length; j++) {
 					String crit = criteria[j];
@@ -89,11 +205,48 @@ public class Data implements DBAccess {
 					result.add(i);
 				}
 			}
-			i++;
-		} while (r != null);
+		}
 		return toArray(result);
 	}
 
+	/**
+	 * Returns the block filter index, building it by a full scan if it does
+	 * not exist yet.
+	 * 
+	 * @param numFields
+	 *            number of fields in a record.
+	 * @return block filter index of the database file.
+	 */
+	private BlockFilterIndex getBlockFilterIndex(int numFields) {
+		if (blockFilterIndex == null) {
+			viewsLock.writeLock().lock();
+			try {
+				if (blockFilterIndex == null) {
+					BlockFilterIndex index = new BlockFilterIndex(numFields);
+					long i = 0;
+					Record r = null;
+					while ((r = fileHandler.readRecord(i)) != null) {
+						if (!r.isDeleted()) {
+							index.add(i, r.getData());
+						}
+						i++;
+					}
+					// old versions may still be matched by open snapshots
+					for (Map.Entry<Long, List<String[]>> e : versionStore
+							.getOldValues().entrySet()) {
+						for (String[] values : e.getValue()) {
+							index.add(e.getKey(), values);
+						}
+					}
+					blockFilterIndex = index;
+				}
+			} finally {
+				viewsLock.writeLock().unlock();
+			}
+		}
+		return blockFilterIndex;
+	}
+
 	/**
 	 * Transforms a {@link List}<{@link Long}> to an array of primitive long
 	 * values.
@@ -113,28 +266,210 @@ public class Data implements DBAccess {
 
 	@Override
 	public long lockRecord(long recNo) throws RecordNotFoundException {
+		long cookie = lockManager.lock(recNo);
 		try {
-			lock.lock();
-			while (lockedRows.containsKey(recNo)) {
-				try {
-					lockReleased.await();
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+			// waits for an optimistic write to finish, tests if record exists
+			readVersionedRecord(recNo);
+		} catch (RecordNotFoundException e) {
+			unlockQuietly(recNo, cookie);
+			throw e;
+		}
+		return cookie;
+	}
+
+	@Override
+	public long tryLockRecord(long recNo) throws RecordNotFoundException,
+			LockTimeoutException {
+		try {
+			return lockRecord(recNo, 0, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e) {
+			// cannot happen, there is no waiting
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public long lockRecord(long recNo, long timeout, TimeUnit unit)
+			throws RecordNotFoundException, LockTimeoutException,
+			InterruptedException {
+		long cookie = lockManager.lock(recNo, timeout, unit);
+		try {
+			// waits for an optimistic write to finish, tests if record exists
+			readVersionedRecord(recNo);
+		} catch (RecordNotFoundException e) {
+			unlockQuietly(recNo, cookie);
+			throw e;
+		}
+		return cookie;
+	}
+
+	/**
+	 * Locks a set of records with a single cookie, so that they can only be
+	 * updated by this client. Records are locked in ascending order of their
+	 * numbers, which makes deadlocks between clients locking overlapping sets
+	 * impossible. Either all the records get locked or none.
+	 * 
+	 * @param recNos
+	 *            numbers of records to lock, in any order, duplicates allowed.
+	 * @param timeout
+	 *            maximum time to wait for the records to be unlocked.
+	 * @param unit
+	 *            unit of the timeout.
+	 * @return cookie that must be used when the records are unlocked or
+	 *         updated.
+	 * @throws RecordNotFoundException
+	 *             if any of the records does not exist, or is marked as
+	 *             deleted.
+	 * @throws LockTimeoutException
+	 *             if the records were not all unlocked within the given time.
+	 * @throws InterruptedException
+	 *             if the current thread was interrupted while waiting.
+	 */
+	public long lockRecords(long[] recNos, long timeout, TimeUnit unit)
+			throws RecordNotFoundException, LockTimeoutException,
+			InterruptedException {
+		long[] ordered = toOrderedSet(recNos);
+		long cookie = lockManager.lockAll(ordered, timeout, unit);
+		try {
+			for (long recNo : ordered) {
+				// waits for an optimistic write to finish, tests if exists
+				readVersionedRecord(recNo);
 			}
-			// tests if record still exists
+		} catch (RecordNotFoundException e) {
+			try {
+				unlockRecords(ordered, cookie);
+			} catch (SecurityException e1) {
+				// lease expired in the meantime, nothing to unlock
+			}
+			throw e;
+		}
+		return cookie;
+	}
+
+	/**
+	 * Releases the locks of a set of records locked with
+	 * {@link #lockRecords(long[], long, TimeUnit)}.
+	 * 
+	 * @param recNos
+	 *            numbers of the records to unlock.
+	 * @param cookie
+	 *            cookie returned when the records were locked.
+	 * @throws SecurityException
+	 *             if any of the records was locked with a different cookie.
+	 *             The other records are unlocked nevertheless.
+	 */
+	public void unlockRecords(long[] recNos, long cookie)
+			throws SecurityException {
+		SecurityException failure = null;
+		for (long recNo : toOrderedSet(recNos)) {
+			try {
+				lockManager.unlock(recNo, cookie);
+			} catch (SecurityException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Modifies the fields of a set of records locked with a single cookie.
+	 * The locks and the existence of all the records are checked before any
+	 * record is written, so either all the updates are applied or none. The
+	 * updates are applied in one critical section, excluding every other
+	 * modification, and the database version, the snapshots and the change
+	 * feed see them all at once.
+	 * 
+	 * @param updates
+	 *            update data for each record number, applied as in
+	 *            {@link #updateRecord(long, String[], long)}.
+	 * @param lockCookie
+	 *            cookie the records were locked with.
+	 * @throws RecordNotFoundException
+	 *             if any of the records does not exist, or is marked as
+	 *             deleted.
+	 * @throws SecurityException
+	 *             if any of the records is locked with a cookie other than
+	 *             lockCookie.
+	 */
+	public void updateRecords(Map<Long, String[]> updates, long lockCookie)
+			throws RecordNotFoundException, SecurityException {
+		for (long recNo : updates.keySet()) {
+			checkLock(recNo, lockCookie);
 			readRecord(recNo);
-			final Long cookie = System.nanoTime();
-			lockedRows.put(recNo, cookie);
-			return cookie;
+		}
+		viewsLock.writeLock().lock();
+		try {
+			// readers of any of the records wait for the whole batch
+			for (long recNo : updates.keySet()) {
+				recordStamps.beginWrite(recNo);
+			}
+			Set<Long> written = new HashSet<Long>();
+			modificationLog.beginBatch();
+			try {
+				for (Map.Entry<Long, String[]> update : updates.entrySet()) {
+					writeMerged(update.getKey(), update.getValue());
+					written.add(update.getKey());
+				}
+			} finally {
+				for (long recNo : updates.keySet()) {
+					finishWrite(recNo, written.contains(recNo));
+				}
+				modificationLog.endBatch();
+			}
 		} finally {
-			lock.unlock();
+			viewsLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Sorts record numbers ascending and removes duplicates.
+	 */
+	private static long[] toOrderedSet(long[] recNos) {
+		long[] sorted = recNos.clone();
+		Arrays.sort(sorted);
+		int size = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (i == 0 || sorted[i] != sorted[i - 1]) {
+				sorted[size++] = sorted[i];
+			}
 		}
+		return Arrays.copyOf(sorted, size);
 	}
 
+	/**
+	 * Unlocks a record which was just locked by the current thread.
+	 */
+	private void unlockQuietly(long recNo, long cookie) {
+		try {
+			lockManager.unlock(recNo, cookie);
+		} catch (SecurityException e) {
+			// cannot happen, the record was locked with this cookie
+			Log.error("Failed to unlock record %s", recNo, e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc} The read never blocks writers and never returns a record
+	 * which was being written at the same time, see
+	 * {@link #readVersionedRecord(long)}.
+	 */
 	@Override
 	public String[] readRecord(long recNo) throws RecordNotFoundException {
-		Record rec = fileHandler.readRecord(recNo);
+		return readVersionedRecord(recNo).getData();
+	}
+
+	/**
+	 * Reads a record without validating its version. Called with the write of
+	 * the record begun, so no other write can run in the meantime.
+	 */
+	private String[] readCurrent(long recNo) throws RecordNotFoundException {
+		return checkExists(recNo, fileHandler.readRecord(recNo));
+	}
+
+	private String[] checkExists(long recNo, Record rec)
+			throws RecordNotFoundException {
 		if (rec == null) {
 			throw new RecordNotFoundException(
 					"Could not find record at position " + recNo);
@@ -148,14 +483,35 @@ public class Data implements DBAccess {
 
 	@Override
 	public void unlock(long recNo, long cookie) throws SecurityException {
-		checkLock(recNo, cookie);
-		try {
-			lock.lock();
-			lockedRows.remove(recNo);
-			lockReleased.signalAll();
-		} finally {
-			lock.unlock();
-		}
+		lockManager.unlock(recNo, cookie);
+	}
+
+	/**
+	 * Renews the lease of a lock. Locks are leased for the time configured by
+	 * {@link AppProperties#LOCK_LEASE}; a lock which is neither released nor
+	 * renewed within that time expires and the record becomes available to
+	 * other clients. Clients holding a lock for longer must renew it.
+	 * 
+	 * @param recNo
+	 *            number of the locked record.
+	 * @param cookie
+	 *            cookie returned when the record was locked.
+	 * @throws SecurityException
+	 *             if the record is not locked with the cookie, or the lease
+	 *             has already expired.
+	 */
+	public void renewLock(long recNo, long cookie) throws SecurityException {
+		lockManager.renew(recNo, cookie);
+	}
+
+	/**
+	 * Statistics of record lock waits, see {@link AppProperties#LOCK_FAIR}
+	 * for the lock granting order.
+	 * 
+	 * @return live statistics of record lock waits.
+	 */
+	public LockStatistics getLockStatistics() {
+		return lockManager.getStatistics();
 	}
 
 	@Override
@@ -163,14 +519,435 @@ public class Data implements DBAccess {
 			throws RecordNotFoundException, SecurityException {
 		// throws security exception
 		checkLock(recNo, lockCookie);
+		viewsLock.readLock().lock();
+		recordStamps.beginWrite(recNo);
+		boolean written = false;
+		try {
+			writeMerged(recNo, updateData);
+			written = true;
+		} finally {
+			finishWrite(recNo, written);
+			viewsLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Modifies the fields of a record if the record was not modified since
+	 * the given version was read. The new value for field n appears in
+	 * data[n]; if data[n] is null the value stays unchanged. Does not take the
+	 * record lock and never waits for it: if the record is locked by a client
+	 * the update fails just like when the version does not match.
+	 * 
+	 * @param recNo
+	 *            number of the record to be updated.
+	 * @param updateData
+	 *            data array to be stored in the database.
+	 * @param expectedVersion
+	 *            version of the record the client has read, see
+	 *            {@link #readVersionedRecord(long)}.
+	 * @return the new version of the record.
+	 * @throws RecordNotFoundException
+	 *             if there is no record at recNo position, or it is marked as
+	 *             deleted.
+	 * @throws VersionConflictException
+	 *             if the record was modified since the expected version, or it
+	 *             is locked by a client.
+	 */
+	public long compareAndUpdateRecord(long recNo, String[] updateData,
+			long expectedVersion) throws RecordNotFoundException,
+			VersionConflictException {
+		viewsLock.readLock().lock();
+		try {
+			if (!recordStamps.tryBeginWrite(recNo, expectedVersion)) {
+				throw new VersionConflictException("Record " + recNo
+						+ " was modified since version " + expectedVersion);
+			}
+			boolean written = false;
+			try {
+				/*
+				 * checked after the write has begun, so that a client locking
+				 * the record from now on waits for this write to finish before
+				 * it reads the record
+				 */
+				if (lockManager.isLocked(recNo)) {
+					throw new VersionConflictException("Record " + recNo
+							+ " is locked by another client");
+				}
+				writeMerged(recNo, updateData);
+				written = true;
+			} finally {
+				finishWrite(recNo, written);
+			}
+			return expectedVersion + 1;
+		} finally {
+			viewsLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads a record along with its version. The values and the version are
+	 * consistent: no write of the record happened in between. The read is
+	 * optimistic: it does not lock anything, so it never blocks writers, but
+	 * validates the version after reading and retries if the record was
+	 * written in the meantime.
+	 * 
+	 * @param recNo
+	 *            number of record to be read.
+	 * @return values and version of the record.
+	 * @throws RecordNotFoundException
+	 *             when record at position recNo does not exist, or is marked as
+	 *             deleted.
+	 */
+	public VersionedRecord readVersionedRecord(long recNo)
+			throws RecordNotFoundException {
+		while (true) {
+			long version = recordStamps.awaitVersion(recNo);
+			Record rec = fileHandler.readRecord(recNo);
+			if (recordStamps.validate(recNo, version)) {
+				return new VersionedRecord(checkExists(recNo, rec), version);
+			}
+		}
+	}
+
+	/**
+	 * Opens a snapshot of the current database version. Reads through the
+	 * snapshot see the database as it is now, regardless of the modifications
+	 * made afterwards. The snapshot must be released when it is no longer
+	 * needed.
+	 * 
+	 * @return a new snapshot.
+	 */
+	public Snapshot openSnapshot() {
+		return versionStore.open();
+	}
+
+	/**
+	 * Reads a record along with its version as it was at the version of the
+	 * given snapshot.
+	 * 
+	 * @param recNo
+	 *            number of record to be read.
+	 * @param snapshot
+	 *            snapshot to read the record from.
+	 * @return values and version of the record in the snapshot.
+	 * @throws RecordNotFoundException
+	 *             when record at position recNo did not exist in the snapshot.
+	 */
+	public VersionedRecord readVersionedRecord(long recNo, Snapshot snapshot)
+			throws RecordNotFoundException {
+		VersionedRecord record = readVisible(recNo, snapshot);
+		if (record == null) {
+			throw new RecordNotFoundException("Record " + recNo
+					+ " did not exist at version " + snapshot.getVersion());
+		}
+		return record;
+	}
+
+	/**
+	 * Reads a record optimistically like {@link #readVersionedRecord(long)},
+	 * as it was at the version of the given snapshot.
+	 * 
+	 * @param recNo
+	 *            number of record to be read.
+	 * @param snapshot
+	 *            snapshot to read the record from.
+	 * @return the record, or null if there was no record on the position or
+	 *         it was deleted.
+	 */
+	private VersionedRecord readVisible(long recNo, Snapshot snapshot) {
+		while (true) {
+			long version = recordStamps.awaitVersion(recNo);
+			Record rec = fileHandler.readRecord(recNo);
+			VersionStore.RowVersion old = versionStore.find(recNo, snapshot
+					.getVersion());
+			if (recordStamps.validate(recNo, version)) {
+				if (old != null) {
+					return old.getRecord();
+				}
+				return rec == null || rec.isDeleted() ? null
+						: new VersionedRecord(rec.getData(), version);
+			}
+		}
+	}
+
+	/**
+	 * Writes a record merging the current values with the update data. Called
+	 * with the write of the record begun.
+	 */
+	private void writeMerged(long recNo, String[] updateData)
+			throws RecordNotFoundException {
 		// throws record not found exception
-		String[] record = readRecord(recNo);
+		String[] record = readCurrent(recNo);
+		String[] before = record.clone();
 		for (int i = 0; i < updateData.length; i++) {
 			if (updateData[i] != null) {
 				record[i] = updateData[i];
 			}
 		}
 		fileHandler.writeRecord(recNo, record);
+		recordChanged(recNo, before, readStored(recNo));
+	}
+
+	/**
+	 * Finishes a write of a record, incrementing its version if the record
+	 * was modified.
+	 */
+	private void finishWrite(long recNo, boolean modified) {
+		if (modified) {
+			recordStamps.endWrite(recNo);
+		} else {
+			recordStamps.abortWrite(recNo);
+		}
+	}
+
+	/**
+	 * Reads the values of a record as they were stored in the database file,
+	 * that is trimmed and truncated to the field lengths.
+	 * 
+	 * @param recNo
+	 *            number of the record to read.
+	 * @return values of the record.
+	 * @throws IllegalStateException
+	 *             if the record cannot be read from the database file.
+	 */
+	private String[] readStored(long recNo) {
+		Record record = fileHandler.readRecord(recNo);
+		if (record == null) {
+			throw new IllegalStateException("Failed to read record " + recNo
+					+ " from the database file");
+		}
+		return record.getData();
+	}
+
+	/**
+	 * Updates the in-memory views after a record was modified, keeps its
+	 * previous version for the open snapshots and publishes the modification
+	 * to the change feed. Called while holding viewsLock, with the write of the
+	 * record begun.
+	 * 
+	 * @param recNo
+	 *            number of the modified record.
+	 * @param before
+	 *            values of the record before modification, null if the record
+	 *            was created.
+	 * @param after
+	 *            values of the record after modification, null if the record
+	 *            was deleted.
+	 */
+	private void recordChanged(long recNo, String[] before, String[] after) {
+		long fieldMask;
+		if (before == null) {
+			fieldMask = ModificationLog.ALL_FIELDS;
+		} else if (after == null) {
+			fieldMask = ModificationLog.NO_FIELDS;
+		} else {
+			fieldMask = 0;
+			for (int i = 0; i < after.length; i++) {
+				if (!after[i].equals(before[i])) {
+					fieldMask |= ModificationLog.fieldBit(i);
+				}
+			}
+		}
+		if (after != null && blockFilterIndex != null) {
+			// before the new version is published, so that a snapshot of it
+			// never skips the block; the filter only gains bits, the old
+			// values still match it
+			blockFilterIndex.add(recNo, after);
+		}
+		long recordVersion = recordStamps.getVersion(recNo);
+		changeFeed.awaitCapacity();
+		long modification = modificationLog.append(recNo, fieldMask,
+				recordVersion + 1, before, after);
+		versionStore.add(recNo, modification, before == null ? null
+				: new VersionedRecord(before, recordVersion));
+		for (Map.Entry<Integer, BkTreeIndex> e : bkTreeIndexes.entrySet()) {
+			int field = e.getKey();
+			if (before != null) {
+				e.getValue().remove(before[field], recNo);
+			}
+			if (after != null) {
+				e.getValue().add(after[field], recNo);
+			}
+		}
+		for (AggregateView view : aggregates.values()) {
+			if (before != null) {
+				view.remove(before);
+			}
+			if (after != null) {
+				view.add(after);
+			}
+		}
+	}
+
+	/**
+	 * Finds the valid records whose value of the given field is within the
+	 * given edit distance from the searched value, ignoring case. The search
+	 * uses a BK-tree index of the field, built by a full scan on the first
+	 * call for the field and maintained on every modification.
+	 * 
+	 * @param field
+	 *            index of the searched field.
+	 * @param value
+	 *            searched value.
+	 * @param maxDistance
+	 *            maximum number of single character insertions, deletions or
+	 *            substitutions between the searched and the found value.
+	 * @return numbers of the found records, the closest matches first.
+	 */
+	public long[] findByEditDistance(int field, String value, int maxDistance) {
+		BkTreeIndex index = bkTreeIndexes.get(field);
+		if (index == null) {
+			viewsLock.writeLock().lock();
+			try {
+				index = bkTreeIndexes.get(field);
+				if (index == null) {
+					index = new BkTreeIndex();
+					long i = 0;
+					Record r = null;
+					while ((r = fileHandler.readRecord(i)) != null) {
+						if (!r.isDeleted()) {
+							index.add(r.getData()[field], i);
+						}
+						i++;
+					}
+					bkTreeIndexes.put(field, index);
+				}
+			} finally {
+				viewsLock.writeLock().unlock();
+			}
+		}
+		return index.find(value, maxDistance);
+	}
+
+	/**
+	 * Current version of the database. The version is incremented by every
+	 * create, update and delete; by a batch update at once, see
+	 * {@link #updateRecords(Map, long)}.
+	 * 
+	 * @return current version of the database.
+	 */
+	public long getVersion() {
+		return modificationLog.getVersion();
+	}
+
+	/**
+	 * Version of the last modification of a record, that is the database
+	 * version the create, update or delete of the record made.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @return version of the last modification of the record, or 0 if it was
+	 *         not modified since the database was opened.
+	 */
+	public long getLastModified(long recNo) {
+		return modificationLog.getLastModified(recNo);
+	}
+
+	/**
+	 * Returns the records created, updated or deleted after the given version
+	 * of the database. Unlike {@link #getModificationsSince(long)} works for
+	 * any version since the database was opened. Modifications up to the
+	 * version of a snapshot opened before the call are all included, so the
+	 * records read through the snapshot are the complete changes up to its
+	 * version.
+	 * 
+	 * @param sinceVersion
+	 *            version of the database after which the records were
+	 *            modified.
+	 * @return numbers of the modified records in ascending order.
+	 */
+	public long[] getModifiedSince(long sinceVersion) {
+		return modificationLog.getModifiedSince(sinceVersion);
+	}
+
+	/**
+	 * Returns the modifications made after the given version of the database.
+	 * Only a limited number of the most recent modifications is kept.
+	 * 
+	 * @param sinceVersion
+	 *            version of the database after which modifications are
+	 *            returned.
+	 * @return modifications made after the given version in the order they
+	 *         were made, or null if they are no longer known.
+	 */
+	public ModificationLog.Modification[] getModificationsSince(
+			long sinceVersion) {
+		return modificationLog.getModificationsSince(sinceVersion);
+	}
+
+	/**
+	 * Subscribes a listener to the change feed of the database. The listener
+	 * receives every create, update and delete made from now on, with the
+	 * values of the record before and after it, in the order of the
+	 * modifications. A listener subscribed before a snapshot is opened
+	 * receives all the modifications after the snapshot version, so the
+	 * snapshot and the events following it make a complete copy of the
+	 * database.
+	 * <p/>
+	 * A listener which falls too far behind is overrun, see
+	 * {@link ChangeFeedListener#overrun()}. Until then the modifications wait
+	 * for it a short time when the feed is full.
+	 * 
+	 * @param listener
+	 *            listener to subscribe.
+	 */
+	public void subscribe(ChangeFeedListener listener) {
+		changeFeed.subscribe(listener);
+	}
+
+	/**
+	 * Unsubscribes a listener subscribed with
+	 * {@link #subscribe(ChangeFeedListener)}.
+	 * 
+	 * @param listener
+	 *            listener to unsubscribe.
+	 */
+	public void unsubscribe(ChangeFeedListener listener) {
+		changeFeed.unsubscribe(listener);
+	}
+
+	/**
+	 * Counts the valid records grouped by the value of a field. The counts are
+	 * kept in a materialized view which is built by a full scan on the first
+	 * call with the given arguments and then maintained on every
+	 * modification, so following calls answer in time proportional to the
+	 * number of groups.
+	 * 
+	 * @param groupField
+	 *            index of the field records are grouped by.
+	 * @param multiValued
+	 *            true if the group field holds a comma separated list of
+	 *            values and a record is counted in the group of each of them.
+	 * @param blankField
+	 *            index of the field which has to be blank for the record to be
+	 *            counted, -1 to count all records.
+	 * @return count of records for each value of the group field.
+	 */
+	public Map<String, Integer> countByField(int groupField,
+			boolean multiValued, int blankField) {
+		String key = groupField + ":" + multiValued + ":" + blankField;
+		AggregateView view = aggregates.get(key);
+		if (view == null) {
+			viewsLock.writeLock().lock();
+			try {
+				view = aggregates.get(key);
+				if (view == null) {
+					view = new AggregateView(groupField, multiValued,
+							blankField);
+					long i = 0;
+					Record r = null;
+					while ((r = fileHandler.readRecord(i++)) != null) {
+						if (!r.isDeleted()) {
+							view.add(r.getData());
+						}
+					}
+					aggregates.put(key, view);
+				}
+			} finally {
+				viewsLock.writeLock().unlock();
+			}
+		}
+		return view.getCounts();
 	}
 
 	/**
@@ -185,14 +962,7 @@ public class Data implements DBAccess {
 	 *             differnet cookie.
 	 */
 	private void checkLock(long recNo, long cookie) throws SecurityException {
-		Long realCookie = lockedRows.get(recNo);
-		if (realCookie == null) {
-			throw new SecurityException("Record " + recNo + " not locked");
-		}
-		if (cookie != realCookie) {
-			throw new SecurityException("Cookies do not match " + cookie
-					+ " != " + realCookie + " for record " + recNo);
-		}
+		lockManager.checkLock(recNo, cookie);
 	}
 
 	/**
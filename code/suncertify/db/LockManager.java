@@ -0,0 +1,526 @@
+package suncertify.db;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Manages logical locks of database records. Each locked record, or record
+ * somebody waits for, has its own entry with a separate mutex and wait
+ * condition, so locking and unlocking different records never contend, and
+ * unlocking a record wakes up only the threads waiting for that record.
+ * Entries are created on demand and removed as soon as the record is neither
+ * locked nor awaited.
+ * <p/>
+ * Locks are granted as leases. A lock which is neither unlocked nor renewed
+ * within the lease time expires: threads waiting for the record take it over,
+ * and a background reaper releases expired locks nobody waits for. This way
+ * a record locked by a client which died is not locked forever.
+ * <p/>
+ * Leases are not tied to the liveness of the RMI clients, as no lock is ever
+ * held on behalf of one between its calls: the RMI server takes and releases
+ * the record locks within a single remote call, releasing them in a finally
+ * block even if the client dies meanwhile. Besides, all the clients share a
+ * single remote object, so {@link java.rmi.server.Unreferenced} could only
+ * tell that every client is gone. Leases cover the callers of
+ * {@link DBAccess} in the server process which lock a record and never
+ * unlock it.
+ * <p/>
+ * In the fair mode the threads waiting for a record are queued, and a
+ * released lock is handed over directly to the thread which has waited
+ * longest, so newly arriving threads can never overtake, and starve, the ones
+ * already waiting.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class LockManager {
+
+	private final ConcurrentMap<Long, RecordLock> locks = new ConcurrentHashMap<Long, RecordLock>();
+	private final LockStatistics statistics = new LockStatistics();
+	private final long leaseNanos;
+	private final boolean fair;
+
+	/**
+	 * Creates a lock manager and starts its reaper thread.
+	 * 
+	 * @param lease
+	 *            time after which a lock that was neither unlocked nor renewed
+	 *            expires.
+	 * @param unit
+	 *            unit of the lease time.
+	 * @param fair
+	 *            true to grant locks of each record in the order they were
+	 *            requested, false to let the waiting threads compete for a
+	 *            released lock.
+	 */
+	LockManager(long lease, TimeUnit unit, boolean fair) {
+		this.leaseNanos = unit.toNanos(lease);
+		this.fair = fair;
+		ScheduledExecutorService reaper = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "lock-lease-reaper");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		long period = Math.max(leaseNanos / 4, TimeUnit.MILLISECONDS
+				.toNanos(10));
+		reaper.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				reapExpired();
+			}
+		}, period, period, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Locks a record. If the record is locked by somebody else, waits until
+	 * it is unlocked. The wait is not interrupted, but the interrupt status of
+	 * the thread is preserved.
+	 * 
+	 * @param recNo
+	 *            number of the record to lock.
+	 * @return cookie the record was locked with.
+	 */
+	long lock(long recNo) {
+		try {
+			return lock(recNo, System.nanoTime(), Long.MAX_VALUE, false);
+		} catch (LockTimeoutException e) {
+			// cannot happen, the wait is not limited
+			throw new IllegalStateException(e);
+		} catch (InterruptedException e) {
+			// cannot happen, the wait is not interruptible
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Locks a record. If the record is locked by somebody else, waits at most
+	 * the given time until it is unlocked.
+	 * 
+	 * @param recNo
+	 *            number of the record to lock.
+	 * @param timeout
+	 *            maximum time to wait, zero or less not to wait at all.
+	 * @param unit
+	 *            unit of the timeout.
+	 * @return cookie the record was locked with.
+	 * @throws LockTimeoutException
+	 *             if the record was not unlocked within the given time.
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting.
+	 */
+	long lock(long recNo, long timeout, TimeUnit unit)
+			throws LockTimeoutException, InterruptedException {
+		return lock(recNo, System.nanoTime(), unit.toNanos(timeout), true);
+	}
+
+	/**
+	 * Locks a set of records with a single cookie. Records are locked in
+	 * ascending order of their numbers, so two threads locking overlapping
+	 * sets can never deadlock. If not all the records are locked within the
+	 * given time, the ones already locked are unlocked again.
+	 * 
+	 * @param recNos
+	 *            numbers of the records to lock, sorted ascending without
+	 *            duplicates.
+	 * @param timeout
+	 *            maximum time to wait for all the records.
+	 * @param unit
+	 *            unit of the timeout.
+	 * @return cookie all the records were locked with.
+	 * @throws LockTimeoutException
+	 *             if the records were not all unlocked within the given time.
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while waiting.
+	 */
+	long lockAll(long[] recNos, long timeout, TimeUnit unit)
+			throws LockTimeoutException, InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		long cookie = System.nanoTime();
+		int locked = 0;
+		try {
+			for (long recNo : recNos) {
+				lock(recNo, cookie, deadline - System.nanoTime(), true);
+				locked++;
+			}
+			return cookie;
+		} finally {
+			if (locked < recNos.length) {
+				for (int i = 0; i < locked; i++) {
+					try {
+						unlock(recNos[i], cookie);
+					} catch (SecurityException e) {
+						// lease expired in the meantime, nothing to unlock
+					}
+				}
+			}
+		}
+	}
+
+	private long lock(long recNo, long cookie, long nanos,
+			boolean interruptible) throws LockTimeoutException,
+			InterruptedException {
+		long start = System.nanoTime();
+		boolean interrupted = false;
+		RecordLock entry = acquireEntry(recNo);
+		try {
+			if (fair) {
+				interrupted = lockFair(recNo, entry, cookie, start, nanos,
+						interruptible);
+				return cookie;
+			}
+			boolean contended = false;
+			while (entry.cookie != null && !expireIfDue(entry)) {
+				if (nanos <= 0) {
+					statistics.timedOut();
+					throw new LockTimeoutException("Record " + recNo
+							+ " is locked by another client");
+				}
+				contended = true;
+				entry.waiters++;
+				statistics.enqueued(entry.waiters);
+				try {
+					// wake up when the lease of the holder expires at latest
+					long now = System.nanoTime();
+					long wait = Math.min(nanos, entry.expiresAt - now);
+					try {
+						entry.released.awaitNanos(wait);
+					} catch (InterruptedException e) {
+						if (interruptible) {
+							throw e;
+						}
+						interrupted = true;
+					}
+					nanos -= System.nanoTime() - now;
+				} finally {
+					entry.waiters--;
+					statistics.dequeued();
+				}
+			}
+			grant(entry, cookie);
+			statistics.acquired(System.nanoTime() - start, contended);
+			return cookie;
+		} finally {
+			releaseEntry(recNo, entry);
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Locks a record in the fair mode. A thread which finds the record locked,
+	 * or other threads already waiting for it, joins the end of the queue of
+	 * the record and waits until the lock is handed over to it by the thread
+	 * releasing it. Called with the mutex of the entry held.
+	 * 
+	 * @return true if the thread was interrupted while waiting uninterruptibly,
+	 *         or after the lock had already been handed over to it.
+	 */
+	private boolean lockFair(long recNo, RecordLock entry, long cookie,
+			long start, long nanos, boolean interruptible)
+			throws LockTimeoutException, InterruptedException {
+		expireIfDue(entry);
+		if (entry.cookie == null && entry.queue.isEmpty()) {
+			grant(entry, cookie);
+			statistics.acquired(System.nanoTime() - start, false);
+			return false;
+		}
+		if (nanos <= 0) {
+			statistics.timedOut();
+			throw new LockTimeoutException("Record " + recNo
+					+ " is locked by another client");
+		}
+		boolean interrupted = false;
+		Waiter waiter = new Waiter(cookie, entry.mutex.newCondition());
+		entry.queue.addLast(waiter);
+		entry.waiters++;
+		statistics.enqueued(entry.queue.size());
+		try {
+			while (!waiter.granted) {
+				if (nanos <= 0) {
+					statistics.timedOut();
+					throw new LockTimeoutException("Record " + recNo
+							+ " is locked by another client");
+				}
+				// wake up when the lease of the holder expires at latest
+				long now = System.nanoTime();
+				long wait = Math.min(nanos, entry.expiresAt - now);
+				try {
+					waiter.turn.awaitNanos(wait);
+				} catch (InterruptedException e) {
+					if (interruptible && !waiter.granted) {
+						throw e;
+					}
+					interrupted = true;
+				}
+				nanos -= System.nanoTime() - now;
+				if (!waiter.granted) {
+					// hands the lock over to the head of the queue if expired
+					expireIfDue(entry);
+				}
+			}
+			statistics.acquired(System.nanoTime() - start, true);
+			return interrupted;
+		} finally {
+			entry.waiters--;
+			statistics.dequeued();
+			if (!waiter.granted) {
+				entry.queue.remove(waiter);
+			}
+		}
+	}
+
+	private void grant(RecordLock entry, long cookie) {
+		entry.cookie = cookie;
+		entry.expiresAt = System.nanoTime() + leaseNanos;
+	}
+
+	/**
+	 * Releases the lock of an entry. In the fair mode the lock is handed over
+	 * directly to the longest waiting thread, otherwise all the waiting
+	 * threads are woken up to compete for it. Called with the mutex of the
+	 * entry held.
+	 * 
+	 * @param entry
+	 *            entry of a locked record.
+	 */
+	private void release(RecordLock entry) {
+		Waiter next = entry.queue.pollFirst();
+		if (next != null) {
+			grant(entry, next.cookie);
+			next.granted = true;
+			next.turn.signal();
+		} else {
+			entry.cookie = null;
+			entry.released.signalAll();
+		}
+	}
+
+	/**
+	 * Extends the lease of a lock by the lease time counted from now.
+	 * 
+	 * @param recNo
+	 *            number of the locked record.
+	 * @param cookie
+	 *            cookie the record was locked with.
+	 * @throws SecurityException
+	 *             if the record is not locked, is locked with a different
+	 *             cookie, or the lease has already expired.
+	 */
+	void renew(long recNo, long cookie) throws SecurityException {
+		RecordLock entry = acquireEntry(recNo);
+		try {
+			checkCookie(recNo, entry, cookie);
+			entry.expiresAt = System.nanoTime() + leaseNanos;
+		} finally {
+			releaseEntry(recNo, entry);
+		}
+	}
+
+	/**
+	 * Releases all expired locks and wakes up the threads waiting for them.
+	 */
+	void reapExpired() {
+		for (Long recNo : locks.keySet()) {
+			RecordLock entry = locks.get(recNo);
+			if (entry == null) {
+				continue;
+			}
+			entry.mutex.lock();
+			if (entry.retired) {
+				entry.mutex.unlock();
+			} else {
+				expireIfDue(entry);
+				releaseEntry(recNo, entry);
+			}
+		}
+	}
+
+	/**
+	 * Releases the lock of the entry if its lease has expired. Called with
+	 * the mutex of the entry held.
+	 * 
+	 * @param entry
+	 *            entry of a record.
+	 * @return true if the lock was released, or handed over to a waiting
+	 *         thread.
+	 */
+	private boolean expireIfDue(RecordLock entry) {
+		if (entry.cookie != null && System.nanoTime() - entry.expiresAt >= 0) {
+			release(entry);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Unlocks a record and wakes up the threads waiting for it.
+	 * 
+	 * @param recNo
+	 *            number of the record to unlock.
+	 * @param cookie
+	 *            cookie the record was locked with.
+	 * @throws SecurityException
+	 *             if the record is not locked, or is locked with a different
+	 *             cookie.
+	 */
+	void unlock(long recNo, long cookie) throws SecurityException {
+		RecordLock entry = acquireEntry(recNo);
+		try {
+			checkCookie(recNo, entry, cookie);
+			release(entry);
+		} finally {
+			releaseEntry(recNo, entry);
+		}
+	}
+
+	/**
+	 * Checks whether a record is locked with the given cookie.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @param cookie
+	 *            cookie the record was supposedly locked with.
+	 * @throws SecurityException
+	 *             if the record is not locked, or is locked with a different
+	 *             cookie.
+	 */
+	void checkLock(long recNo, long cookie) throws SecurityException {
+		RecordLock entry = acquireEntry(recNo);
+		try {
+			checkCookie(recNo, entry, cookie);
+		} finally {
+			releaseEntry(recNo, entry);
+		}
+	}
+
+	/**
+	 * Tells whether a record is currently locked. Does not create an entry
+	 * for a record which is not locked.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @return true if the record is locked and the lease has not expired.
+	 */
+	boolean isLocked(long recNo) {
+		RecordLock entry = locks.get(recNo);
+		if (entry == null) {
+			return false;
+		}
+		entry.mutex.lock();
+		try {
+			return !entry.retired && entry.cookie != null
+					&& System.nanoTime() - entry.expiresAt < 0;
+		} finally {
+			entry.mutex.unlock();
+		}
+	}
+
+	private void checkCookie(long recNo, RecordLock entry, long cookie)
+			throws SecurityException {
+		if (expireIfDue(entry)) {
+			throw new SecurityException("Lease of the lock of record " + recNo
+					+ " has expired");
+		}
+		if (entry.cookie == null) {
+			throw new SecurityException("Record " + recNo + " not locked");
+		}
+		if (cookie != entry.cookie) {
+			throw new SecurityException("Cookies do not match " + cookie
+					+ " != " + entry.cookie + " for record " + recNo);
+		}
+	}
+
+	/**
+	 * Gets the entry of a record, creating it if needed, and locks its mutex.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @return entry of the record with the mutex held by the current thread.
+	 */
+	private RecordLock acquireEntry(long recNo) {
+		while (true) {
+			RecordLock entry = locks.get(recNo);
+			if (entry == null) {
+				RecordLock newEntry = new RecordLock();
+				entry = locks.putIfAbsent(recNo, newEntry);
+				if (entry == null) {
+					entry = newEntry;
+				}
+			}
+			entry.mutex.lock();
+			if (!entry.retired) {
+				return entry;
+			}
+			// entry was removed in the meantime, try again with a new one
+			entry.mutex.unlock();
+		}
+	}
+
+	/**
+	 * Unlocks the mutex of an entry, removing the entry first if the record is
+	 * neither locked nor awaited any more.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @param entry
+	 *            entry of the record with the mutex held by the current
+	 *            thread.
+	 */
+	private void releaseEntry(long recNo, RecordLock entry) {
+		if (entry.cookie == null && entry.waiters == 0) {
+			entry.retired = true;
+			locks.remove(recNo, entry);
+		}
+		entry.mutex.unlock();
+	}
+
+	/**
+	 * Statistics of the lock waits since the manager was created.
+	 * 
+	 * @return live statistics of the lock waits.
+	 */
+	LockStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Lock state of a single record. All fields are guarded by the mutex.
+	 */
+	private static class RecordLock {
+		private final ReentrantLock mutex = new ReentrantLock();
+		private final Condition released = mutex.newCondition();
+		private final Deque<Waiter> queue = new ArrayDeque<Waiter>();
+		private Long cookie;
+		private long expiresAt;
+		private int waiters;
+		private boolean retired;
+	}
+
+	/**
+	 * Thread waiting in the queue of a record in the fair mode. Fields are
+	 * guarded by the mutex of the record entry.
+	 */
+	private static class Waiter {
+		private final long cookie;
+		private final Condition turn;
+		private boolean granted;
+
+		private Waiter(long cookie, Condition turn) {
+			this.cookie = cookie;
+			this.turn = turn;
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package suncertify.db;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics of record lock acquisitions: how many locks were granted, how
+ * many of them had to wait, how long the waits took and how many threads
+ * were queued for a lock. Wait times are also counted in a histogram with
+ * buckets doubling in width, from which wait time percentiles can be
+ * estimated.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class LockStatistics {
+
+	/**
+	 * Number of histogram buckets, bucket i counts waits shorter than 2^i
+	 * nanoseconds.
+	 */
+	private static final int BUCKETS = 64;
+
+	private final AtomicLong acquisitions = new AtomicLong();
+	private final AtomicLong contendedAcquisitions = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong totalWaitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicInteger queuedThreads = new AtomicInteger();
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+	private final AtomicLongArray waitHistogram = new AtomicLongArray(BUCKETS);
+
+	LockStatistics() {
+	}
+
+	/**
+	 * Records a granted lock.
+	 * 
+	 * @param waitNanos
+	 *            time the thread waited for the lock.
+	 * @param contended
+	 *            true if the record was locked when the thread requested it.
+	 */
+	void acquired(long waitNanos, boolean contended) {
+		acquisitions.incrementAndGet();
+		if (contended) {
+			contendedAcquisitions.incrementAndGet();
+		}
+		totalWaitNanos.addAndGet(waitNanos);
+		long max;
+		do {
+			max = maxWaitNanos.get();
+		} while (waitNanos > max
+				&& !maxWaitNanos.compareAndSet(max, waitNanos));
+		int bucket = BUCKETS
+				- Long.numberOfLeadingZeros(Math.max(waitNanos, 0));
+		waitHistogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+	}
+
+	/**
+	 * Records a lock request which timed out.
+	 */
+	void timedOut() {
+		timeouts.incrementAndGet();
+	}
+
+	/**
+	 * Records a thread starting to wait for a record.
+	 * 
+	 * @param depth
+	 *            number of threads waiting for the record, including this one.
+	 */
+	void enqueued(int depth) {
+		queuedThreads.incrementAndGet();
+		int max;
+		do {
+			max = maxQueueDepth.get();
+		} while (depth > max && !maxQueueDepth.compareAndSet(max, depth));
+	}
+
+	/**
+	 * Records a thread which stopped waiting for a record.
+	 */
+	void dequeued() {
+		queuedThreads.decrementAndGet();
+	}
+
+	/**
+	 * Number of locks granted.
+	 * 
+	 * @return number of locks granted.
+	 */
+	public long getAcquisitions() {
+		return acquisitions.get();
+	}
+
+	/**
+	 * Number of locks granted after waiting for another client to release the
+	 * record.
+	 * 
+	 * @return number of locks granted after waiting.
+	 */
+	public long getContendedAcquisitions() {
+		return contendedAcquisitions.get();
+	}
+
+	/**
+	 * Number of lock requests which gave up waiting.
+	 * 
+	 * @return number of lock requests which timed out.
+	 */
+	public long getTimeouts() {
+		return timeouts.get();
+	}
+
+	/**
+	 * Average time threads waited for a granted lock.
+	 * 
+	 * @return average wait time in nanoseconds.
+	 */
+	public long getAverageWaitNanos() {
+		long count = acquisitions.get();
+		return count == 0 ? 0 : totalWaitNanos.get() / count;
+	}
+
+	/**
+	 * Longest time a thread waited for a granted lock.
+	 * 
+	 * @return longest wait time in nanoseconds.
+	 */
+	public long getMaxWaitNanos() {
+		return maxWaitNanos.get();
+	}
+
+	/**
+	 * Estimates a wait time percentile. The estimate is the upper bound of the
+	 * histogram bucket the percentile falls in, so it may exceed the real
+	 * value at most twice.
+	 * 
+	 * @param percentile
+	 *            percentile between 0 and 100, e.g. 99.
+	 * @return wait time in nanoseconds below which the given percent of the
+	 *         granted locks waited.
+	 */
+	public long getWaitPercentileNanos(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = waitHistogram.get(i);
+			total += counts[i];
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Number of threads currently waiting for a record lock.
+	 * 
+	 * @return number of waiting threads.
+	 */
+	public int getQueuedThreads() {
+		return queuedThreads.get();
+	}
+
+	/**
+	 * Greatest number of threads which were waiting for the same record at
+	 * once.
+	 * 
+	 * @return greatest queue depth of a single record.
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("locks=%d contended=%d timeouts=%d "
+				+ "avgWait=%dns p99Wait<=%dns maxWait=%dns queued=%d "
+				+ "maxQueue=%d", getAcquisitions(), getContendedAcquisitions(),
+				getTimeouts(), getAverageWaitNanos(),
+				getWaitPercentileNanos(99), getMaxWaitNanos(),
+				getQueuedThreads(), getMaxQueueDepth());
+	}
+}
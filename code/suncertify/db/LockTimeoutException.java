@@ -0,0 +1,32 @@
+package suncertify.db;
+
+/**
+ * Exception signalizes that a row could not be locked within the given time,
+ * because it stayed locked by another client.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class LockTimeoutException extends Exception {
+
+	/**
+	 * Generated version of the class.
+	 */
+	private static final long serialVersionUID = -3243617402853498725L;
+
+	/**
+	 * Default constructor.
+	 */
+	public LockTimeoutException() {
+	}
+
+	/**
+	 * Creates an exception instance with a given message.
+	 * 
+	 * @param message
+	 *            message of the exception.
+	 */
+	public LockTimeoutException(String message) {
+		super(message);
+	}
+}
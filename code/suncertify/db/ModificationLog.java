@@ -0,0 +1,294 @@
+package suncertify.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded log of the most recent database modifications. Every modification
+ * increments the database version and is stored along with the number of the
+ * modified record and a mask of the modified fields. Only the last
+ * {@link #capacity} modifications are kept, older ones are overwritten.
+ * <p/>
+ * Besides, the log keeps the version of the last modification of every
+ * record modified since the database was opened, so the records modified
+ * after any version can be found however old the version is.
+ * <p/>
+ * Modifications appended within a batch get a version each, but the
+ * database version and the change feed skip from before the batch to after
+ * it once the batch ends, so nobody sees the batch partly applied.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class ModificationLog {
+
+	/**
+	 * Field mask of a newly created record: all fields are considered
+	 * modified.
+	 */
+	public static final long ALL_FIELDS = -1L;
+
+	/**
+	 * Field mask of a deleted record: no field value has changed, the record
+	 * is just gone.
+	 */
+	public static final long NO_FIELDS = 0L;
+
+	private final int capacity;
+	private final long[] recNos;
+	private final long[] fieldMasks;
+	private final Map<Long, Long> lastModified = new HashMap<Long, Long>();
+	/*
+	 * records by the version of their last modification
+	 */
+	private final TreeMap<Long, Long> modifiedRecords = new TreeMap<Long, Long>();
+	private final ChangeFeed changeFeed;
+	/*
+	 * not a monitor, so that a virtual thread appending a modification while
+	 * the change feed lock is taken does not pin its carrier thread
+	 */
+	private final Lock lock = new ReentrantLock();
+	private long version;
+	/*
+	 * version seen outside, lagging behind version while a batch is appended
+	 */
+	private long publishedVersion;
+	private boolean batch;
+	private final List<ChangeEvent> pendingEvents = new ArrayList<ChangeEvent>();
+
+	/**
+	 * Creates an empty log.
+	 * 
+	 * @param capacity
+	 *            number of the most recent modifications to keep.
+	 * @param changeFeed
+	 *            feed the modifications are published to, in the order of
+	 *            their versions.
+	 */
+	ModificationLog(int capacity, ChangeFeed changeFeed) {
+		this.capacity = capacity;
+		this.changeFeed = changeFeed;
+		this.recNos = new long[capacity];
+		this.fieldMasks = new long[capacity];
+	}
+
+	/**
+	 * Bit representing the field with the given index in a field mask. Fields
+	 * with index of 63 and above share the last bit.
+	 * 
+	 * @param field
+	 *            index of the field.
+	 * @return bit representing the field.
+	 */
+	public static long fieldBit(int field) {
+		return 1L << Math.min(field, 63);
+	}
+
+	/**
+	 * Records a modification and publishes it to the change feed, or keeps
+	 * it until the end of the batch if one was begun.
+	 * 
+	 * @param recNo
+	 *            number of the modified record.
+	 * @param fieldMask
+	 *            mask of the modified fields.
+	 * @param recordVersion
+	 *            version of the record after the modification.
+	 * @param before
+	 *            values of the record before the modification, null if it was
+	 *            created.
+	 * @param after
+	 *            values of the record after the modification, null if it was
+	 *            deleted.
+	 * @return the new database version.
+	 */
+	long append(long recNo, long fieldMask, long recordVersion,
+			String[] before, String[] after) {
+		lock.lock();
+		try {
+			version++;
+			int slot = (int) (version % capacity);
+			recNos[slot] = recNo;
+			fieldMasks[slot] = fieldMask;
+			Long previous = lastModified.put(recNo, version);
+			if (previous != null) {
+				modifiedRecords.remove(previous);
+			}
+			modifiedRecords.put(version, recNo);
+			if (batch) {
+				pendingEvents.add(new ChangeEvent(version, recNo,
+						recordVersion, before, after));
+			} else {
+				changeFeed.publish(version, recNo, recordVersion, before,
+						after);
+				publishedVersion = version;
+			}
+			return version;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Begins a batch of modifications, see {@link #endBatch()}. The caller
+	 * makes sure that no other modification is appended until the batch
+	 * ends.
+	 */
+	void beginBatch() {
+		lock.lock();
+		try {
+			batch = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Ends a batch of modifications: publishes them all to the change feed
+	 * and makes the database version include them at once.
+	 */
+	void endBatch() {
+		lock.lock();
+		try {
+			batch = false;
+			for (ChangeEvent event : pendingEvents) {
+				changeFeed.publish(event.getSequence(), event.getRecNo(),
+						event.getRecordVersion(), event.getBefore(), event
+								.getAfter());
+			}
+			pendingEvents.clear();
+			publishedVersion = version;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Current version of the database, incremented by every modification,
+	 * or by every modification of a batch at once when the batch ends.
+	 * 
+	 * @return current version of the database.
+	 */
+	public long getVersion() {
+		lock.lock();
+		try {
+			return publishedVersion;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Version of the last modification of a record.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @return version of the last modification of the record, or 0 if it was
+	 *         not modified since the database was opened.
+	 */
+	public long getLastModified(long recNo) {
+		lock.lock();
+		try {
+			Long modified = lastModified.get(recNo);
+			return modified == null ? 0 : modified;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the records modified after the given version. Takes time
+	 * proportional to the number of the returned records.
+	 * 
+	 * @param sinceVersion
+	 *            version after which the records were modified.
+	 * @return numbers of the records modified after the version, in ascending
+	 *         order.
+	 */
+	public long[] getModifiedSince(long sinceVersion) {
+		lock.lock();
+		try {
+			Collection<Long> modified = modifiedRecords.tailMap(sinceVersion,
+					false).values();
+			long[] result = new long[modified.size()];
+			int i = 0;
+			for (long recNo : modified) {
+				result[i++] = recNo;
+			}
+			Arrays.sort(result);
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns modifications made after the given version, in the order they
+	 * were made.
+	 * 
+	 * @param sinceVersion
+	 *            version after which modifications are returned.
+	 * @return modifications made after the given version, or null if some of
+	 *         them are no longer kept in the log.
+	 */
+	public Modification[] getModificationsSince(
+			long sinceVersion) {
+		lock.lock();
+		try {
+			if (sinceVersion < publishedVersion - capacity
+					|| sinceVersion > publishedVersion) {
+				return null;
+			}
+			Modification[] result = new Modification[(int) (publishedVersion - sinceVersion)];
+			for (int i = 0; i < result.length; i++) {
+				int slot = (int) ((sinceVersion + i + 1) % capacity);
+				result[i] = new Modification(recNos[slot], fieldMasks[slot]);
+			}
+			return result;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Single entry of the modification log.
+	 * 
+	 * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+	 * 
+	 */
+	public static class Modification {
+
+		private final long recNo;
+		private final long fieldMask;
+
+		private Modification(long recNo, long fieldMask) {
+			this.recNo = recNo;
+			this.fieldMask = fieldMask;
+		}
+
+		/**
+		 * Number of the modified record.
+		 * 
+		 * @return number of the modified record.
+		 */
+		public long getRecNo() {
+			return recNo;
+		}
+
+		/**
+		 * Mask of the modified fields, see {@link ModificationLog#fieldBit}.
+		 * 
+		 * @return mask of the modified fields.
+		 */
+		public long getFieldMask() {
+			return fieldMask;
+		}
+	}
+}
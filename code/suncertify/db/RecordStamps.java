@@ -0,0 +1,154 @@
+package suncertify.db;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Version stamps of database records. A stamp holds the version of the
+ * record, incremented by every write, and a flag telling that a write is in
+ * progress. Stamps of records which were never written since the database
+ * was opened are not stored; their version is 0.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class RecordStamps {
+
+	/**
+	 * Flag of a stamp telling that a write of the record is in progress.
+	 */
+	private static final long WRITING = 1L;
+
+	/**
+	 * Time to park a thread waiting for a write in progress to finish.
+	 */
+	private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final ConcurrentMap<Long, AtomicLong> stamps = new ConcurrentHashMap<Long, AtomicLong>();
+
+	/**
+	 * Current version of a record, waiting for a write in progress to finish.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @return current version of the record.
+	 */
+	long awaitVersion(long recNo) {
+		AtomicLong stamp = stamps.get(recNo);
+		if (stamp == null) {
+			return 0;
+		}
+		long value;
+		while (((value = stamp.get()) & WRITING) != 0) {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		return value >>> 1;
+	}
+
+	/**
+	 * Current version of a record, without waiting for a write in progress.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @return version of the record before the write in progress, if any.
+	 */
+	long getVersion(long recNo) {
+		AtomicLong stamp = stamps.get(recNo);
+		return stamp == null ? 0 : stamp.get() >>> 1;
+	}
+
+	/**
+	 * Tells whether a record is still at the given version and no write of it
+	 * is in progress. An optimistic reader gets the version with
+	 * {@link #awaitVersion(long)} before reading the record, and validates it
+	 * afterwards; if the validation fails the record may have been written
+	 * while being read and has to be read again.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @param version
+	 *            version of the record before it was read.
+	 * @return true if the record has not been written since.
+	 */
+	boolean validate(long recNo, long version) {
+		AtomicLong stamp = stamps.get(recNo);
+		return (stamp == null ? 0 : stamp.get()) == version << 1;
+	}
+
+	/**
+	 * Starts a write of a record if its version is the expected one and no
+	 * other write is in progress.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @param expectedVersion
+	 *            version the record is expected to have.
+	 * @return true if the write was started, false if the version differs or
+	 *         another write is in progress.
+	 */
+	boolean tryBeginWrite(long recNo, long expectedVersion) {
+		long expected = expectedVersion << 1;
+		return getStamp(recNo).compareAndSet(expected, expected | WRITING);
+	}
+
+	/**
+	 * Starts a write of a record, waiting for another write in progress to
+	 * finish first.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 */
+	void beginWrite(long recNo) {
+		AtomicLong stamp = getStamp(recNo);
+		while (true) {
+			long value = stamp.get();
+			if ((value & WRITING) == 0
+					&& stamp.compareAndSet(value, value | WRITING)) {
+				return;
+			}
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+
+	/**
+	 * Finishes a write of a record started by the current thread,
+	 * incrementing its version.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @return the new version of the record.
+	 */
+	long endWrite(long recNo) {
+		AtomicLong stamp = getStamp(recNo);
+		long version = (stamp.get() >>> 1) + 1;
+		stamp.set(version << 1);
+		return version;
+	}
+
+	/**
+	 * Finishes a write of a record started by the current thread which did
+	 * not modify the record. The version stays unchanged.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 */
+	void abortWrite(long recNo) {
+		AtomicLong stamp = getStamp(recNo);
+		stamp.set(stamp.get() & ~WRITING);
+	}
+
+	private AtomicLong getStamp(long recNo) {
+		AtomicLong stamp = stamps.get(recNo);
+		if (stamp == null) {
+			AtomicLong newStamp = new AtomicLong();
+			stamp = stamps.putIfAbsent(recNo, newStamp);
+			if (stamp == null) {
+				stamp = newStamp;
+			}
+		}
+		return stamp;
+	}
+}
@@ -0,0 +1,57 @@
+package suncertify.db;
+
+/**
+ * Consistent view of the whole database as it was at a single database
+ * version. Reads through a snapshot see neither the modifications committed
+ * after the snapshot was opened nor a mix of states from different points in
+ * time, and they neither block nor are blocked by concurrent writers. Old
+ * record versions are kept for as long as an open snapshot may need them, so
+ * every snapshot has to be released once it is no longer used.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class Snapshot {
+
+	private final VersionStore store;
+	private final long version;
+	private boolean released;
+
+	/**
+	 * Creates a snapshot. Snapshots are opened with
+	 * {@link Data#openSnapshot()}.
+	 * 
+	 * @param store
+	 *            store of the old record versions.
+	 * @param version
+	 *            database version the snapshot sees.
+	 */
+	Snapshot(VersionStore store, long version) {
+		this.store = store;
+		this.version = version;
+	}
+
+	/**
+	 * Database version the snapshot sees: all the modifications up to this
+	 * version and none after it.
+	 * 
+	 * @return database version of the snapshot.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Releases the snapshot, allowing the old record versions it needed to be
+	 * discarded. Releasing a snapshot again has no effect.
+	 */
+	public void release() {
+		synchronized (this) {
+			if (released) {
+				return;
+			}
+			released = true;
+		}
+		store.release(this);
+	}
+}
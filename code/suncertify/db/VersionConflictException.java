@@ -0,0 +1,32 @@
+package suncertify.db;
+
+/**
+ * Exception signalizes an attempt to update a row which was modified, or is
+ * locked, by another client since the updating client read it.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class VersionConflictException extends Exception {
+
+	/**
+	 * Generated version of the class.
+	 */
+	private static final long serialVersionUID = 8431906420613052987L;
+
+	/**
+	 * Default constructor.
+	 */
+	public VersionConflictException() {
+	}
+
+	/**
+	 * Creates an exception instance with a given message.
+	 * 
+	 * @param message
+	 *            message of the exception.
+	 */
+	public VersionConflictException(String message) {
+		super(message);
+	}
+}
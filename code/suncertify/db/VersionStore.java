@@ -0,0 +1,264 @@
+package suncertify.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Old versions of database records needed by open snapshots. Before a record
+ * is modified its previous values are pushed to the version chain of the
+ * record, labelled with the database version of the modification. A snapshot
+ * of version V sees the record as it was before the first modification with a
+ * version greater than V, or as it is now if there was no such modification.
+ * <p/>
+ * Old versions with a database version not greater than the version of the
+ * oldest open snapshot are needed by nobody and are discarded when the record
+ * is modified again or the oldest snapshot is released.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class VersionStore {
+
+	private final ConcurrentMap<Long, Chain> chains = new ConcurrentHashMap<Long, Chain>();
+	private final ModificationLog modificationLog;
+
+	/*
+	 * guards the snapshots; this store and its chains use locks rather than
+	 * monitors, so that virtual threads reading snapshots never pin their
+	 * carrier threads
+	 */
+	private final Lock lock = new ReentrantLock();
+
+	/*
+	 * number of open snapshots by their version, guarded by lock
+	 */
+	private final TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+
+	/**
+	 * Creates an empty store.
+	 * 
+	 * @param modificationLog
+	 *            log holding the current database version.
+	 */
+	VersionStore(ModificationLog modificationLog) {
+		this.modificationLog = modificationLog;
+	}
+
+	/**
+	 * Opens a snapshot of the current database version.
+	 * 
+	 * @return a new snapshot.
+	 */
+	Snapshot open() {
+		lock.lock();
+		try {
+			long version = modificationLog.getVersion();
+			Integer count = snapshots.get(version);
+			snapshots.put(version, count == null ? 1 : count + 1);
+			return new Snapshot(this, version);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases a snapshot, discarding the old versions nobody needs anymore if
+	 * it was the oldest one.
+	 * 
+	 * @param snapshot
+	 *            snapshot to release.
+	 */
+	void release(Snapshot snapshot) {
+		long horizon;
+		lock.lock();
+		try {
+			long version = snapshot.getVersion();
+			boolean oldest = version == snapshots.firstKey();
+			int count = snapshots.get(version);
+			if (count > 1) {
+				snapshots.put(version, count - 1);
+			} else {
+				snapshots.remove(version);
+			}
+			if (!oldest) {
+				return;
+			}
+			horizon = getHorizon();
+		} finally {
+			lock.unlock();
+		}
+		for (Map.Entry<Long, Chain> e : chains.entrySet()) {
+			prune(e.getKey(), e.getValue(), horizon);
+		}
+	}
+
+	/**
+	 * Stores the previous version of a record which is being modified. Called
+	 * with the write of the record begun.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @param modification
+	 *            database version of the modification.
+	 * @param before
+	 *            previous values and version of the record, or null if the
+	 *            record did not exist.
+	 */
+	void add(long recNo, long modification, VersionedRecord before) {
+		long horizon = getHorizon();
+		if (modification <= horizon) {
+			// no open snapshot precedes the modification
+			return;
+		}
+		while (true) {
+			Chain chain = chains.get(recNo);
+			if (chain == null) {
+				Chain newChain = new Chain();
+				chain = chains.putIfAbsent(recNo, newChain);
+				if (chain == null) {
+					chain = newChain;
+				}
+			}
+			chain.lock.lock();
+			try {
+				if (!chain.retired) {
+					chain.versions.add(new RowVersion(modification, before));
+					break;
+				}
+			} finally {
+				chain.lock.unlock();
+			}
+			// chain was removed in the meantime, try again with a new one
+		}
+		prune(recNo, chains.get(recNo), horizon);
+	}
+
+	/**
+	 * Finds the version of a record seen by a snapshot.
+	 * 
+	 * @param recNo
+	 *            number of the record.
+	 * @param snapshotVersion
+	 *            database version of the snapshot.
+	 * @return the version of the record the snapshot sees, whose record is
+	 *         null if the record did not exist, or null if the snapshot sees
+	 *         the current version of the record.
+	 */
+	RowVersion find(long recNo, long snapshotVersion) {
+		Chain chain = chains.get(recNo);
+		if (chain == null) {
+			return null;
+		}
+		chain.lock.lock();
+		try {
+			for (RowVersion version : chain.versions) {
+				if (version.modification > snapshotVersion) {
+					return version;
+				}
+			}
+		} finally {
+			chain.lock.unlock();
+		}
+		return null;
+	}
+
+	/**
+	 * All the old values currently stored.
+	 * 
+	 * @return old values of the records by record number.
+	 */
+	Map<Long, List<String[]>> getOldValues() {
+		Map<Long, List<String[]>> values = new HashMap<Long, List<String[]>>();
+		for (Map.Entry<Long, Chain> e : chains.entrySet()) {
+			List<String[]> recordValues = new ArrayList<String[]>();
+			e.getValue().lock.lock();
+			try {
+				for (RowVersion version : e.getValue().versions) {
+					if (version.record != null) {
+						recordValues.add(version.record.getData());
+					}
+				}
+			} finally {
+				e.getValue().lock.unlock();
+			}
+			values.put(e.getKey(), recordValues);
+		}
+		return values;
+	}
+
+	/**
+	 * Database version up to which no open snapshot needs the old versions:
+	 * the version of the oldest open snapshot, or the current database version
+	 * if there is none. Computed while holding the lock of this store, so that
+	 * a snapshot opened later never precedes it.
+	 */
+	private long getHorizon() {
+		lock.lock();
+		try {
+			return snapshots.isEmpty() ? modificationLog.getVersion()
+					: snapshots.firstKey();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void prune(long recNo, Chain chain, long horizon) {
+		if (chain == null) {
+			return;
+		}
+		chain.lock.lock();
+		try {
+			Iterator<RowVersion> i = chain.versions.iterator();
+			while (i.hasNext() && i.next().modification <= horizon) {
+				i.remove();
+			}
+			if (chain.versions.isEmpty() && !chain.retired) {
+				chain.retired = true;
+				chains.remove(recNo, chain);
+			}
+		} finally {
+			chain.lock.unlock();
+		}
+	}
+
+	/**
+	 * Old versions of a single record, oldest first. Guarded by the lock of
+	 * the chain.
+	 */
+	private static class Chain {
+		private final Lock lock = new ReentrantLock();
+		private final List<RowVersion> versions = new ArrayList<RowVersion>(2);
+		private boolean retired;
+	}
+
+	/**
+	 * Values of a record before a modification.
+	 */
+	static class RowVersion {
+		private final long modification;
+		private final VersionedRecord record;
+
+		private RowVersion(long modification, VersionedRecord record) {
+			this.modification = modification;
+			this.record = record;
+		}
+
+		/**
+		 * Values and version of the record before the modification.
+		 * 
+		 * @return values and version of the record, or null if the record did
+		 *         not exist.
+		 */
+		VersionedRecord getRecord() {
+			return record;
+		}
+	}
+}
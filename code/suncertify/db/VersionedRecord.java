@@ -0,0 +1,46 @@
+package suncertify.db;
+
+/**
+ * Values of a database record along with the version of the record they were
+ * read at.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class VersionedRecord {
+
+	private final String[] data;
+	private final long version;
+
+	/**
+	 * Creates a versioned record.
+	 * 
+	 * @param data
+	 *            values of the record.
+	 * @param version
+	 *            version of the record.
+	 */
+	VersionedRecord(String[] data, long version) {
+		this.data = data;
+		this.version = version;
+	}
+
+	/**
+	 * Values of the record.
+	 * 
+	 * @return values of the record.
+	 */
+	public String[] getData() {
+		return data;
+	}
+
+	/**
+	 * Version of the record the values were read at. The version is
+	 * incremented by every modification of the record.
+	 * 
+	 * @return version of the record.
+	 */
+	public long getVersion() {
+		return version;
+	}
+}
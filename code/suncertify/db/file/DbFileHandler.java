@@ -5,6 +5,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
+import suncertify.common.Log;
+
 /**
  * Handles low level database file access.
  * 
@@ -90,6 +92,19 @@ public class DbFileHandler {
 		return metadata;
 	}
 
+	/**
+	 * Number of rows in the database file, including the rows marked as
+	 * deleted.
+	 * 
+	 * @return number of rows in the database file.
+	 * @throws IOException
+	 *             when problem accessing file occurs.
+	 */
+	public long getRecordCount() throws IOException {
+		MetaData meta = getMetaData();
+		return (dbFile.length() - meta.getOffset()) / meta.getRowLength();
+	}
+
 	/**
 	 * Reads the record from the database file.
 	 * 
@@ -115,13 +130,13 @@ public class DbFileHandler {
 		} catch (EOFException e) {
 			return null;
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("Failed to read row %s", num, e);
 			return null;
 		} finally {
 			try {
 				raf.close();
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.error("Failed to close the database file", e);
 			}
 		}
 		return r;
@@ -189,14 +204,14 @@ public class DbFileHandler {
 				i++;
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("Failed to write row %s", recordNum, e);
 		} finally {
 			try {
 				if (raf != null) {
 					raf.close();
 				}
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.error("Failed to close the database file", e);
 			}
 		}
 		return recordNum;
@@ -214,6 +229,23 @@ public class DbFileHandler {
 		return writeRecord(-1, data);
 	}
 
+	/**
+	 * Finds the position at which a new record is to be stored: the first row
+	 * marked as deleted, or the position right after the last row.
+	 * 
+	 * @return position at which a new record is to be stored.
+	 * @throws IOException
+	 *             when problem accessing file occurs.
+	 */
+	public long getFirstEmptySlot() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(dbFile, "r");
+		try {
+			return getFirstEmptySlot(raf);
+		} finally {
+			raf.close();
+		}
+	}
+
 	private long getFirstEmptySlot(RandomAccessFile input) throws IOException {
 		long index = 0;
 		long offset = getMetaData().getOffset();
@@ -244,7 +276,8 @@ public class DbFileHandler {
 			MetaData meta = getMetaData();
 			long rowPos = num * meta.getRowLength() + meta.getOffset();
 			if (rowPos >= dbFile.length()) {
-				System.out.println("markAsDeleted() num exceeds rows count");
+				Log.warn("Cannot mark row %s as deleted, "
+						+ "it exceeds the rows count", num);
 				return false;
 			}
 			raf = new RandomAccessFile(dbFile, "rw");
@@ -257,14 +290,14 @@ public class DbFileHandler {
 			raf.writeShort(Record.DELETED);
 			return true;
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("Failed to mark row %s as deleted", num, e);
 		} finally {
 			try {
 				if (raf != null) {
 					raf.close();
 				}
 			} catch (IOException e) {
-				e.printStackTrace();
+				Log.error("Failed to close the database file", e);
 			}
 		}
 		return false;
@@ -0,0 +1,189 @@
+package suncertify.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import suncertify.api.ServerBusyException;
+
+/**
+ * Runs database requests on threads of an executor created by
+ * {@link RequestExecutors}, at most the given number at once. Further
+ * requests wait in one of two queues, reads and writes, without holding a
+ * thread. Whenever a request finishes, a waiting write is started before any
+ * waiting read, and reads never take the last slot, so a server busy with
+ * searches always has a slot for a booking or an update.
+ * <p/>
+ * The queues are bounded: a request arriving when its queue is full is
+ * rejected at once with a {@link ServerBusyException}, so that an overloaded
+ * server sheds the load instead of queueing it without limit.
+ * <p/>
+ * The limits match those of the {@link RequestScheduler} of the database
+ * connection, so the requests started by this executor are admitted by the
+ * scheduler without waiting, unless other clients take the slots meanwhile.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class BoundedRequestExecutor {
+
+	private final ExecutorService executor;
+	private final int workers;
+	private final int maxRunningReads;
+	private final int maxQueuedReads;
+	private final int maxQueuedWrites;
+	private final Lock lock = new ReentrantLock();
+	private final Queue<Runnable> queuedReads = new LinkedList<Runnable>();
+	private final Queue<Runnable> queuedWrites = new LinkedList<Runnable>();
+	private int runningReads;
+	private int runningWrites;
+	private boolean shutdown;
+
+	/**
+	 * Creates an executor.
+	 * 
+	 * @param name
+	 *            prefix of the names of the threads.
+	 * @param workers
+	 *            maximum number of requests running at once; raised to two,
+	 *            as one slot is always kept for the writes.
+	 * @param maxQueuedReads
+	 *            maximum number of reads waiting to run.
+	 * @param maxQueuedWrites
+	 *            maximum number of writes waiting to run.
+	 */
+	public BoundedRequestExecutor(String name, int workers,
+			int maxQueuedReads, int maxQueuedWrites) {
+		this.executor = RequestExecutors.newRequestExecutor(name);
+		this.workers = RequestScheduler.effectiveWorkers(workers);
+		this.maxRunningReads = this.workers - 1;
+		this.maxQueuedReads = maxQueuedReads;
+		this.maxQueuedWrites = maxQueuedWrites;
+	}
+
+	/**
+	 * Runs a request once a slot of its kind is free.
+	 * 
+	 * @param request
+	 *            request to run.
+	 * @param write
+	 *            true if the request modifies the database, false if it only
+	 *            reads it.
+	 * @throws ServerBusyException
+	 *             if the queue of the kind is full; the request is not run.
+	 */
+	public void execute(Runnable request, boolean write)
+			throws ServerBusyException {
+		List<Runnable> started;
+		lock.lock();
+		try {
+			if (shutdown) {
+				return;
+			}
+			if (write) {
+				if (queuedWrites.size() >= maxQueuedWrites && !canRunWrite()) {
+					throw new ServerBusyException(
+							"Server is busy, too many modifications waiting");
+				}
+				queuedWrites.add(request);
+			} else {
+				if (queuedReads.size() >= maxQueuedReads && !canRunRead()) {
+					throw new ServerBusyException(
+							"Server is busy, too many searches waiting");
+				}
+				queuedReads.add(request);
+			}
+			started = admit();
+		} finally {
+			lock.unlock();
+		}
+		start(started);
+	}
+
+	/**
+	 * Stops running requests: drops the waiting ones and interrupts the
+	 * running ones.
+	 */
+	public void shutdownNow() {
+		lock.lock();
+		try {
+			shutdown = true;
+			queuedReads.clear();
+			queuedWrites.clear();
+		} finally {
+			lock.unlock();
+		}
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Takes the waiting requests which may start now, writes first. Called
+	 * with the lock held.
+	 */
+	private List<Runnable> admit() {
+		List<Runnable> started = new ArrayList<Runnable>();
+		while (!queuedWrites.isEmpty() && canRunWrite()) {
+			runningWrites++;
+			started.add(wrap(queuedWrites.poll(), true));
+		}
+		while (!queuedReads.isEmpty() && canRunRead()) {
+			runningReads++;
+			started.add(wrap(queuedReads.poll(), false));
+		}
+		return started;
+	}
+
+	private boolean canRunWrite() {
+		return runningReads + runningWrites < workers;
+	}
+
+	private boolean canRunRead() {
+		// waiting writes go first
+		return queuedWrites.isEmpty() && runningReads < maxRunningReads
+				&& runningReads + runningWrites < workers;
+	}
+
+	private Runnable wrap(final Runnable request, final boolean write) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					request.run();
+				} finally {
+					finished(write);
+				}
+			}
+		};
+	}
+
+	private void finished(boolean write) {
+		List<Runnable> started;
+		lock.lock();
+		try {
+			if (write) {
+				runningWrites--;
+			} else {
+				runningReads--;
+			}
+			started = shutdown ? new ArrayList<Runnable>() : admit();
+		} finally {
+			lock.unlock();
+		}
+		start(started);
+	}
+
+	private void start(List<Runnable> requests) {
+		try {
+			for (Runnable request : requests) {
+				executor.execute(request);
+			}
+		} catch (RejectedExecutionException e) {
+			// shut down meanwhile
+		}
+	}
+}
@@ -0,0 +1,341 @@
+package suncertify.impl;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.Remote;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import suncertify.api.AlreadyBookedException;
+import suncertify.api.BatchResult;
+import suncertify.api.ChangeListener;
+import suncertify.api.ChangeSet;
+import suncertify.api.Contractor;
+import suncertify.api.ContractorField;
+import suncertify.api.DBConnection;
+import suncertify.db.DuplicateKeyException;
+import suncertify.db.RecordNotFoundException;
+import suncertify.db.SecurityException;
+import suncertify.db.VersionConflictException;
+
+/**
+ * Client side database connection keeping the rows read by record number,
+ * so that reading a row which has not changed costs no call to the server.
+ * The connection registers a {@link ChangeListener} with the server and drops
+ * the rows the server notifies as changed. Rows changed through this
+ * connection are dropped at once, so the client always reads its own
+ * changes; changes of other clients are seen once their notification
+ * arrives.
+ * <p/>
+ * Rows are cached only once the first notification has arrived, so a client
+ * the server cannot call back, e.g. behind a firewall, never serves cached
+ * rows. If the server has not notified the connection for three heartbeats,
+ * the notifications are assumed lost: the rows are dropped and read from the
+ * server until notifications arrive again.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class CachingDBConnection implements DBConnection {
+
+	private static final long NOTIFICATION_TIMEOUT_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(3 * ChangeListener.HEARTBEAT_MILLIS);
+
+	private final DBConnection connection;
+	private final ConcurrentMap<Long, Contractor> rows = new ConcurrentHashMap<Long, Contractor>();
+	/*
+	 * incremented by every invalidation, so that a row read before the
+	 * invalidation is not kept after it
+	 */
+	private final AtomicLong generation = new AtomicLong();
+	private final ChangeListener listener = new ChangeListener() {
+		@Override
+		public void recordsChanged(long[] recNos) {
+			lastNotification = System.nanoTime();
+			if (recNos == null) {
+				generation.incrementAndGet();
+				rows.clear();
+			} else if (recNos.length > 0) {
+				generation.incrementAndGet();
+				for (long recNo : recNos) {
+					rows.remove(recNo);
+				}
+			}
+		}
+	};
+	private final boolean exported;
+	private volatile long lastNotification;
+
+	/**
+	 * Creates a caching connection and registers it for the change
+	 * notifications of the server.
+	 * 
+	 * @param connection
+	 *            connection to the database server.
+	 * @throws IOException
+	 *             if the listener cannot be registered with the server.
+	 */
+	public CachingDBConnection(DBConnection connection) throws IOException {
+		this.connection = connection;
+		this.exported = connection instanceof Remote;
+		if (exported) {
+			// the server calls the listener back over RMI
+			UnicastRemoteObject.exportObject(listener, 0);
+		}
+		// not trusted until the server has called back
+		lastNotification = System.nanoTime() - NOTIFICATION_TIMEOUT_NANOS;
+		connection.addChangeListener(listener);
+	}
+
+	/**
+	 * Stops receiving the change notifications. The connection to the server
+	 * may still be used, but rows are no longer cached.
+	 */
+	public void close() {
+		generation.incrementAndGet();
+		lastNotification = System.nanoTime() - NOTIFICATION_TIMEOUT_NANOS;
+		rows.clear();
+		try {
+			connection.removeChangeListener(listener);
+		} catch (IOException e) {
+			// the server drops the listener once it cannot be notified
+		}
+		if (exported) {
+			try {
+				UnicastRemoteObject.unexportObject(listener, true);
+			} catch (NoSuchObjectException e) {
+				// not exported anymore
+			}
+		}
+	}
+
+	@Override
+	public Contractor readRecord(long recNo) throws RecordNotFoundException,
+			IOException {
+		if (isNotified()) {
+			Contractor row = rows.get(recNo);
+			if (row != null) {
+				return copy(row);
+			}
+		}
+		long readGeneration = generation.get();
+		Contractor row = connection.readRecord(recNo);
+		keep(row, readGeneration);
+		return row;
+	}
+
+	@Override
+	public BatchResult<Contractor> readRecords(long[] recNos)
+			throws IOException {
+		BatchResult<Contractor> result = new BatchResult<Contractor>();
+		long[] missing = recNos;
+		if (isNotified()) {
+			List<Long> notCached = new ArrayList<Long>();
+			for (long recNo : recNos) {
+				Contractor row = rows.get(recNo);
+				if (row != null) {
+					result.addSuccess(recNo, copy(row));
+				} else {
+					notCached.add(recNo);
+				}
+			}
+			missing = new long[notCached.size()];
+			for (int i = 0; i < missing.length; i++) {
+				missing[i] = notCached.get(i);
+			}
+		}
+		if (missing.length > 0) {
+			long readGeneration = generation.get();
+			BatchResult<Contractor> read = connection.readRecords(missing);
+			for (long recNo : read.getSucceeded()) {
+				Contractor row = read.getResult(recNo);
+				keep(row, readGeneration);
+				result.addSuccess(recNo, row);
+			}
+			for (long recNo : read.getFailed()) {
+				result.addFailure(recNo, read.getFailure(recNo));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public List<Contractor> findByCriteria(Contractor criteria,
+			boolean exactMatch) throws IOException {
+		long readGeneration = generation.get();
+		return keepAll(connection.findByCriteria(criteria, exactMatch),
+				readGeneration);
+	}
+
+	@Override
+	public List<Contractor> findByCriteria(Contractor criteria,
+			boolean exactMatch, ContractorField orderBy, boolean ascending,
+			int limit) throws IOException {
+		long readGeneration = generation.get();
+		return keepAll(connection.findByCriteria(criteria, exactMatch,
+				orderBy, ascending, limit), readGeneration);
+	}
+
+	@Override
+	public List<Contractor> findByName(String name, int maxDistance)
+			throws IOException {
+		long readGeneration = generation.get();
+		return keepAll(connection.findByName(name, maxDistance),
+				readGeneration);
+	}
+
+	@Override
+	public ChangeSet changesSince(long version, Contractor criteria,
+			boolean exactMatch) throws IOException {
+		long readGeneration = generation.get();
+		ChangeSet changes = connection.changesSince(version, criteria,
+				exactMatch);
+		keepAll(changes.getChanged(), readGeneration);
+		return changes;
+	}
+
+	@Override
+	public Map<String, Integer> countAvailable(ContractorField groupBy)
+			throws IOException {
+		return connection.countAvailable(groupBy);
+	}
+
+	@Override
+	public long createRecord(Contractor contractor)
+			throws DuplicateKeyException, IOException {
+		long recNo = connection.createRecord(contractor);
+		// the record may reuse the number of a deleted one
+		invalidate(recNo);
+		return recNo;
+	}
+
+	@Override
+	public void updateRecord(long recNo, Contractor record)
+			throws RecordNotFoundException, SecurityException, IOException {
+		try {
+			connection.updateRecord(recNo, record);
+		} finally {
+			invalidate(recNo);
+		}
+	}
+
+	@Override
+	public long updateRecord(long recNo, Contractor record,
+			long expectedVersion) throws RecordNotFoundException,
+			VersionConflictException, IOException {
+		try {
+			return connection.updateRecord(recNo, record, expectedVersion);
+		} finally {
+			invalidate(recNo);
+		}
+	}
+
+	@Override
+	public BatchResult<Contractor> updateRecords(Map<Long, Contractor> records)
+			throws SecurityException, IOException {
+		try {
+			return connection.updateRecords(records);
+		} finally {
+			for (long recNo : records.keySet()) {
+				invalidate(recNo);
+			}
+		}
+	}
+
+	@Override
+	public Contractor bookRecord(long recNo, String ownerId)
+			throws AlreadyBookedException, RecordNotFoundException,
+			SecurityException, IOException {
+		try {
+			return connection.bookRecord(recNo, ownerId);
+		} finally {
+			invalidate(recNo);
+		}
+	}
+
+	@Override
+	public void deleteRecord(long recNo) throws RecordNotFoundException,
+			SecurityException, IOException {
+		try {
+			connection.deleteRecord(recNo);
+		} finally {
+			invalidate(recNo);
+		}
+	}
+
+	@Override
+	public BatchResult<Void> deleteRecords(long[] recNos) throws IOException {
+		try {
+			return connection.deleteRecords(recNos);
+		} finally {
+			for (long recNo : recNos) {
+				invalidate(recNo);
+			}
+		}
+	}
+
+	@Override
+	public void addChangeListener(ChangeListener listener) throws IOException {
+		connection.addChangeListener(listener);
+	}
+
+	@Override
+	public void removeChangeListener(ChangeListener listener)
+			throws IOException {
+		connection.removeChangeListener(listener);
+	}
+
+	/**
+	 * Tells whether the change notifications arrive, dropping the rows if
+	 * they do not.
+	 */
+	private boolean isNotified() {
+		if (System.nanoTime() - lastNotification < NOTIFICATION_TIMEOUT_NANOS) {
+			return true;
+		}
+		rows.clear();
+		return false;
+	}
+
+	/**
+	 * Keeps a copy of a row read from the server, unless any row was
+	 * invalidated since the read started.
+	 */
+	private void keep(Contractor row, long readGeneration) {
+		if (!isNotified() || generation.get() != readGeneration) {
+			return;
+		}
+		Contractor copy = copy(row);
+		rows.put(row.getId(), copy);
+		if (generation.get() != readGeneration) {
+			// invalidated meanwhile, the row may be out of date
+			rows.remove(row.getId(), copy);
+		}
+	}
+
+	private List<Contractor> keepAll(List<Contractor> found,
+			long readGeneration) {
+		for (Contractor row : found) {
+			keep(row, readGeneration);
+		}
+		return found;
+	}
+
+	private void invalidate(long recNo) {
+		generation.incrementAndGet();
+		rows.remove(recNo);
+	}
+
+	/**
+	 * Copies a row, so that the kept rows cannot be modified by the callers.
+	 */
+	private static Contractor copy(Contractor row) {
+		return new Contractor(row.toArray(), row.getId(), row.getVersion());
+	}
+}
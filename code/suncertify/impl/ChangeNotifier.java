@@ -0,0 +1,209 @@
+package suncertify.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import suncertify.api.ChangeListener;
+import suncertify.common.Log;
+import suncertify.db.ChangeEvent;
+import suncertify.db.ChangeFeedListener;
+import suncertify.db.Data;
+import suncertify.db.ModificationLog;
+
+/**
+ * Notifies the registered {@link ChangeListener}s of the changed records. The
+ * changed records are taken from the modification log of the database, so
+ * changes made through any connection are notified. A single background
+ * thread collects the changes: it is woken up by the change feed of the
+ * database after every modification and sends all the changes made since the
+ * last notification at once, or a heartbeat when nothing changed for
+ * {@link ChangeListener#HEARTBEAT_MILLIS}.
+ * <p/>
+ * The listeners are called back in parallel, each in a thread of its own, so
+ * that a slow client does not delay the others. A listener which fails, or
+ * does not answer within {@link #CALLBACK_TIMEOUT_MILLIS}, is dropped.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class ChangeNotifier {
+
+	/**
+	 * Maximum time in milliseconds a listener may take to answer a
+	 * notification.
+	 */
+	static final long CALLBACK_TIMEOUT_MILLIS = 5000;
+
+	private final Data data;
+	private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+	private final Object signal = new Object();
+	private final ExecutorService callbacks = Executors
+			.newCachedThreadPool(RequestExecutors
+					.newPlatformThreadFactory("db-change-callback"));
+	private final ChangeFeedListener feedListener = new ChangeFeedListener() {
+		@Override
+		public void changed(ChangeEvent event) {
+			wakeUp();
+		}
+
+		@Override
+		public void overrun() {
+			// the changes are read from the modification log, none is lost
+			data.subscribe(this);
+			wakeUp();
+		}
+	};
+	private boolean pending;
+	private long version;
+	private Thread thread;
+
+	/**
+	 * Creates a notifier of the changes of the given database.
+	 * 
+	 * @param data
+	 *            database whose changes are notified.
+	 */
+	ChangeNotifier(Data data) {
+		this.data = data;
+	}
+
+	/**
+	 * Registers a listener, starting the notifying thread with the first one.
+	 * The listeners are notified right away, so that a new listener learns
+	 * early that the notifications reach it.
+	 * 
+	 * @param listener
+	 *            listener to register.
+	 */
+	synchronized void addListener(ChangeListener listener) {
+		if (thread == null) {
+			version = data.getVersion();
+			thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					notifyListeners();
+				}
+			}, "db-change-notifier");
+			thread.setDaemon(true);
+			thread.start();
+			data.subscribe(feedListener);
+		}
+		listeners.add(listener);
+		wakeUp();
+	}
+
+	/**
+	 * Removes a registered listener.
+	 * 
+	 * @param listener
+	 *            listener to remove.
+	 */
+	void removeListener(ChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Wakes up the notifying thread after records were changed.
+	 */
+	private void wakeUp() {
+		synchronized (signal) {
+			pending = true;
+			signal.notifyAll();
+		}
+	}
+
+	private void notifyListeners() {
+		while (true) {
+			synchronized (signal) {
+				if (!pending) {
+					try {
+						signal.wait(ChangeListener.HEARTBEAT_MILLIS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				pending = false;
+			}
+			if (!callBack(collectChanges())) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Calls all the listeners back in parallel and waits for them at most
+	 * {@link #CALLBACK_TIMEOUT_MILLIS}, dropping the ones which failed or did
+	 * not answer in time.
+	 * 
+	 * @return false if the thread was interrupted.
+	 */
+	private boolean callBack(final long[] recNos) {
+		List<ChangeListener> notified = new ArrayList<ChangeListener>();
+		List<Future<Void>> calls = new ArrayList<Future<Void>>();
+		for (final ChangeListener listener : listeners) {
+			notified.add(listener);
+			calls.add(callbacks.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					listener.recordsChanged(recNos);
+					return null;
+				}
+			}));
+		}
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(CALLBACK_TIMEOUT_MILLIS);
+		for (int i = 0; i < calls.size(); i++) {
+			ChangeListener listener = notified.get(i);
+			Future<Void> call = calls.get(i);
+			try {
+				call.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} catch (ExecutionException e) {
+				Log.warn("Dropping change listener %s: %s", listener, e
+						.getCause());
+				listeners.remove(listener);
+			} catch (TimeoutException e) {
+				Log.warn("Dropping change listener %s: no answer in %d ms",
+						listener, CALLBACK_TIMEOUT_MILLIS);
+				call.cancel(true);
+				listeners.remove(listener);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the numbers of the records changed since the last call, or null
+	 * if they are no longer in the modification log.
+	 */
+	private long[] collectChanges() {
+		ModificationLog.Modification[] modifications = data
+				.getModificationsSince(version);
+		if (modifications == null) {
+			version = data.getVersion();
+			return null;
+		}
+		version += modifications.length;
+		Set<Long> changed = new TreeSet<Long>();
+		for (ModificationLog.Modification modification : modifications) {
+			changed.add(modification.getRecNo());
+		}
+		long[] recNos = new long[changed.size()];
+		int i = 0;
+		for (long recNo : changed) {
+			recNos[i++] = recNo;
+		}
+		return recNos;
+	}
+}
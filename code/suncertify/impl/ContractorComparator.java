@@ -0,0 +1,91 @@
+package suncertify.impl;
+
+import java.util.Comparator;
+
+import suncertify.api.Contractor;
+import suncertify.api.ContractorField;
+
+/**
+ * Compares contractors by a single property. Numeric properties are compared
+ * by their numeric value (ignoring currency symbols), text properties
+ * lexicographically. Contractors with equal values are ordered by their row
+ * number, so the ordering is total and the results are repeatable. Missing
+ * values, null or blank, go last in either direction.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class ContractorComparator implements Comparator<Contractor> {
+
+	private final ContractorField field;
+	private final boolean ascending;
+
+	/**
+	 * Creates a comparator ordering contractors by the given property.
+	 * 
+	 * @param field
+	 *            property to order contractors by.
+	 * @param ascending
+	 *            true for ascending order, false for descending.
+	 */
+	ContractorComparator(ContractorField field, boolean ascending) {
+		this.field = field;
+		this.ascending = ascending;
+	}
+
+	@Override
+	public int compare(Contractor c1, Contractor c2) {
+		String v1 = field.getValue(c1);
+		String v2 = field.getValue(c2);
+		int result;
+		if (isMissing(v1) || isMissing(v2)) {
+			// missing values go last whatever the direction
+			result = isMissing(v1) ? (isMissing(v2) ? 0 : 1) : -1;
+		} else {
+			result = compareValues(v1, v2);
+			if (!ascending) {
+				result = -result;
+			}
+		}
+		if (result == 0) {
+			result = c1.getId() < c2.getId() ? -1
+					: (c1.getId() == c2.getId() ? 0 : 1);
+		}
+		return result;
+	}
+
+	private static boolean isMissing(String value) {
+		return value == null || value.trim().length() == 0;
+	}
+
+	private int compareValues(String v1, String v2) {
+		if (field.isNumeric()) {
+			return Double.compare(toNumber(v1), toNumber(v2));
+		}
+		return v1.compareTo(v2);
+	}
+
+	/**
+	 * Parses a numeric value skipping all characters which are neither digits
+	 * nor a decimal point, so that "$40.00" becomes 40. Values which contain
+	 * no number at all are treated as the greatest possible value.
+	 * 
+	 * @param value
+	 *            value to be parsed.
+	 * @return numeric value of the given string.
+	 */
+	private static double toNumber(String value) {
+		StringBuilder sb = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (Character.isDigit(c) || c == '.') {
+				sb.append(c);
+			}
+		}
+		try {
+			return Double.parseDouble(sb.toString());
+		} catch (NumberFormatException e) {
+			return Double.MAX_VALUE;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package suncertify.impl;
+
+/**
+ * Matching of rows against search criteria, shared by the connections
+ * searching a database file and the ones searching a copy of it. A criterion
+ * of null matches any value; otherwise the value must be equal to the
+ * criterion in 'exact match' mode, and start with it in 'contain match'
+ * mode.
+ * <p/>
+ * The class depends on the rows only, so that a connection without a local
+ * database file, e.g. a {@link ReplicaDBConnection}, can use it.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+final class Criteria {
+
+	private Criteria() {
+	}
+
+	/**
+	 * Tells whether a row matches the criteria in the given mode.
+	 * 
+	 * @param row
+	 *            values of the row.
+	 * @param criteria
+	 *            search criteria as a record array.
+	 * @param exactMatch
+	 *            true for 'exact match' mode, false for 'contain match' mode.
+	 * @return true if every non-null criterion matches its value.
+	 */
+	static boolean matches(String[] row, String[] criteria,
+			boolean exactMatch) {
+		if (exactMatch) {
+			return matchesExactly(row, criteria);
+		}
+		for (int i = 0; i < row.length; i++) {
+			if (criteria[i] != null && !row[i].startsWith(criteria[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tells whether a row matches the criteria in 'exact match' mode.
+	 * 
+	 * @param row
+	 *            values of the row.
+	 * @param criteria
+	 *            search criteria as a record array.
+	 * @return true if every non-null criterion equals its value.
+	 */
+	static boolean matchesExactly(String[] row, String[] criteria) {
+		for (int i = 0; i < row.length; i++) {
+			if (criteria[i] != null && !criteria[i].equals(row[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -1,21 +1,47 @@
 package suncertify.impl;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
+import suncertify.api.AlreadyBookedException;
+import suncertify.api.BatchResult;
+import suncertify.api.ChangeListener;
+import suncertify.api.ChangeSet;
 import suncertify.api.Contractor;
+import suncertify.api.ContractorField;
+import suncertify.api.ContractorList;
+import suncertify.api.RetryLaterException;
+import suncertify.common.AppProperties;
+import suncertify.common.Log;
 import suncertify.db.Data;
 import suncertify.db.DuplicateKeyException;
+import suncertify.db.LockTimeoutException;
 import suncertify.db.RecordNotFoundException;
 import suncertify.db.SecurityException;
+import suncertify.db.Snapshot;
+import suncertify.db.VersionConflictException;
+import suncertify.db.VersionedRecord;
 
 /**
  * Implementation of the public database interface. Calls inner database API,
  * translates objects to/from Contractor beans, locks/unlocks rows before/after
- * modification.
+ * modification, always within the same call, so no row stays locked for a
+ * client between its calls. Every call is admitted by a
+ * {@link RequestScheduler} shared by all the connections, which bounds the
+ * number of calls running at once and rejects calls when too many are
+ * waiting.
  * 
  * @author Szymon Bochniak (bochniak.szymon@gmail.com)
  * 
@@ -37,50 +63,192 @@ public class DBConnectionImpl extends UnicastRemoteObject implements
 	 */
 	private static final long serialVersionUID = -5037852383806979937L;
 
+	/*
+	 * shared by all the connections, so that a single thread notifies all the
+	 * listeners
+	 */
+	private static final ChangeNotifier changeNotifier = new ChangeNotifier(
+			Data.getInstance());
+
+	/*
+	 * shared by all the connections, so that the limits apply to the whole
+	 * server
+	 */
+	private static final RequestScheduler scheduler = new RequestScheduler(
+			(int) AppProperties.getLong(AppProperties.SERVER_WORKERS),
+			(int) AppProperties.getLong(AppProperties.MAX_QUEUED_READS),
+			(int) AppProperties.getLong(AppProperties.MAX_QUEUED_WRITES));
+
 	/*
 	 * protected access for test purposes
 	 */
 	protected Data data = Data.getInstance();
 
+	private final QueryCache queryCache = new QueryCache(data,
+			(int) AppProperties.getLong(AppProperties.CACHE_ENTRIES),
+			AppProperties.getLong(AppProperties.CACHE_BYTES));
+	private final long lockTimeout = AppProperties
+			.getLong(AppProperties.LOCK_TIMEOUT);
+
 	@Override
 	public long createRecord(Contractor contractor)
 			throws DuplicateKeyException, IOException {
-		System.out
-				.println(String.format("Creating record %s", "" + contractor));
-		return data.createRecord(contractor.toArray());
+		scheduler.enter(RequestScheduler.Priority.WRITE);
+		try {
+			Log.debug("Creating record %s", contractor);
+			long recNo = data.createRecord(contractor.toArray());
+			return recNo;
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.WRITE);
+		}
 	}
 
 	@Override
 	public void deleteRecord(long recNo) throws RecordNotFoundException,
 			SecurityException, IOException {
-		System.out.println(String.format("Deleting record %s", recNo));
-		long cookie = data.lockRecord(recNo);
-		data.deleteRecord(recNo, cookie);
-		data.unlock(recNo, cookie);
+		scheduler.enter(RequestScheduler.Priority.WRITE);
+		try {
+			Log.debug("Deleting record %s", recNo);
+			long cookie = lock(recNo);
+			try {
+				data.deleteRecord(recNo, cookie);
+			} finally {
+				data.unlock(recNo, cookie);
+			}
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.WRITE);
+		}
+	}
+
+	@Override
+	public BatchResult<Void> deleteRecords(long[] recNos) throws IOException {
+		scheduler.enter(RequestScheduler.Priority.WRITE);
+		try {
+			Log.debug("Deleting records %s", recNos);
+			BatchResult<Void> result = new BatchResult<Void>();
+			long[] sorted = recNos.clone();
+			Arrays.sort(sorted);
+			for (int i = 0; i < sorted.length; i++) {
+				long recNo = sorted[i];
+				if (i > 0 && recNo == sorted[i - 1]) {
+					// already deleted
+					continue;
+				}
+				try {
+					long cookie = lock(recNo);
+					try {
+						data.deleteRecord(recNo, cookie);
+					} finally {
+						data.unlock(recNo, cookie);
+					}
+					result.addSuccess(recNo, null);
+				} catch (RecordNotFoundException e) {
+					result.addFailure(recNo, e);
+				} catch (SecurityException e) {
+					result.addFailure(recNo, e);
+				} catch (RetryLaterException e) {
+					result.addFailure(recNo, e);
+				}
+			}
+			return result;
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.WRITE);
+		}
 	}
 
 	@Override
 	public List<Contractor> findByCriteria(Contractor criteria,
 			boolean exactMatch) throws IOException {
-		System.out.println(String
-				.format("Searching by criteria %s exact-match=%s", criteria,
-						exactMatch));
-		long[] contractorIds = data.findByCriteria(criteria.toArray());
+		return findByCriteria(criteria, exactMatch, null, true, 0);
+	}
+
+	@Override
+	public List<Contractor> findByCriteria(Contractor criteria,
+			boolean exactMatch, ContractorField orderBy, boolean ascending,
+			int limit) throws IOException {
+		scheduler.enter(RequestScheduler.Priority.READ);
+		try {
+			if (Log.isEnabled(Log.Level.DEBUG)) {
+				Log.debug(
+						"Searching by criteria %s exact-match=%s order-by=%s%s limit=%s",
+						criteria, exactMatch, orderBy, ascending ? "" : " desc",
+						limit);
+			}
+			String[] criteriaArray = criteria.toArray();
+			List<Contractor> rows = queryCache.get(criteriaArray, exactMatch);
+			if (rows == null) {
+				Snapshot snapshot = data.openSnapshot();
+				try {
+					rows = findMatching(criteriaArray, exactMatch, snapshot);
+				} finally {
+					snapshot.release();
+				}
+				queryCache.put(criteriaArray, exactMatch, rows, snapshot
+						.getVersion());
+			}
+			if (orderBy == null) {
+				if (limit > 0 && limit < rows.size()) {
+					rows = rows.subList(0, limit);
+				}
+				return new ContractorList(rows);
+			}
+			Comparator<Contractor> comparator = new ContractorComparator(
+					orderBy, ascending);
+			List<Contractor> result;
+			if (limit > 0 && limit < rows.size()) {
+				// bounded heap keeping the worst of the best rows on top
+				PriorityQueue<Contractor> topRows = new PriorityQueue<Contractor>(
+						limit, Collections.reverseOrder(comparator));
+				for (Contractor row : rows) {
+					if (topRows.size() < limit) {
+						topRows.add(row);
+					} else if (comparator.compare(row, topRows.peek()) < 0) {
+						topRows.poll();
+						topRows.add(row);
+					}
+				}
+				result = new ArrayList<Contractor>(topRows);
+			} else {
+				result = rows;
+			}
+			Collections.sort(result, comparator);
+			return new ContractorList(result);
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.READ);
+		}
+	}
+
+	/**
+	 * Reads all the database rows matching the criteria in the given snapshot.
+	 * 
+	 * @param criteria
+	 *            search criteria as a record array.
+	 * @param exactMatch
+	 *            true for 'exact match' mode, false for 'contain match' mode.
+	 * @param snapshot
+	 *            snapshot of the database to search.
+	 * @return list of matching rows in the order of the database file.
+	 */
+	private List<Contractor> findMatching(String[] criteria,
+			boolean exactMatch, Snapshot snapshot) {
+		long[] contractorIds = data.findByCriteria(criteria, snapshot);
 		List<Contractor> result = new ArrayList<Contractor>(
 				contractorIds.length);
 		for (long id : contractorIds) {
 			try {
-				String[] row = data.readRecord(id);
+				VersionedRecord record = data
+						.readVersionedRecord(id, snapshot);
+				String[] row = record.getData();
 				if (exactMatch) {
-					if (!matchesCriteria(row, criteria.toArray())) {
+					if (!Criteria.matchesExactly(row, criteria)) {
 						// skip row
 						continue;
 					}
 				}
-				result.add(new Contractor(row, id));
+				result.add(new Contractor(row, id, record.getVersion()));
 			} catch (RecordNotFoundException e) {
 				// skip record which was not found
-				e.printStackTrace();
+				Log.warn("Skipping record %s", id, e);
 			}
 		}
 		return result;
@@ -89,27 +257,316 @@ public class DBConnectionImpl extends UnicastRemoteObject implements
 	@Override
 	public Contractor readRecord(long recNo) throws RecordNotFoundException,
 			IOException {
-		System.out.println(String.format("Reading record %s", recNo));
-		return new Contractor(data.readRecord(recNo), recNo);
+		scheduler.enter(RequestScheduler.Priority.READ);
+		try {
+			Log.debug("Reading record %s", recNo);
+			VersionedRecord record = data.readVersionedRecord(recNo);
+			return new Contractor(record.getData(), recNo, record.getVersion());
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.READ);
+		}
+	}
+
+	@Override
+	public BatchResult<Contractor> readRecords(long[] recNos)
+			throws IOException {
+		scheduler.enter(RequestScheduler.Priority.READ);
+		try {
+			Log.debug("Reading records %s", recNos);
+			BatchResult<Contractor> result = new BatchResult<Contractor>();
+			Snapshot snapshot = data.openSnapshot();
+			try {
+				for (long recNo : recNos) {
+					try {
+						VersionedRecord record = data.readVersionedRecord(
+								recNo, snapshot);
+						result.addSuccess(recNo, new Contractor(record
+								.getData(), recNo, record.getVersion()));
+					} catch (RecordNotFoundException e) {
+						result.addFailure(recNo, e);
+					}
+				}
+			} finally {
+				snapshot.release();
+			}
+			return result;
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.READ);
+		}
 	}
 
 	@Override
 	public void updateRecord(long recNo, Contractor contractor)
 			throws RecordNotFoundException, SecurityException, IOException {
-		System.out.println(String.format("Updating record %s with data %s",
-				recNo, contractor));
-		long cookie = data.lockRecord(recNo);
-		data.updateRecord(recNo, contractor.toArray(), cookie);
-		data.unlock(recNo, cookie);
+		scheduler.enter(RequestScheduler.Priority.WRITE);
+		try {
+			Log.debug("Updating record %s with data %s", recNo, contractor);
+			long cookie = lock(recNo);
+			try {
+				data.updateRecord(recNo, contractor.toArray(), cookie);
+			} finally {
+				data.unlock(recNo, cookie);
+			}
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.WRITE);
+		}
 	}
 
-	private boolean matchesCriteria(String[] row, String[] criteria) {
-		for (int i = 0; i < row.length; i++) {
-			if (criteria[i] != null && !criteria[i].equals(row[i])) {
-				return false;
+	@Override
+	public long updateRecord(long recNo, Contractor contractor,
+			long expectedVersion) throws RecordNotFoundException,
+			VersionConflictException, IOException {
+		scheduler.enter(RequestScheduler.Priority.WRITE);
+		try {
+			Log.debug("Updating record %s version %s with data %s", recNo,
+					expectedVersion, contractor);
+			long version = data.compareAndUpdateRecord(recNo, contractor
+					.toArray(), expectedVersion);
+			return version;
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.WRITE);
+		}
+	}
+
+	@Override
+	public BatchResult<Contractor> updateRecords(Map<Long, Contractor> records)
+			throws SecurityException, IOException {
+		scheduler.enter(RequestScheduler.Priority.WRITE);
+		try {
+			Log.debug("Updating records %s", records.keySet());
+			BatchResult<Contractor> result = new BatchResult<Contractor>();
+			Map<Long, String[]> updates = new TreeMap<Long, String[]>();
+			for (Map.Entry<Long, Contractor> record : records.entrySet()) {
+				updates.put(record.getKey(), record.getValue().toArray());
 			}
+			while (true) {
+				// rows which do not exist are reported and left out
+				Iterator<Long> i = updates.keySet().iterator();
+				while (i.hasNext()) {
+					long recNo = i.next();
+					try {
+						data.readVersionedRecord(recNo);
+					} catch (RecordNotFoundException e) {
+						result.addFailure(recNo, e);
+						i.remove();
+					}
+				}
+				if (updates.isEmpty()) {
+					return result;
+				}
+				long[] recNos = new long[updates.size()];
+				int j = 0;
+				for (long recNo : updates.keySet()) {
+					recNos[j++] = recNo;
+				}
+				long cookie;
+				try {
+					cookie = lockAll(recNos);
+				} catch (RecordNotFoundException e) {
+					// a row was deleted in the meantime, find it out again
+					continue;
+				}
+				try {
+					data.updateRecords(updates, cookie);
+					for (long recNo : recNos) {
+						VersionedRecord record = data
+								.readVersionedRecord(recNo);
+						result.addSuccess(recNo, new Contractor(record
+								.getData(), recNo, record.getVersion()));
+					}
+				} catch (RecordNotFoundException e) {
+					// cannot happen, locked rows cannot be deleted
+					throw new IllegalStateException(e);
+				} finally {
+					data.unlockRecords(recNos, cookie);
+				}
+				return result;
+			}
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.WRITE);
+		}
+	}
+
+	@Override
+	public Contractor bookRecord(long recNo, String ownerId)
+			throws AlreadyBookedException, RecordNotFoundException,
+			SecurityException, IOException {
+		if (ownerId == null || ownerId.trim().length() == 0) {
+			throw new IllegalArgumentException("Owner ID must not be blank");
+		}
+		scheduler.enter(RequestScheduler.Priority.WRITE);
+		try {
+			Log.debug("Booking record %s for %s", recNo, ownerId);
+			final int owner = ContractorField.OWNER.getIndex();
+			long cookie = lock(recNo);
+			try {
+				String[] row = data.readRecord(recNo);
+				if (row[owner].trim().length() > 0) {
+					throw new AlreadyBookedException("Record " + recNo
+							+ " is already booked by " + row[owner].trim());
+				}
+				String[] update = new String[row.length];
+				update[owner] = ownerId;
+				data.updateRecord(recNo, update, cookie);
+				VersionedRecord record = data.readVersionedRecord(recNo);
+				return new Contractor(record.getData(), recNo, record
+						.getVersion());
+			} finally {
+				data.unlock(recNo, cookie);
+			}
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.WRITE);
+		}
+	}
+
+	/**
+	 * Locks a record waiting at most the configured lock timeout, so that a
+	 * record kept locked by another client does not block the server thread
+	 * for long.
+	 * 
+	 * @param recNo
+	 *            number of the record to lock.
+	 * @return cookie the record was locked with.
+	 * @throws RecordNotFoundException
+	 *             if the record does not exist or was deleted.
+	 * @throws RetryLaterException
+	 *             if the record was not unlocked within the lock timeout.
+	 * @throws InterruptedIOException
+	 *             if the server thread was interrupted while waiting.
+	 */
+	private long lock(long recNo) throws RecordNotFoundException,
+			RetryLaterException, InterruptedIOException {
+		try {
+			return data.lockRecord(recNo, lockTimeout, TimeUnit.MILLISECONDS);
+		} catch (LockTimeoutException e) {
+			throw new RetryLaterException("Record " + recNo
+					+ " is being modified by another client, try again later",
+					e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while locking record "
+					+ recNo);
+		}
+	}
+
+	@Override
+	public Map<String, Integer> countAvailable(ContractorField groupBy)
+			throws IOException {
+		scheduler.enter(RequestScheduler.Priority.READ);
+		try {
+			Log.debug("Counting available by %s", groupBy);
+			return data.countByField(groupBy.getIndex(),
+					groupBy == ContractorField.SPECIALITIES,
+					ContractorField.OWNER.getIndex());
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.READ);
+		}
+	}
+
+	@Override
+	public List<Contractor> findByName(String name, int maxDistance)
+			throws IOException {
+		scheduler.enter(RequestScheduler.Priority.READ);
+		try {
+			Log.debug("Searching by name %s max-distance=%s", name,
+					maxDistance);
+			long[] contractorIds = data.findByEditDistance(ContractorField.NAME
+					.getIndex(), name, maxDistance);
+			List<Contractor> result = new ContractorList();
+			for (long id : contractorIds) {
+				try {
+					VersionedRecord record = data.readVersionedRecord(id);
+					result.add(new Contractor(record.getData(), id, record
+							.getVersion()));
+				} catch (RecordNotFoundException e) {
+					// skip record which was not found
+					Log.warn("Skipping record %s", id, e);
+				}
+			}
+			return result;
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.READ);
+		}
+	}
+
+	@Override
+	public ChangeSet changesSince(long version, Contractor criteria,
+			boolean exactMatch) throws IOException {
+		scheduler.enter(RequestScheduler.Priority.READ);
+		try {
+			Log.debug(
+					"Searching changes since %s by criteria %s exact-match=%s",
+					version, criteria, exactMatch);
+			String[] criteriaArray = criteria.toArray();
+			Snapshot snapshot = data.openSnapshot();
+			try {
+				if (version < 0 || version > snapshot.getVersion()) {
+					return new ChangeSet(snapshot.getVersion(), true,
+							new ContractorList(findMatching(criteriaArray,
+									exactMatch, snapshot)), new long[0]);
+				}
+				List<Contractor> changed = new ContractorList();
+				List<Long> removed = new ArrayList<Long>();
+				for (long recNo : data.getModifiedSince(version)) {
+					try {
+						VersionedRecord record = data.readVersionedRecord(
+								recNo, snapshot);
+						if (Criteria.matches(record.getData(), criteriaArray,
+								exactMatch)) {
+							changed.add(new Contractor(record.getData(), recNo,
+									record.getVersion()));
+							continue;
+						}
+					} catch (RecordNotFoundException e) {
+						// deleted, or created after the snapshot
+					}
+					removed.add(recNo);
+				}
+				long[] removedRecNos = new long[removed.size()];
+				for (int i = 0; i < removedRecNos.length; i++) {
+					removedRecNos[i] = removed.get(i);
+				}
+				return new ChangeSet(snapshot.getVersion(), false, changed,
+						removedRecNos);
+			} finally {
+				snapshot.release();
+			}
+		} finally {
+			scheduler.exit(RequestScheduler.Priority.READ);
+		}
+	}
+
+	@Override
+	public void addChangeListener(ChangeListener listener) throws IOException {
+		Log.info("Adding change listener %s", listener);
+		changeNotifier.addListener(listener);
+	}
+
+	@Override
+	public void removeChangeListener(ChangeListener listener)
+			throws IOException {
+		Log.info("Removing change listener %s", listener);
+		changeNotifier.removeListener(listener);
+	}
+
+	/**
+	 * Locks a set of records waiting at most the configured lock timeout. See
+	 * {@link #lock(long)}.
+	 */
+	private long lockAll(long[] recNos) throws RecordNotFoundException,
+			RetryLaterException, InterruptedIOException {
+		try {
+			return data.lockRecords(recNos, lockTimeout,
+					TimeUnit.MILLISECONDS);
+		} catch (LockTimeoutException e) {
+			throw new RetryLaterException(
+					"Records are being modified by another client, try again later",
+					e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while locking records");
 		}
-		return true;
 	}
 
 }
@@ -0,0 +1,247 @@
+package suncertify.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import suncertify.api.AsyncDBConnection;
+import suncertify.api.BatchResult;
+import suncertify.api.ChangeListener;
+import suncertify.api.ChangeSet;
+import suncertify.api.Contractor;
+import suncertify.api.ContractorField;
+import suncertify.api.DBConnection;
+
+/**
+ * Asynchronous database connection running the calls of a blocking
+ * {@link DBConnection} on an executor. Used for the local and the RMI
+ * connections, whose calls block the thread running them; with virtual
+ * threads (see {@link RequestExecutors}) a blocked call costs no platform
+ * thread.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class ExecutorAsyncDBConnection implements AsyncDBConnection {
+
+	private final DBConnection connection;
+	private final Executor executor;
+
+	/**
+	 * Creates an asynchronous connection running the calls on the given
+	 * executor.
+	 * 
+	 * @param connection
+	 *            blocking connection to run the calls on.
+	 * @param executor
+	 *            executor running the calls.
+	 */
+	public ExecutorAsyncDBConnection(DBConnection connection, Executor executor) {
+		this.connection = connection;
+		this.executor = executor;
+	}
+
+	@Override
+	public CompletableFuture<Long> createRecord(final Contractor contractor) {
+		return submit(new Call<Long>() {
+			@Override
+			Long call() throws Exception {
+				return connection.createRecord(contractor);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Contractor> readRecord(final long recNo) {
+		return submit(new Call<Contractor>() {
+			@Override
+			Contractor call() throws Exception {
+				return connection.readRecord(recNo);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<BatchResult<Contractor>> readRecords(
+			final long[] recNos) {
+		return submit(new Call<BatchResult<Contractor>>() {
+			@Override
+			BatchResult<Contractor> call() throws Exception {
+				return connection.readRecords(recNos);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> updateRecord(final long recNo,
+			final Contractor record) {
+		return submit(new Call<Void>() {
+			@Override
+			Void call() throws Exception {
+				connection.updateRecord(recNo, record);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Long> updateRecord(final long recNo,
+			final Contractor record, final long expectedVersion) {
+		return submit(new Call<Long>() {
+			@Override
+			Long call() throws Exception {
+				return connection.updateRecord(recNo, record, expectedVersion);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<BatchResult<Contractor>> updateRecords(
+			final Map<Long, Contractor> records) {
+		return submit(new Call<BatchResult<Contractor>>() {
+			@Override
+			BatchResult<Contractor> call() throws Exception {
+				return connection.updateRecords(records);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Contractor> bookRecord(final long recNo,
+			final String ownerId) {
+		return submit(new Call<Contractor>() {
+			@Override
+			Contractor call() throws Exception {
+				return connection.bookRecord(recNo, ownerId);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteRecord(final long recNo) {
+		return submit(new Call<Void>() {
+			@Override
+			Void call() throws Exception {
+				connection.deleteRecord(recNo);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<BatchResult<Void>> deleteRecords(
+			final long[] recNos) {
+		return submit(new Call<BatchResult<Void>>() {
+			@Override
+			BatchResult<Void> call() throws Exception {
+				return connection.deleteRecords(recNos);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<Contractor>> findByCriteria(
+			final Contractor criteria, final boolean exactMatch) {
+		return submit(new Call<List<Contractor>>() {
+			@Override
+			List<Contractor> call() throws Exception {
+				return connection.findByCriteria(criteria, exactMatch);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<Contractor>> findByCriteria(
+			final Contractor criteria, final boolean exactMatch,
+			final ContractorField orderBy, final boolean ascending,
+			final int limit) {
+		return submit(new Call<List<Contractor>>() {
+			@Override
+			List<Contractor> call() throws Exception {
+				return connection.findByCriteria(criteria, exactMatch,
+						orderBy, ascending, limit);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Map<String, Integer>> countAvailable(
+			final ContractorField groupBy) {
+		return submit(new Call<Map<String, Integer>>() {
+			@Override
+			Map<String, Integer> call() throws Exception {
+				return connection.countAvailable(groupBy);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<Contractor>> findByName(final String name,
+			final int maxDistance) {
+		return submit(new Call<List<Contractor>>() {
+			@Override
+			List<Contractor> call() throws Exception {
+				return connection.findByName(name, maxDistance);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<ChangeSet> changesSince(final long version,
+			final Contractor criteria, final boolean exactMatch) {
+		return submit(new Call<ChangeSet>() {
+			@Override
+			ChangeSet call() throws Exception {
+				return connection.changesSince(version, criteria, exactMatch);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> addChangeListener(
+			final ChangeListener listener) {
+		return submit(new Call<Void>() {
+			@Override
+			Void call() throws Exception {
+				connection.addChangeListener(listener);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Void> removeChangeListener(
+			final ChangeListener listener) {
+		return submit(new Call<Void>() {
+			@Override
+			Void call() throws Exception {
+				connection.removeChangeListener(listener);
+				return null;
+			}
+		});
+	}
+
+	private <T> CompletableFuture<T> submit(Call<T> call) {
+		return CompletableFuture.supplyAsync(call, executor);
+	}
+
+	/**
+	 * Blocking call passing the checked exceptions to the future.
+	 */
+	private static abstract class Call<T> implements Supplier<T> {
+
+		abstract T call() throws Exception;
+
+		@Override
+		public T get() {
+			try {
+				return call();
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package suncertify.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import suncertify.api.Contractor;
+import suncertify.db.Data;
+import suncertify.db.ModificationLog;
+import suncertify.db.ModificationLog.Modification;
+
+/**
+ * Server side cache of search results. Results are cached under the
+ * normalized search criteria and match mode. Cache is bounded by the number
+ * of entries and by the estimated memory taken by the cached rows; least
+ * recently used entries are evicted first.
+ * <p/>
+ * Entries are validated lazily against the database version. When the
+ * database was modified since an entry was cached, the entry is dropped only
+ * if one of the modifications touched a row contained in the result, changed
+ * a field used by the criteria, or created a new row.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class QueryCache {
+
+	/**
+	 * Estimated memory taken by a cached row apart from its field values.
+	 */
+	private static final int ROW_OVERHEAD = 128;
+
+	private final Data data;
+	private final int maxEntries;
+	private final long maxBytes;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	private long bytes;
+	/*
+	 * not a monitor, as the validation reads the modification log while
+	 * holding it, and a virtual thread waiting for it must not pin its
+	 * carrier thread
+	 */
+	private final Lock lock = new ReentrantLock();
+
+	/**
+	 * Creates an empty cache.
+	 * 
+	 * @param data
+	 *            database whose version is used to validate entries.
+	 * @param maxEntries
+	 *            maximum number of cached results.
+	 * @param maxBytes
+	 *            maximum estimated memory taken by cached results.
+	 */
+	QueryCache(Data data, int maxEntries, long maxBytes) {
+		this.data = data;
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the cached result for the given criteria, if it is still valid.
+	 * 
+	 * @param criteria
+	 *            search criteria as a record array.
+	 * @param exactMatch
+	 *            match mode of the search.
+	 * @return copy of the cached result, or null if there is no valid result
+	 *         cached.
+	 */
+	List<Contractor> get(String[] criteria, boolean exactMatch) {
+		lock.lock();
+		try {
+			String key = toKey(criteria, exactMatch);
+			Entry entry = entries.get(key);
+			if (entry == null) {
+				return null;
+			}
+			long version = data.getVersion();
+			if (entry.version != version) {
+				if (!isStillValid(entry)) {
+					remove(key);
+					return null;
+				}
+				entry.version = version;
+			}
+			return copyOf(entry.rows);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Caches a search result.
+	 * 
+	 * @param criteria
+	 *            search criteria as a record array.
+	 * @param exactMatch
+	 *            match mode of the search.
+	 * @param rows
+	 *            result of the search.
+	 * @param version
+	 *            database version read before the search was started.
+	 */
+	void put(String[] criteria, boolean exactMatch,
+			List<Contractor> rows, long version) {
+		lock.lock();
+		try {
+			Entry entry = new Entry();
+			entry.version = version;
+			entry.rows = copyOf(rows);
+			entry.recNos = new HashSet<Long>();
+			for (Contractor row : rows) {
+				entry.recNos.add(row.getId());
+				entry.bytes += ROW_OVERHEAD;
+				for (String value : row.toArray()) {
+					entry.bytes += value == null ? 0 : 2 * value.length();
+				}
+			}
+			String[] normalized = normalize(criteria, exactMatch);
+			for (int i = 0; i < normalized.length; i++) {
+				if (normalized[i] != null) {
+					entry.criteriaMask |= ModificationLog.fieldBit(i);
+				}
+			}
+			if (entry.bytes > maxBytes) {
+				return;
+			}
+			String key = toKey(criteria, exactMatch);
+			remove(key);
+			entries.put(key, entry);
+			bytes += entry.bytes;
+			// evict least recently used entries
+			Iterator<Entry> it = entries.values().iterator();
+			while (entries.size() > maxEntries || bytes > maxBytes) {
+				bytes -= it.next().bytes;
+				it.remove();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean isStillValid(Entry entry) {
+		Modification[] modifications = data
+				.getModificationsSince(entry.version);
+		if (modifications == null) {
+			return false;
+		}
+		for (Modification m : modifications) {
+			if (m.getFieldMask() == ModificationLog.ALL_FIELDS
+					|| (m.getFieldMask() & entry.criteriaMask) != 0
+					|| entry.recNos.contains(m.getRecNo())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void remove(String key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			bytes -= old.bytes;
+		}
+	}
+
+	/**
+	 * Normalizes the criteria, so that equivalent searches share the cache
+	 * entry. In 'contain match' mode an empty criteria field matches anything,
+	 * just like a null one.
+	 */
+	private static String[] normalize(String[] criteria, boolean exactMatch) {
+		String[] normalized = new String[criteria.length];
+		for (int i = 0; i < criteria.length; i++) {
+			String value = criteria[i];
+			if (!exactMatch && value != null && value.length() == 0) {
+				value = null;
+			}
+			normalized[i] = value;
+		}
+		return normalized;
+	}
+
+	/**
+	 * Builds an unambiguous key of the criteria: each field is written as its
+	 * length followed by the value, null fields as a single dash.
+	 */
+	private static String toKey(String[] criteria, boolean exactMatch) {
+		StringBuilder sb = new StringBuilder(exactMatch ? "E" : "C");
+		for (String value : normalize(criteria, exactMatch)) {
+			if (value == null) {
+				sb.append('-');
+			} else {
+				sb.append(value.length()).append(':').append(value);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Copies the rows, so that neither the callers nor the cache see each
+	 * others modifications of the returned beans.
+	 */
+	private static List<Contractor> copyOf(List<Contractor> rows) {
+		List<Contractor> copy = new ArrayList<Contractor>(rows.size());
+		for (Contractor row : rows) {
+			copy.add(new Contractor(row.toArray(), row.getId(), row
+					.getVersion()));
+		}
+		return copy;
+	}
+
+	/**
+	 * Cached search result.
+	 */
+	private static class Entry {
+		private long version;
+		private List<Contractor> rows;
+		private Set<Long> recNos;
+		private long criteriaMask;
+		private long bytes;
+	}
+}
@@ -0,0 +1,283 @@
+package suncertify.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import suncertify.api.BatchResult;
+import suncertify.api.ChangeListener;
+import suncertify.api.ChangeSet;
+import suncertify.api.Contractor;
+import suncertify.api.ContractorField;
+import suncertify.api.ContractorList;
+import suncertify.api.DBConnection;
+import suncertify.api.RetryLaterException;
+import suncertify.db.RecordNotFoundException;
+
+/**
+ * Read-only database connection serving the rows from a local copy of the
+ * leader database, kept up to date by the replication stream of the leader
+ * (see {@link suncertify.net.ReplicationClient}). The copy is loaded from a
+ * snapshot of the leader and then follows its modifications in the order
+ * they were made, so a read sees the leader database as it was at some
+ * recent version, with the same row numbers and row versions.
+ * <p/>
+ * Only reading by row number and searching by criteria are served. The other
+ * calls, and all the calls while the copy is not synchronized with the
+ * leader, fail with an {@link IOException}, so that they can be sent to the
+ * leader instead, see {@link RoutingDBConnection}.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class ReplicaDBConnection implements DBConnection {
+
+	/*
+	 * modifications are applied holding the write lock, so that reads
+	 * holding the read lock see all the rows at the same version
+	 */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private TreeMap<Long, Contractor> rows = new TreeMap<Long, Contractor>();
+	private long version;
+	private volatile boolean synchronizedWithLeader;
+
+	/**
+	 * Replaces the copy with the rows of a snapshot of the leader.
+	 * 
+	 * @param snapshotVersion
+	 *            version of the leader database the snapshot was taken at.
+	 * @param snapshotRows
+	 *            all the rows of the snapshot.
+	 */
+	public void load(long snapshotVersion, List<Contractor> snapshotRows) {
+		TreeMap<Long, Contractor> loaded = new TreeMap<Long, Contractor>();
+		for (Contractor row : snapshotRows) {
+			loaded.put(row.getId(), row);
+		}
+		lock.writeLock().lock();
+		try {
+			rows = loaded;
+			version = snapshotVersion;
+			synchronizedWithLeader = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Applies a modification of the leader database. Modifications up to the
+	 * version of the copy are already applied and ignored.
+	 * 
+	 * @param sequence
+	 *            version of the leader database the modification made.
+	 * @param recNo
+	 *            number of the modified row.
+	 * @param row
+	 *            the row after the modification, null if it was deleted.
+	 */
+	public void apply(long sequence, long recNo, Contractor row) {
+		lock.writeLock().lock();
+		try {
+			if (sequence <= version) {
+				return;
+			}
+			if (row == null) {
+				rows.remove(recNo);
+			} else {
+				rows.put(recNo, row);
+			}
+			version = sequence;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Marks the copy as no longer following the leader, so that the reads
+	 * fail until it is loaded again.
+	 */
+	public void disconnected() {
+		synchronizedWithLeader = false;
+	}
+
+	/**
+	 * Version of the leader database the copy is at.
+	 * 
+	 * @return version of the copy.
+	 */
+	public long getVersion() {
+		lock.readLock().lock();
+		try {
+			return version;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Contractor readRecord(long recNo) throws RecordNotFoundException,
+			IOException {
+		checkSynchronized();
+		lock.readLock().lock();
+		try {
+			Contractor row = rows.get(recNo);
+			if (row == null) {
+				throw new RecordNotFoundException("Record " + recNo
+						+ " did not exist at version " + version);
+			}
+			return copy(row);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public BatchResult<Contractor> readRecords(long[] recNos)
+			throws IOException {
+		checkSynchronized();
+		BatchResult<Contractor> result = new BatchResult<Contractor>();
+		lock.readLock().lock();
+		try {
+			for (long recNo : recNos) {
+				Contractor row = rows.get(recNo);
+				if (row == null) {
+					result.addFailure(recNo, new RecordNotFoundException(
+							"Record " + recNo + " did not exist at version "
+									+ version));
+				} else {
+					result.addSuccess(recNo, copy(row));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return result;
+	}
+
+	@Override
+	public List<Contractor> findByCriteria(Contractor criteria,
+			boolean exactMatch) throws IOException {
+		return findByCriteria(criteria, exactMatch, null, true, 0);
+	}
+
+	@Override
+	public List<Contractor> findByCriteria(Contractor criteria,
+			boolean exactMatch, ContractorField orderBy, boolean ascending,
+			int limit) throws IOException {
+		checkSynchronized();
+		String[] criteriaArray = criteria.toArray();
+		List<Contractor> result = new ArrayList<Contractor>();
+		lock.readLock().lock();
+		try {
+			for (Contractor row : rows.values()) {
+				if (Criteria.matches(row.toArray(), criteriaArray,
+						exactMatch)) {
+					result.add(copy(row));
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (orderBy != null) {
+			Collections.sort(result, new ContractorComparator(orderBy,
+					ascending));
+		}
+		if (limit > 0 && limit < result.size()) {
+			result = result.subList(0, limit);
+		}
+		return new ContractorList(result);
+	}
+
+	@Override
+	public Map<String, Integer> countAvailable(ContractorField groupBy)
+			throws IOException {
+		throw notServed();
+	}
+
+	@Override
+	public List<Contractor> findByName(String name, int maxDistance)
+			throws IOException {
+		throw notServed();
+	}
+
+	@Override
+	public ChangeSet changesSince(long version, Contractor criteria,
+			boolean exactMatch) throws IOException {
+		throw notServed();
+	}
+
+	@Override
+	public long createRecord(Contractor contractor) throws IOException {
+		throw notServed();
+	}
+
+	@Override
+	public void updateRecord(long recNo, Contractor record)
+			throws IOException {
+		throw notServed();
+	}
+
+	@Override
+	public long updateRecord(long recNo, Contractor record,
+			long expectedVersion) throws IOException {
+		throw notServed();
+	}
+
+	@Override
+	public BatchResult<Contractor> updateRecords(Map<Long, Contractor> records)
+			throws IOException {
+		throw notServed();
+	}
+
+	@Override
+	public Contractor bookRecord(long recNo, String ownerId)
+			throws IOException {
+		throw notServed();
+	}
+
+	@Override
+	public void deleteRecord(long recNo) throws IOException {
+		throw notServed();
+	}
+
+	@Override
+	public BatchResult<Void> deleteRecords(long[] recNos) throws IOException {
+		throw notServed();
+	}
+
+	@Override
+	public void addChangeListener(ChangeListener listener) throws IOException {
+		throw notServed();
+	}
+
+	@Override
+	public void removeChangeListener(ChangeListener listener)
+			throws IOException {
+		throw notServed();
+	}
+
+	private void checkSynchronized() throws RetryLaterException {
+		if (!synchronizedWithLeader) {
+			throw new RetryLaterException(
+					"Replica is not synchronized with the leader, try again later");
+		}
+	}
+
+	private static IOException notServed() {
+		return new IOException(
+				"Not served by a read-only replica, use the leader");
+	}
+
+	/**
+	 * Copies a row, so that the rows of the copy cannot be modified by the
+	 * callers.
+	 */
+	private static Contractor copy(Contractor row) {
+		return new Contractor(row.toArray(), row.getId(), row.getVersion());
+	}
+}
@@ -0,0 +1,116 @@
+package suncertify.impl;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import suncertify.common.AppProperties;
+import suncertify.common.Log;
+
+/**
+ * Creates executors running database requests, one thread per request. The
+ * kind of threads is chosen by {@link AppProperties#SERVER_THREADS}: either
+ * platform threads from a cached pool, or virtual threads. Only the request
+ * paths the server controls run the {@link DBConnectionImpl} requests on
+ * them; RMI calls run on the platform threads of the RMI runtime, which the
+ * application cannot replace.
+ * <p/>
+ * Whatever a request of {@link DBConnectionImpl} waits for, a record lock,
+ * the modification log, the snapshots or the query cache, it waits on a
+ * {@link java.util.concurrent.locks.Lock} or
+ * {@link java.util.concurrent.locks.Condition}, never on a monitor, so a
+ * waiting virtual thread releases its carrier thread and thousands of
+ * waiting requests cost no native threads. The few monitors left guard short
+ * in-memory updates of the indexes and never wait inside.
+ * <p/>
+ * Virtual threads are created through reflection, so the application still
+ * runs on Java versions without them, falling back to platform threads.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class RequestExecutors {
+
+	/**
+	 * Value of {@link AppProperties#SERVER_THREADS} selecting platform
+	 * threads.
+	 */
+	public static final String PLATFORM = "platform";
+
+	/**
+	 * Value of {@link AppProperties#SERVER_THREADS} selecting virtual threads.
+	 */
+	public static final String VIRTUAL = "virtual";
+
+	private RequestExecutors() {
+		// hidden constructor
+	}
+
+	/**
+	 * Creates an executor running each task in its own thread, of the kind
+	 * configured by {@link AppProperties#SERVER_THREADS}.
+	 * 
+	 * @param name
+	 *            prefix of the names of the threads.
+	 * @return a new executor.
+	 */
+	public static ExecutorService newRequestExecutor(String name) {
+		if (VIRTUAL.equalsIgnoreCase(AppProperties.get(
+				AppProperties.SERVER_THREADS).trim())) {
+			ExecutorService executor = newVirtualThreadExecutor(name);
+			if (executor != null) {
+				return executor;
+			}
+			Log.warn("Virtual threads are not supported by this "
+					+ "Java version, using platform threads");
+		}
+		return Executors.newCachedThreadPool(newPlatformThreadFactory(name));
+	}
+
+	/**
+	 * Creates a factory of daemon platform threads named with the given
+	 * prefix and a sequence number.
+	 * 
+	 * @param name
+	 *            prefix of the names of the threads.
+	 * @return a new thread factory.
+	 */
+	public static ThreadFactory newPlatformThreadFactory(final String name) {
+		return new ThreadFactory() {
+			private final AtomicLong counter = new AtomicLong();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-"
+						+ counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Creates an executor starting a new virtual thread for each task.
+	 * 
+	 * @param name
+	 *            prefix of the names of the threads.
+	 * @return a new executor, or null if virtual threads are not supported.
+	 */
+	private static ExecutorService newVirtualThreadExecutor(String name) {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(builder, name + "-", 1L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod(
+					"factory").invoke(builder);
+			Method newExecutor = Executors.class.getMethod(
+					"newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newExecutor.invoke(null, factory);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
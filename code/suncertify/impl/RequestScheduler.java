@@ -0,0 +1,215 @@
+package suncertify.impl;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import suncertify.api.ServerBusyException;
+
+/**
+ * Admission control of the database requests. At most the given number of
+ * requests run at once, each in the thread which received it; further
+ * requests wait in one of two queues, by their priority class. Whenever a
+ * request finishes, a waiting write is admitted before any waiting read, and
+ * reads never take the last running slot, so a burst of heavy searches cannot
+ * starve bookings and updates; for that there are always at least two slots.
+ * Within each class requests are admitted in the order they arrived.
+ * <p/>
+ * The queues are bounded: a request arriving when its queue is full is
+ * rejected at once with a {@link ServerBusyException}, so that an overloaded
+ * server sheds the load instead of keeping the clients waiting.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class RequestScheduler {
+
+	/**
+	 * Priority class of a request.
+	 */
+	enum Priority {
+		/**
+		 * Request only reading the database.
+		 */
+		READ,
+		/**
+		 * Request modifying the database, preferred to the reads.
+		 */
+		WRITE
+	}
+
+	private final int workers;
+	private final int maxRunningReads;
+	private final int maxQueuedReads;
+	private final int maxQueuedWrites;
+	private final Lock lock = new ReentrantLock();
+	private final Condition readAdmitted = lock.newCondition();
+	private final Condition writeAdmitted = lock.newCondition();
+	private int runningReads;
+	private int runningWrites;
+	/*
+	 * each queue admits requests in the order of their tickets: the ones
+	 * between the served and the next ticket are waiting
+	 */
+	private long nextReadTicket;
+	private long servedReadTicket;
+	private long nextWriteTicket;
+	private long servedWriteTicket;
+
+	/**
+	 * Creates a scheduler.
+	 * 
+	 * @param workers
+	 *            maximum number of requests running at once, see
+	 *            {@link #effectiveWorkers(int)}.
+	 * @param maxQueuedReads
+	 *            maximum number of reads waiting to run.
+	 * @param maxQueuedWrites
+	 *            maximum number of writes waiting to run.
+	 */
+	RequestScheduler(int workers, int maxQueuedReads, int maxQueuedWrites) {
+		this.workers = effectiveWorkers(workers);
+		// one slot is kept for the writes
+		this.maxRunningReads = this.workers - 1;
+		this.maxQueuedReads = maxQueuedReads;
+		this.maxQueuedWrites = maxQueuedWrites;
+	}
+
+	/**
+	 * Number of requests actually allowed to run at once for the given
+	 * number: at least two, so that a read and a write may always run.
+	 * 
+	 * @param workers
+	 *            configured maximum number of requests running at once.
+	 * @return maximum number of requests running at once.
+	 */
+	static int effectiveWorkers(int workers) {
+		return Math.max(workers, 2);
+	}
+
+	/**
+	 * Waits until a request of the given class may run. Every successful
+	 * call must be followed by {@link #exit(Priority)} once the request has
+	 * finished.
+	 * 
+	 * @param priority
+	 *            class of the request.
+	 * @throws ServerBusyException
+	 *             if the queue of the class is full.
+	 * @throws InterruptedIOException
+	 *             if the thread was interrupted while waiting.
+	 */
+	void enter(Priority priority) throws ServerBusyException,
+			InterruptedIOException {
+		lock.lock();
+		try {
+			if (priority == Priority.WRITE) {
+				if (nextWriteTicket - servedWriteTicket >= maxQueuedWrites
+						&& !canRunWrite()) {
+					throw new ServerBusyException(
+							"Server is busy, too many modifications waiting");
+				}
+				long ticket = nextWriteTicket++;
+				try {
+					while (ticket != servedWriteTicket || !canRunWrite()) {
+						writeAdmitted.await();
+					}
+				} catch (InterruptedException e) {
+					cancelWrite(ticket);
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"Interrupted while waiting to run");
+				}
+				servedWriteTicket++;
+				runningWrites++;
+				// the next write may be admitted as well
+				writeAdmitted.signalAll();
+			} else {
+				if (nextReadTicket - servedReadTicket >= maxQueuedReads
+						&& !canRunRead()) {
+					throw new ServerBusyException(
+							"Server is busy, too many searches waiting");
+				}
+				long ticket = nextReadTicket++;
+				try {
+					while (ticket != servedReadTicket || !canRunRead()) {
+						readAdmitted.await();
+					}
+				} catch (InterruptedException e) {
+					cancelRead(ticket);
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"Interrupted while waiting to run");
+				}
+				servedReadTicket++;
+				runningReads++;
+				readAdmitted.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Frees the slot of a finished request, admitting the next waiting one.
+	 * 
+	 * @param priority
+	 *            class of the finished request.
+	 */
+	void exit(Priority priority) {
+		lock.lock();
+		try {
+			if (priority == Priority.WRITE) {
+				runningWrites--;
+			} else {
+				runningReads--;
+			}
+			writeAdmitted.signalAll();
+			readAdmitted.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean canRunWrite() {
+		return runningReads + runningWrites < workers;
+	}
+
+	private boolean canRunRead() {
+		// waiting writes go first
+		return nextWriteTicket == servedWriteTicket
+				&& runningReads < maxRunningReads
+				&& runningReads + runningWrites < workers;
+	}
+
+	/**
+	 * Gives up the ticket of an interrupted write. The last ticket is simply
+	 * taken back; one in the middle is served as if it ran for no time, as
+	 * the tickets after it already wait for their turn.
+	 */
+	private void cancelWrite(long ticket) {
+		if (ticket == nextWriteTicket - 1 && ticket != servedWriteTicket) {
+			nextWriteTicket--;
+		} else {
+			while (ticket != servedWriteTicket) {
+				writeAdmitted.awaitUninterruptibly();
+			}
+			servedWriteTicket++;
+		}
+		writeAdmitted.signalAll();
+		readAdmitted.signalAll();
+	}
+
+	private void cancelRead(long ticket) {
+		if (ticket == nextReadTicket - 1 && ticket != servedReadTicket) {
+			nextReadTicket--;
+		} else {
+			while (ticket != servedReadTicket) {
+				readAdmitted.awaitUninterruptibly();
+			}
+			servedReadTicket++;
+		}
+		readAdmitted.signalAll();
+	}
+}
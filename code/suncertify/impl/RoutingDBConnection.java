@@ -0,0 +1,234 @@
+package suncertify.impl;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import suncertify.api.AlreadyBookedException;
+import suncertify.api.BatchResult;
+import suncertify.api.ChangeListener;
+import suncertify.api.ChangeSet;
+import suncertify.api.Contractor;
+import suncertify.api.ContractorField;
+import suncertify.api.DBConnection;
+import suncertify.db.DuplicateKeyException;
+import suncertify.db.RecordNotFoundException;
+import suncertify.db.SecurityException;
+import suncertify.db.VersionConflictException;
+
+/**
+ * Database connection sending the reads to follower servers and everything
+ * else to the leader. Reads by row number and searches by criteria are spread
+ * over the followers in turn; a follower which fails, e.g. because it is not
+ * synchronized with the leader, is skipped and the read goes to the leader.
+ * <p/>
+ * Followers lag slightly behind the leader. So that a client reads its own
+ * modifications, reads are sent to the leader for a second after every
+ * modification made through this connection.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class RoutingDBConnection implements DBConnection {
+
+	private static final long READ_YOUR_WRITES_NANOS = TimeUnit.SECONDS
+			.toNanos(1);
+
+	private final DBConnection leader;
+	private final DBConnection[] followers;
+	private final AtomicInteger next = new AtomicInteger();
+	private volatile long lastWrite = System.nanoTime()
+			- READ_YOUR_WRITES_NANOS;
+
+	/**
+	 * Creates a connection routing the calls to the leader and the followers.
+	 * 
+	 * @param leader
+	 *            connection to the leader server.
+	 * @param followers
+	 *            connections to the follower servers.
+	 */
+	public RoutingDBConnection(DBConnection leader, DBConnection[] followers) {
+		this.leader = leader;
+		this.followers = followers.clone();
+	}
+
+	@Override
+	public Contractor readRecord(long recNo) throws RecordNotFoundException,
+			IOException {
+		for (DBConnection follower : readFollowers()) {
+			try {
+				return follower.readRecord(recNo);
+			} catch (IOException e) {
+				// try the next one
+			}
+		}
+		return leader.readRecord(recNo);
+	}
+
+	@Override
+	public BatchResult<Contractor> readRecords(long[] recNos)
+			throws IOException {
+		for (DBConnection follower : readFollowers()) {
+			try {
+				return follower.readRecords(recNos);
+			} catch (IOException e) {
+				// try the next one
+			}
+		}
+		return leader.readRecords(recNos);
+	}
+
+	@Override
+	public List<Contractor> findByCriteria(Contractor criteria,
+			boolean exactMatch) throws IOException {
+		for (DBConnection follower : readFollowers()) {
+			try {
+				return follower.findByCriteria(criteria, exactMatch);
+			} catch (IOException e) {
+				// try the next one
+			}
+		}
+		return leader.findByCriteria(criteria, exactMatch);
+	}
+
+	@Override
+	public List<Contractor> findByCriteria(Contractor criteria,
+			boolean exactMatch, ContractorField orderBy, boolean ascending,
+			int limit) throws IOException {
+		for (DBConnection follower : readFollowers()) {
+			try {
+				return follower.findByCriteria(criteria, exactMatch, orderBy,
+						ascending, limit);
+			} catch (IOException e) {
+				// try the next one
+			}
+		}
+		return leader.findByCriteria(criteria, exactMatch, orderBy,
+				ascending, limit);
+	}
+
+	@Override
+	public Map<String, Integer> countAvailable(ContractorField groupBy)
+			throws IOException {
+		return leader.countAvailable(groupBy);
+	}
+
+	@Override
+	public List<Contractor> findByName(String name, int maxDistance)
+			throws IOException {
+		return leader.findByName(name, maxDistance);
+	}
+
+	@Override
+	public ChangeSet changesSince(long version, Contractor criteria,
+			boolean exactMatch) throws IOException {
+		return leader.changesSince(version, criteria, exactMatch);
+	}
+
+	@Override
+	public long createRecord(Contractor contractor)
+			throws DuplicateKeyException, IOException {
+		try {
+			return leader.createRecord(contractor);
+		} finally {
+			written();
+		}
+	}
+
+	@Override
+	public void updateRecord(long recNo, Contractor record)
+			throws RecordNotFoundException, SecurityException, IOException {
+		try {
+			leader.updateRecord(recNo, record);
+		} finally {
+			written();
+		}
+	}
+
+	@Override
+	public long updateRecord(long recNo, Contractor record,
+			long expectedVersion) throws RecordNotFoundException,
+			VersionConflictException, IOException {
+		try {
+			return leader.updateRecord(recNo, record, expectedVersion);
+		} finally {
+			written();
+		}
+	}
+
+	@Override
+	public BatchResult<Contractor> updateRecords(Map<Long, Contractor> records)
+			throws SecurityException, IOException {
+		try {
+			return leader.updateRecords(records);
+		} finally {
+			written();
+		}
+	}
+
+	@Override
+	public Contractor bookRecord(long recNo, String ownerId)
+			throws AlreadyBookedException, RecordNotFoundException,
+			SecurityException, IOException {
+		try {
+			return leader.bookRecord(recNo, ownerId);
+		} finally {
+			written();
+		}
+	}
+
+	@Override
+	public void deleteRecord(long recNo) throws RecordNotFoundException,
+			SecurityException, IOException {
+		try {
+			leader.deleteRecord(recNo);
+		} finally {
+			written();
+		}
+	}
+
+	@Override
+	public BatchResult<Void> deleteRecords(long[] recNos) throws IOException {
+		try {
+			return leader.deleteRecords(recNos);
+		} finally {
+			written();
+		}
+	}
+
+	@Override
+	public void addChangeListener(ChangeListener listener) throws IOException {
+		leader.addChangeListener(listener);
+	}
+
+	@Override
+	public void removeChangeListener(ChangeListener listener)
+			throws IOException {
+		leader.removeChangeListener(listener);
+	}
+
+	/**
+	 * Returns the followers to try a read on, starting with the next one in
+	 * turn, or none if this connection has modified the database recently.
+	 */
+	private DBConnection[] readFollowers() {
+		if (followers.length == 0
+				|| System.nanoTime() - lastWrite < READ_YOUR_WRITES_NANOS) {
+			return new DBConnection[0];
+		}
+		int first = (next.getAndIncrement() & Integer.MAX_VALUE)
+				% followers.length;
+		DBConnection[] ordered = new DBConnection[followers.length];
+		for (int i = 0; i < ordered.length; i++) {
+			ordered[i] = followers[(first + i) % followers.length];
+		}
+		return ordered;
+	}
+
+	private void written() {
+		lastWrite = System.nanoTime();
+	}
+}
@@ -0,0 +1,275 @@
+package suncertify.net;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import suncertify.api.AlreadyBookedException;
+import suncertify.api.BatchResult;
+import suncertify.api.ChangeSet;
+import suncertify.api.Contractor;
+import suncertify.api.ContractorField;
+import suncertify.api.ContractorList;
+import suncertify.api.RetryLaterException;
+import suncertify.api.ServerBusyException;
+import suncertify.common.WireFormat;
+import suncertify.db.DuplicateKeyException;
+import suncertify.db.RecordNotFoundException;
+import suncertify.db.SecurityException;
+import suncertify.db.VersionConflictException;
+
+/**
+ * Encoding of the arguments and results of the protocol operations, see
+ * {@link Protocol}.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class Codec {
+
+	private Codec() {
+		// hidden constructor
+	}
+
+	static void writeContractor(DataOutput out, Contractor contractor)
+			throws IOException {
+		contractor.writeTo(out);
+	}
+
+	static Contractor readContractor(DataInput in) throws IOException {
+		Contractor contractor = new Contractor();
+		contractor.readFrom(in);
+		return contractor;
+	}
+
+	static void writeContractors(DataOutput out, List<Contractor> contractors)
+			throws IOException {
+		if (contractors instanceof ContractorList) {
+			((ContractorList) contractors).writeTo(out);
+		} else {
+			new ContractorList(contractors).writeTo(out);
+		}
+	}
+
+	static List<Contractor> readContractors(DataInput in) throws IOException {
+		ContractorList contractors = new ContractorList();
+		contractors.readFrom(in);
+		return contractors;
+	}
+
+	static void writeContractorMap(DataOutput out,
+			Map<Long, Contractor> contractors) throws IOException {
+		WireFormat.writeVarLong(out, contractors.size());
+		for (Map.Entry<Long, Contractor> e : contractors.entrySet()) {
+			WireFormat.writeVarLong(out, e.getKey());
+			writeContractor(out, e.getValue());
+		}
+	}
+
+	static Map<Long, Contractor> readContractorMap(DataInput in)
+			throws IOException {
+		int size = readSize(in);
+		Map<Long, Contractor> contractors = new TreeMap<Long, Contractor>();
+		for (int i = 0; i < size; i++) {
+			contractors.put(WireFormat.readVarLong(in), readContractor(in));
+		}
+		return contractors;
+	}
+
+	static void writeLongs(DataOutput out, long[] values) throws IOException {
+		WireFormat.writeVarLong(out, values.length);
+		for (long value : values) {
+			WireFormat.writeVarLong(out, value);
+		}
+	}
+
+	static long[] readLongs(DataInput in) throws IOException {
+		int size = readSize(in);
+		long[] values = new long[size];
+		for (int i = 0; i < size; i++) {
+			values[i] = WireFormat.readVarLong(in);
+		}
+		return values;
+	}
+
+	static void writeCounts(DataOutput out, Map<String, Integer> counts)
+			throws IOException {
+		WireFormat.writeVarLong(out, counts.size());
+		for (Map.Entry<String, Integer> e : counts.entrySet()) {
+			WireFormat.writeString(out, e.getKey());
+			WireFormat.writeVarLong(out, e.getValue());
+		}
+	}
+
+	static Map<String, Integer> readCounts(DataInput in) throws IOException {
+		int size = readSize(in);
+		Map<String, Integer> counts = new TreeMap<String, Integer>();
+		for (int i = 0; i < size; i++) {
+			counts.put(WireFormat.readString(in), (int) WireFormat
+					.readVarLong(in));
+		}
+		return counts;
+	}
+
+	static void writeField(DataOutput out, ContractorField field)
+			throws IOException {
+		WireFormat.writeVarLong(out, field == null ? 0 : field.ordinal() + 1);
+	}
+
+	static ContractorField readField(DataInput in) throws IOException {
+		long code = WireFormat.readVarLong(in);
+		if (code == 0) {
+			return null;
+		}
+		ContractorField[] fields = ContractorField.values();
+		if (code > fields.length) {
+			throw new StreamCorruptedException("Unknown field " + code);
+		}
+		return fields[(int) code - 1];
+	}
+
+	static void writeChangeSet(DataOutput out, ChangeSet changes)
+			throws IOException {
+		WireFormat.writeVarLong(out, changes.getVersion());
+		out.writeBoolean(changes.isComplete());
+		writeContractors(out, changes.getChanged());
+		writeLongs(out, changes.getRemoved());
+	}
+
+	static ChangeSet readChangeSet(DataInput in) throws IOException {
+		long version = WireFormat.readVarLong(in);
+		boolean complete = in.readBoolean();
+		List<Contractor> changed = readContractors(in);
+		return new ChangeSet(version, complete, changed, readLongs(in));
+	}
+
+	/**
+	 * Writes a batch result whose results are either contractors or null.
+	 */
+	static void writeBatchResult(DataOutput out, BatchResult<?> result)
+			throws IOException {
+		WireFormat.writeVarLong(out, result.getSucceeded().size());
+		for (long recNo : result.getSucceeded()) {
+			WireFormat.writeVarLong(out, recNo);
+			Contractor contractor = (Contractor) result.getResult(recNo);
+			out.writeBoolean(contractor != null);
+			if (contractor != null) {
+				writeContractor(out, contractor);
+			}
+		}
+		WireFormat.writeVarLong(out, result.getFailed().size());
+		for (long recNo : result.getFailed()) {
+			WireFormat.writeVarLong(out, recNo);
+			writeFailure(out, result.getFailure(recNo));
+		}
+	}
+
+	static BatchResult<Contractor> readContractorBatchResult(DataInput in)
+			throws IOException {
+		BatchResult<Contractor> result = new BatchResult<Contractor>();
+		int succeeded = readSize(in);
+		for (int i = 0; i < succeeded; i++) {
+			long recNo = WireFormat.readVarLong(in);
+			result.addSuccess(recNo, in.readBoolean() ? readContractor(in)
+					: null);
+		}
+		readFailures(in, result);
+		return result;
+	}
+
+	static BatchResult<Void> readVoidBatchResult(DataInput in)
+			throws IOException {
+		BatchResult<Void> result = new BatchResult<Void>();
+		int succeeded = readSize(in);
+		for (int i = 0; i < succeeded; i++) {
+			long recNo = WireFormat.readVarLong(in);
+			if (in.readBoolean()) {
+				throw new StreamCorruptedException("Unexpected result");
+			}
+			result.addSuccess(recNo, null);
+		}
+		readFailures(in, result);
+		return result;
+	}
+
+	private static void readFailures(DataInput in, BatchResult<?> result)
+			throws IOException {
+		int failed = readSize(in);
+		for (int i = 0; i < failed; i++) {
+			long recNo = WireFormat.readVarLong(in);
+			result.addFailure(recNo, readFailure(in));
+		}
+	}
+
+	/**
+	 * Writes an exception as a failure code and the message.
+	 */
+	static void writeFailure(DataOutput out, Exception failure)
+			throws IOException {
+		int code;
+		if (failure instanceof RecordNotFoundException) {
+			code = Protocol.RECORD_NOT_FOUND;
+		} else if (failure instanceof SecurityException) {
+			code = Protocol.SECURITY;
+		} else if (failure instanceof DuplicateKeyException) {
+			code = Protocol.DUPLICATE_KEY;
+		} else if (failure instanceof VersionConflictException) {
+			code = Protocol.VERSION_CONFLICT;
+		} else if (failure instanceof AlreadyBookedException) {
+			code = Protocol.ALREADY_BOOKED;
+		} else if (failure instanceof ServerBusyException) {
+			code = Protocol.SERVER_BUSY;
+		} else if (failure instanceof RetryLaterException) {
+			code = Protocol.RETRY_LATER;
+		} else if (failure instanceof IOException) {
+			code = Protocol.IO;
+		} else if (failure instanceof IllegalArgumentException) {
+			code = Protocol.INVALID_ARGUMENT;
+		} else {
+			code = Protocol.SERVER_ERROR;
+		}
+		out.writeByte(code);
+		WireFormat.writeString(out, failure.getMessage());
+	}
+
+	/**
+	 * Reads an exception written by
+	 * {@link #writeFailure(DataOutput, Exception)}, recreating the original
+	 * exception type.
+	 */
+	static Exception readFailure(DataInput in) throws IOException {
+		int code = in.readUnsignedByte();
+		String message = WireFormat.readString(in);
+		switch (code) {
+		case Protocol.RECORD_NOT_FOUND:
+			return new RecordNotFoundException(message);
+		case Protocol.SECURITY:
+			return new SecurityException(message);
+		case Protocol.DUPLICATE_KEY:
+			return new DuplicateKeyException(message);
+		case Protocol.VERSION_CONFLICT:
+			return new VersionConflictException(message);
+		case Protocol.ALREADY_BOOKED:
+			return new AlreadyBookedException(message);
+		case Protocol.RETRY_LATER:
+			return new RetryLaterException(message);
+		case Protocol.SERVER_BUSY:
+			return new ServerBusyException(message);
+		case Protocol.IO:
+			return new IOException(message);
+		case Protocol.INVALID_ARGUMENT:
+			return new IllegalArgumentException(message);
+		default:
+			return new IOException("Server error: " + message);
+		}
+	}
+
+	private static int readSize(DataInput in) throws IOException {
+		// every element takes at least a byte
+		return WireFormat.readLength(in, 1);
+	}
+}
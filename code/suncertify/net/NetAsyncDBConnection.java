@@ -0,0 +1,479 @@
+package suncertify.net;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import suncertify.api.AsyncDBConnection;
+import suncertify.api.BatchResult;
+import suncertify.api.ChangeListener;
+import suncertify.api.ChangeSet;
+import suncertify.api.Contractor;
+import suncertify.api.ContractorField;
+import suncertify.common.FrameInputStream;
+import suncertify.common.Log;
+import suncertify.common.WireFormat;
+
+/**
+ * Asynchronous database connection talking to a {@link NetServer} over a
+ * single socket. A request is sent by the calling thread, which returns
+ * without waiting for the response; a background thread completes the future
+ * of the request when its response arrives. No thread is held while a
+ * request is in progress, so any number of them may be pipelined.
+ * <p/>
+ * Dependent actions of the returned futures may run in the background thread
+ * reading the responses, so actions which block should be attached with an
+ * executor.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class NetAsyncDBConnection implements AsyncDBConnection {
+
+	private final Socket socket;
+	private final DataOutputStream output;
+	private final DataInputStream input;
+	private final ConcurrentMap<Long, CompletableFuture<DataInput>> calls = new ConcurrentHashMap<Long, CompletableFuture<DataInput>>();
+	private final AtomicLong nextId = new AtomicLong();
+	private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+	private volatile IOException failure;
+
+	/**
+	 * Connects to a database server.
+	 * 
+	 * @param host
+	 *            name of the host the server runs on.
+	 * @param port
+	 *            port number the server listens on.
+	 * @throws IOException
+	 *             if the connection cannot be established.
+	 */
+	public NetAsyncDBConnection(String host, int port) throws IOException {
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		output = new DataOutputStream(new BufferedOutputStream(socket
+				.getOutputStream()));
+		input = new DataInputStream(new BufferedInputStream(socket
+				.getInputStream()));
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				readResponses();
+			}
+		}, "db-net-reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Closes the connection. Requests waiting for their responses fail.
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	@Override
+	public CompletableFuture<Long> createRecord(Contractor contractor) {
+		Request request = new Request(Protocol.CREATE);
+		try {
+			Codec.writeContractor(request.out, contractor);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_LONG);
+	}
+
+	@Override
+	public CompletableFuture<Contractor> readRecord(long recNo) {
+		Request request = new Request(Protocol.READ);
+		try {
+			WireFormat.writeVarLong(request.out, recNo);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_CONTRACTOR);
+	}
+
+	@Override
+	public CompletableFuture<BatchResult<Contractor>> readRecords(long[] recNos) {
+		Request request = new Request(Protocol.READ_BATCH);
+		try {
+			Codec.writeLongs(request.out, recNos);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_CONTRACTOR_BATCH);
+	}
+
+	@Override
+	public CompletableFuture<Void> updateRecord(long recNo, Contractor record) {
+		Request request = new Request(Protocol.UPDATE);
+		try {
+			WireFormat.writeVarLong(request.out, recNo);
+			Codec.writeContractor(request.out, record);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_NOTHING);
+	}
+
+	@Override
+	public CompletableFuture<Long> updateRecord(long recNo, Contractor record,
+			long expectedVersion) {
+		Request request = new Request(Protocol.UPDATE_VERSIONED);
+		try {
+			WireFormat.writeVarLong(request.out, recNo);
+			Codec.writeContractor(request.out, record);
+			WireFormat.writeVarLong(request.out, expectedVersion);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_LONG);
+	}
+
+	@Override
+	public CompletableFuture<BatchResult<Contractor>> updateRecords(
+			Map<Long, Contractor> records) {
+		Request request = new Request(Protocol.UPDATE_BATCH);
+		try {
+			Codec.writeContractorMap(request.out, records);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_CONTRACTOR_BATCH);
+	}
+
+	@Override
+	public CompletableFuture<Contractor> bookRecord(long recNo, String ownerId) {
+		Request request = new Request(Protocol.BOOK);
+		try {
+			WireFormat.writeVarLong(request.out, recNo);
+			WireFormat.writeString(request.out, ownerId);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_CONTRACTOR);
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteRecord(long recNo) {
+		Request request = new Request(Protocol.DELETE);
+		try {
+			WireFormat.writeVarLong(request.out, recNo);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_NOTHING);
+	}
+
+	@Override
+	public CompletableFuture<BatchResult<Void>> deleteRecords(long[] recNos) {
+		Request request = new Request(Protocol.DELETE_BATCH);
+		try {
+			Codec.writeLongs(request.out, recNos);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_VOID_BATCH);
+	}
+
+	@Override
+	public CompletableFuture<List<Contractor>> findByCriteria(
+			Contractor criteria, boolean exactMatch) {
+		return findByCriteria(criteria, exactMatch, null, true, 0);
+	}
+
+	@Override
+	public CompletableFuture<List<Contractor>> findByCriteria(
+			Contractor criteria, boolean exactMatch, ContractorField orderBy,
+			boolean ascending, int limit) {
+		Request request = new Request(Protocol.FIND);
+		try {
+			Codec.writeContractor(request.out, criteria);
+			request.out.writeBoolean(exactMatch);
+			Codec.writeField(request.out, orderBy);
+			request.out.writeBoolean(ascending);
+			WireFormat.writeVarLong(request.out, Math.max(limit, 0));
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_CONTRACTORS);
+	}
+
+	@Override
+	public CompletableFuture<Map<String, Integer>> countAvailable(
+			ContractorField groupBy) {
+		Request request = new Request(Protocol.COUNT_AVAILABLE);
+		try {
+			Codec.writeField(request.out, groupBy);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_COUNTS);
+	}
+
+	@Override
+	public CompletableFuture<List<Contractor>> findByName(String name,
+			int maxDistance) {
+		Request request = new Request(Protocol.FIND_BY_NAME);
+		try {
+			WireFormat.writeString(request.out, name);
+			WireFormat.writeVarLong(request.out, Math.max(maxDistance, 0));
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_CONTRACTORS);
+	}
+
+	@Override
+	public CompletableFuture<ChangeSet> changesSince(long version,
+			Contractor criteria, boolean exactMatch) {
+		Request request = new Request(Protocol.CHANGES_SINCE);
+		try {
+			WireFormat.writeSignedVarLong(request.out, version);
+			Codec.writeContractor(request.out, criteria);
+			request.out.writeBoolean(exactMatch);
+		} catch (IOException e) {
+			return failed(e);
+		}
+		return call(request, READ_CHANGE_SET);
+	}
+
+	/**
+	 * Registers a listener. The connection subscribes to the change
+	 * notifications with the first listener, all the listeners are notified
+	 * by the thread reading the responses.
+	 */
+	@Override
+	public synchronized CompletableFuture<Void> addChangeListener(
+			ChangeListener listener) {
+		listeners.add(listener);
+		if (listeners.size() > 1) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return call(new Request(Protocol.SUBSCRIBE), READ_NOTHING);
+	}
+
+	@Override
+	public synchronized CompletableFuture<Void> removeChangeListener(
+			ChangeListener listener) {
+		if (!listeners.remove(listener) || !listeners.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return call(new Request(Protocol.UNSUBSCRIBE), READ_NOTHING);
+	}
+
+	/**
+	 * Sends a request and returns the future result decoded from its
+	 * response.
+	 */
+	private <T> CompletableFuture<T> call(Request request, Decoder<T> decoder) {
+		CompletableFuture<DataInput> response = new CompletableFuture<DataInput>();
+		calls.put(request.id, response);
+		try {
+			send(request);
+		} catch (IOException e) {
+			calls.remove(request.id);
+			response.completeExceptionally(e);
+		}
+		return response.thenApply(decoder);
+	}
+
+	private void send(Request request) throws IOException {
+		IOException failed = failure;
+		if (failed != null) {
+			throw new IOException("Connection to the server failed", failed);
+		}
+		byte[] frame = request.toFrame();
+		synchronized (output) {
+			output.write(frame);
+			output.flush();
+		}
+	}
+
+	/**
+	 * Reads response frames and completes the calls they answer, until the
+	 * connection fails or is closed.
+	 */
+	private void readResponses() {
+		try {
+			while (true) {
+				int length = input.readInt();
+				if (length < 0 || length > Protocol.MAX_FRAME_LENGTH) {
+					throw new StreamCorruptedException("Invalid frame length "
+							+ length);
+				}
+				byte[] frame = new byte[length];
+				input.readFully(frame);
+				DataInputStream in = new FrameInputStream(frame);
+				long id = WireFormat.readVarLong(in);
+				if (id == Protocol.NOTIFICATION_ID) {
+					in.readUnsignedByte();
+					notifyListeners(in.readBoolean() ? Codec.readLongs(in)
+							: null);
+					continue;
+				}
+				CompletableFuture<DataInput> call = calls.remove(id);
+				if (call == null) {
+					continue;
+				}
+				if (in.readUnsignedByte() == Protocol.OK) {
+					call.complete(in);
+				} else {
+					call.completeExceptionally(Codec.readFailure(in));
+				}
+			}
+		} catch (IOException e) {
+			failure = e;
+			close();
+			for (Long id : calls.keySet()) {
+				CompletableFuture<DataInput> call = calls.remove(id);
+				if (call != null) {
+					call.completeExceptionally(new IOException(
+							"Connection to the server failed", e));
+				}
+			}
+		}
+	}
+
+	private void notifyListeners(long[] recNos) {
+		for (ChangeListener listener : listeners) {
+			try {
+				listener.recordsChanged(recNos);
+			} catch (Exception e) {
+				// the other listeners are notified anyway
+				Log.error("Change listener %s failed", listener, e);
+			}
+		}
+	}
+
+	private static <T> CompletableFuture<T> failed(IOException e) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		future.completeExceptionally(e);
+		return future;
+	}
+
+	/**
+	 * Request being encoded: id and operation code followed by the arguments
+	 * written to {@link #out}.
+	 */
+	private class Request {
+		private final long id = nextId.incrementAndGet();
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+		private Request(int operation) {
+			// length is filled in by toFrame
+			bytes.write(0);
+			bytes.write(0);
+			bytes.write(0);
+			bytes.write(0);
+			try {
+				WireFormat.writeVarLong(out, id);
+				out.writeByte(operation);
+			} catch (IOException e) {
+				// writing to memory does not fail
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private byte[] toFrame() {
+			byte[] frame = bytes.toByteArray();
+			ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+			return frame;
+		}
+	}
+
+	/**
+	 * Decodes the result of an operation from its response.
+	 */
+	private static abstract class Decoder<T> implements Function<DataInput, T> {
+
+		abstract T decode(DataInput in) throws IOException;
+
+		@Override
+		public T apply(DataInput in) {
+			try {
+				return decode(in);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}
+	}
+
+	private static final Decoder<Void> READ_NOTHING = new Decoder<Void>() {
+		@Override
+		Void decode(DataInput in) {
+			return null;
+		}
+	};
+
+	private static final Decoder<Long> READ_LONG = new Decoder<Long>() {
+		@Override
+		Long decode(DataInput in) throws IOException {
+			return WireFormat.readVarLong(in);
+		}
+	};
+
+	private static final Decoder<Contractor> READ_CONTRACTOR = new Decoder<Contractor>() {
+		@Override
+		Contractor decode(DataInput in) throws IOException {
+			return Codec.readContractor(in);
+		}
+	};
+
+	private static final Decoder<List<Contractor>> READ_CONTRACTORS = new Decoder<List<Contractor>>() {
+		@Override
+		List<Contractor> decode(DataInput in) throws IOException {
+			return Codec.readContractors(in);
+		}
+	};
+
+	private static final Decoder<BatchResult<Contractor>> READ_CONTRACTOR_BATCH = new Decoder<BatchResult<Contractor>>() {
+		@Override
+		BatchResult<Contractor> decode(DataInput in) throws IOException {
+			return Codec.readContractorBatchResult(in);
+		}
+	};
+
+	private static final Decoder<BatchResult<Void>> READ_VOID_BATCH = new Decoder<BatchResult<Void>>() {
+		@Override
+		BatchResult<Void> decode(DataInput in) throws IOException {
+			return Codec.readVoidBatchResult(in);
+		}
+	};
+
+	private static final Decoder<Map<String, Integer>> READ_COUNTS = new Decoder<Map<String, Integer>>() {
+		@Override
+		Map<String, Integer> decode(DataInput in) throws IOException {
+			return Codec.readCounts(in);
+		}
+	};
+
+	private static final Decoder<ChangeSet> READ_CHANGE_SET = new Decoder<ChangeSet>() {
+		@Override
+		ChangeSet decode(DataInput in) throws IOException {
+			return Codec.readChangeSet(in);
+		}
+	};
+}
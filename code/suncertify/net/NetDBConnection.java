@@ -0,0 +1,242 @@
+package suncertify.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import suncertify.api.AlreadyBookedException;
+import suncertify.api.BatchResult;
+import suncertify.api.ChangeListener;
+import suncertify.api.ChangeSet;
+import suncertify.api.Contractor;
+import suncertify.api.ContractorField;
+import suncertify.api.DBConnection;
+import suncertify.common.AppProperties;
+import suncertify.db.DuplicateKeyException;
+import suncertify.db.RecordNotFoundException;
+import suncertify.db.SecurityException;
+import suncertify.db.VersionConflictException;
+
+/**
+ * Database connection talking to a {@link NetServer} over a single socket.
+ * The connection may be shared by any number of threads: their requests are
+ * pipelined, that is sent without waiting for the responses to the earlier
+ * ones. Each call waits for the response of an
+ * {@link NetAsyncDBConnection}, which is also available to callers which do
+ * not want to wait. A call waits at most
+ * {@link AppProperties#CLIENT_TIMEOUT} milliseconds, so that a server which
+ * never answers does not block the caller forever.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class NetDBConnection implements DBConnection {
+
+	private final NetAsyncDBConnection async;
+	private final long timeoutMillis = AppProperties
+			.getLong(AppProperties.CLIENT_TIMEOUT);
+
+	/**
+	 * Connects to a database server.
+	 * 
+	 * @param host
+	 *            name of the host the server runs on.
+	 * @param port
+	 *            port number the server listens on.
+	 * @throws IOException
+	 *             if the connection cannot be established.
+	 */
+	public NetDBConnection(String host, int port) throws IOException {
+		async = new NetAsyncDBConnection(host, port);
+	}
+
+	/**
+	 * Returns the asynchronous connection sharing the socket of this one.
+	 * 
+	 * @return asynchronous variant of this connection.
+	 */
+	public NetAsyncDBConnection getAsync() {
+		return async;
+	}
+
+	/**
+	 * Closes the connection. Requests waiting for their responses fail.
+	 */
+	public void close() {
+		async.close();
+	}
+
+	@Override
+	public long createRecord(Contractor contractor)
+			throws DuplicateKeyException, IOException {
+		try {
+			return await(async.createRecord(contractor));
+		} catch (ServerException e) {
+			throw e.rethrow(DuplicateKeyException.class);
+		}
+	}
+
+	@Override
+	public Contractor readRecord(long recNo) throws RecordNotFoundException,
+			IOException {
+		try {
+			return await(async.readRecord(recNo));
+		} catch (ServerException e) {
+			throw e.rethrow(RecordNotFoundException.class);
+		}
+	}
+
+	@Override
+	public BatchResult<Contractor> readRecords(long[] recNos)
+			throws IOException {
+		return await(async.readRecords(recNos));
+	}
+
+	@Override
+	public void updateRecord(long recNo, Contractor record)
+			throws RecordNotFoundException, SecurityException, IOException {
+		try {
+			await(async.updateRecord(recNo, record));
+		} catch (ServerException e) {
+			e.rethrowIf(RecordNotFoundException.class);
+			throw e.rethrow(SecurityException.class);
+		}
+	}
+
+	@Override
+	public long updateRecord(long recNo, Contractor record,
+			long expectedVersion) throws RecordNotFoundException,
+			VersionConflictException, IOException {
+		try {
+			return await(async.updateRecord(recNo, record, expectedVersion));
+		} catch (ServerException e) {
+			e.rethrowIf(RecordNotFoundException.class);
+			throw e.rethrow(VersionConflictException.class);
+		}
+	}
+
+	@Override
+	public BatchResult<Contractor> updateRecords(Map<Long, Contractor> records)
+			throws SecurityException, IOException {
+		try {
+			return await(async.updateRecords(records));
+		} catch (ServerException e) {
+			throw e.rethrow(SecurityException.class);
+		}
+	}
+
+	@Override
+	public Contractor bookRecord(long recNo, String ownerId)
+			throws AlreadyBookedException, RecordNotFoundException,
+			SecurityException, IOException {
+		try {
+			return await(async.bookRecord(recNo, ownerId));
+		} catch (ServerException e) {
+			e.rethrowIf(AlreadyBookedException.class);
+			e.rethrowIf(RecordNotFoundException.class);
+			throw e.rethrow(SecurityException.class);
+		}
+	}
+
+	@Override
+	public void deleteRecord(long recNo) throws RecordNotFoundException,
+			SecurityException, IOException {
+		try {
+			await(async.deleteRecord(recNo));
+		} catch (ServerException e) {
+			e.rethrowIf(RecordNotFoundException.class);
+			throw e.rethrow(SecurityException.class);
+		}
+	}
+
+	@Override
+	public BatchResult<Void> deleteRecords(long[] recNos) throws IOException {
+		return await(async.deleteRecords(recNos));
+	}
+
+	@Override
+	public List<Contractor> findByCriteria(Contractor criteria,
+			boolean exactMatch) throws IOException {
+		return await(async.findByCriteria(criteria, exactMatch));
+	}
+
+	@Override
+	public List<Contractor> findByCriteria(Contractor criteria,
+			boolean exactMatch, ContractorField orderBy, boolean ascending,
+			int limit) throws IOException {
+		return await(async.findByCriteria(criteria, exactMatch, orderBy,
+				ascending, limit));
+	}
+
+	@Override
+	public Map<String, Integer> countAvailable(ContractorField groupBy)
+			throws IOException {
+		return await(async.countAvailable(groupBy));
+	}
+
+	@Override
+	public List<Contractor> findByName(String name, int maxDistance)
+			throws IOException {
+		return await(async.findByName(name, maxDistance));
+	}
+
+	@Override
+	public ChangeSet changesSince(long version, Contractor criteria,
+			boolean exactMatch) throws IOException {
+		return await(async.changesSince(version, criteria, exactMatch));
+	}
+
+	@Override
+	public void addChangeListener(ChangeListener listener) throws IOException {
+		await(async.addChangeListener(listener));
+	}
+
+	@Override
+	public void removeChangeListener(ChangeListener listener)
+			throws IOException {
+		await(async.removeChangeListener(listener));
+	}
+
+	/**
+	 * Waits for the result of a call.
+	 * 
+	 * @param future
+	 *            future result of the call.
+	 * @return result of the call.
+	 * @throws ServerException
+	 *             if the operation failed on the server with an exception
+	 *             which is not an {@link IOException}.
+	 * @throws IOException
+	 *             if the operation failed with an {@link IOException}, the
+	 *             communication with the server failed, or the server did not
+	 *             answer in time.
+	 */
+	private <T> T await(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new SocketTimeoutException("No response from the server in "
+					+ timeoutMillis + " ms");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for the response");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new ServerException((Exception) cause);
+		}
+	}
+}
@@ -0,0 +1,438 @@
+package suncertify.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import suncertify.api.ChangeListener;
+import suncertify.api.DBConnection;
+import suncertify.api.ServerBusyException;
+import suncertify.common.AppProperties;
+import suncertify.common.Log;
+import suncertify.impl.BoundedRequestExecutor;
+
+/**
+ * Database server speaking the binary protocol described in {@link Protocol}
+ * over non-blocking sockets. A single selector thread accepts connections,
+ * reads request frames and writes response frames of all the clients; the
+ * requests themselves are run by a {@link BoundedRequestExecutor}, so a
+ * request waiting for a record lock holds no socket. At most
+ * {@link AppProperties#SERVER_WORKERS} requests run at once, one slot always
+ * being kept for the modifications; the others wait for a slot without
+ * holding a thread, up to {@link AppProperties#MAX_QUEUED_READS} and
+ * {@link AppProperties#MAX_QUEUED_WRITES}; further ones are answered at once
+ * with a {@link ServerBusyException}. Requests pipelined by a client are
+ * run concurrently, up to {@link Protocol#MAX_PIPELINED_REQUESTS} per
+ * connection.
+ * <p/>
+ * A connection is read only while its responses waiting to be written and
+ * its running requests stay below that limit, so a client which does not
+ * read its responses stops being served. A client which does not read the
+ * change notifications either is disconnected once
+ * {@link #MAX_QUEUED_FRAMES} frames wait for it. Connections which cannot
+ * be accepted, e.g. because the server ran out of file descriptors, are
+ * retried after a pause without affecting the connected clients.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class NetServer {
+
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	/**
+	 * Maximum number of response and notification frames waiting to be
+	 * written to a client.
+	 */
+	private static final int MAX_QUEUED_FRAMES = 1024;
+
+	/**
+	 * Time in milliseconds the server stops accepting connections for after
+	 * accepting one failed.
+	 */
+	private static final long ACCEPT_PAUSE_MILLIS = 100;
+
+	private final RequestHandler handler;
+	private final int port;
+	private final Queue<Connection> pendingUpdates = new ConcurrentLinkedQueue<Connection>();
+	private BoundedRequestExecutor executor;
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private SelectionKey acceptKey;
+	/*
+	 * time at which accepting connections is resumed after a failure, 0
+	 * while accepting; used by the selector thread only
+	 */
+	private long acceptPausedUntil;
+	private Thread selectorThread;
+	private volatile boolean running;
+
+	/**
+	 * Creates a server running requests on the given database connection.
+	 * 
+	 * @param connection
+	 *            database connection to run the requests on.
+	 * @param port
+	 *            port number to listen on.
+	 */
+	public NetServer(DBConnection connection, int port) {
+		this.handler = new RequestHandler(connection);
+		this.port = port;
+	}
+
+	/**
+	 * Starts listening and serving the clients in a background thread.
+	 * 
+	 * @throws IOException
+	 *             if the server socket cannot be opened.
+	 */
+	public synchronized void start() throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		executor = new BoundedRequestExecutor("db-net-request",
+				(int) AppProperties.getLong(AppProperties.SERVER_WORKERS),
+				(int) AppProperties.getLong(AppProperties.MAX_QUEUED_READS),
+				(int) AppProperties.getLong(AppProperties.MAX_QUEUED_WRITES));
+		running = true;
+		selectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				serve();
+			}
+		}, "db-net-selector");
+		selectorThread.start();
+	}
+
+	/**
+	 * Stops the server, closing all the client connections.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		selector.wakeup();
+		try {
+			selectorThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		executor.shutdownNow();
+	}
+
+	private void serve() {
+		try {
+			while (running) {
+				if (acceptPausedUntil == 0) {
+					selector.select();
+				} else {
+					selector.select(Math.max(1, acceptPausedUntil
+							- System.currentTimeMillis()));
+					if (System.currentTimeMillis() >= acceptPausedUntil) {
+						acceptPausedUntil = 0;
+						acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+					}
+				}
+				Connection connection;
+				while ((connection = pendingUpdates.poll()) != null) {
+					if (connection.key.isValid()) {
+						try {
+							connection.resume();
+						} catch (IOException e) {
+							Log.info("Closing connection %s: %s", connection,
+									e);
+							connection.close();
+						}
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException e) {
+						Log.info("Closing connection %s: %s", connection, e);
+						connection.close();
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.error("Network server failed", e);
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException e) {
+					// closing anyway
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	/**
+	 * Accepts a pending connection. A failure affects that connection only;
+	 * if the connection cannot be even accepted, accepting is paused for a
+	 * while, so that the failure does not keep the selector busy.
+	 */
+	private void accept() {
+		SocketChannel channel;
+		try {
+			channel = serverChannel.accept();
+		} catch (IOException e) {
+			Log.warn("Cannot accept a connection, pausing for %d ms: %s",
+					ACCEPT_PAUSE_MILLIS, e);
+			acceptKey.interestOps(0);
+			acceptPausedUntil = System.currentTimeMillis()
+					+ ACCEPT_PAUSE_MILLIS;
+			return;
+		}
+		if (channel == null) {
+			return;
+		}
+		Connection connection = new Connection(channel);
+		try {
+			channel.configureBlocking(false);
+			channel.socket().setTcpNoDelay(true);
+			connection.key = channel.register(selector, SelectionKey.OP_READ,
+					connection);
+		} catch (IOException e) {
+			Log.warn("Cannot set up connection %s: %s", connection, e);
+			try {
+				channel.close();
+			} catch (IOException closeFailure) {
+				// closing anyway
+			}
+			return;
+		}
+		Log.info("Accepted connection %s", connection);
+	}
+
+	/**
+	 * State of a single client connection. Reading, writing and interest
+	 * updates happen in the selector thread only; responses are queued by
+	 * the request threads.
+	 */
+	private class Connection {
+		private final SocketChannel channel;
+		private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<ByteBuffer>();
+		private final AtomicInteger queued = new AtomicInteger();
+		private final AtomicInteger running = new AtomicInteger();
+		private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private SelectionKey key;
+		private volatile boolean malformed;
+		private volatile boolean overflowed;
+		private final ChangeListener subscriber = new ChangeListener() {
+			@Override
+			public void recordsChanged(long[] recNos) throws RemoteException {
+				if (!channel.isOpen()) {
+					throw new RemoteException("Connection " + Connection.this
+							+ " is closed");
+				}
+				if (queued.get() >= MAX_QUEUED_FRAMES) {
+					overflowed = true;
+					respond(null);
+					throw new RemoteException("Connection " + Connection.this
+							+ " does not read its notifications");
+				}
+				respond(RequestHandler.notification(recNos));
+			}
+
+			@Override
+			public String toString() {
+				return "subscriber " + Connection.this;
+			}
+		};
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads available bytes and dispatches the complete request frames.
+		 */
+		private void read() throws IOException {
+			if (channel.read(readBuffer) < 0) {
+				throw new IOException("Connection closed by the client");
+			}
+			resume();
+		}
+
+		/**
+		 * Writes as many queued responses as the socket accepts.
+		 */
+		private void write() throws IOException {
+			ByteBuffer response;
+			while ((response = responses.peek()) != null) {
+				channel.write(response);
+				if (response.hasRemaining()) {
+					break;
+				}
+				responses.poll();
+				queued.decrementAndGet();
+			}
+			resume();
+		}
+
+		/**
+		 * Dispatches the request frames buffered while the limit of running
+		 * requests was reached, and updates the operations the selector
+		 * watches: reading only while the number of running requests and
+		 * queued responses is below the limit, writing while there are
+		 * responses queued.
+		 */
+		private void resume() throws IOException {
+			if (malformed) {
+				throw new IOException("Malformed request");
+			}
+			if (overflowed) {
+				throw new IOException("Client does not read its responses");
+			}
+			dispatchBuffered();
+			int ops = 0;
+			if (canDispatch()) {
+				ops |= SelectionKey.OP_READ;
+			}
+			if (!responses.isEmpty()) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+
+		private void dispatchBuffered() throws IOException {
+			readBuffer.flip();
+			while (readBuffer.remaining() >= 4 && canDispatch()) {
+				int length = readBuffer.getInt(readBuffer.position());
+				if (length < 0 || length > Protocol.MAX_FRAME_LENGTH) {
+					throw new IOException("Invalid frame length " + length);
+				}
+				if (readBuffer.remaining() < 4 + length) {
+					break;
+				}
+				readBuffer.getInt();
+				byte[] request = new byte[length];
+				readBuffer.get(request);
+				dispatch(request);
+			}
+			readBuffer.compact();
+			if (readBuffer.position() >= 4) {
+				int length = readBuffer.getInt(0);
+				if (length > 0 && length <= Protocol.MAX_FRAME_LENGTH
+						&& readBuffer.capacity() < 4 + length) {
+					// make room for a large frame
+					ByteBuffer larger = ByteBuffer.allocate(4 + length);
+					readBuffer.flip();
+					larger.put(readBuffer);
+					readBuffer = larger;
+				}
+			}
+		}
+
+		private boolean canDispatch() {
+			return running.get() + queued.get()
+					< Protocol.MAX_PIPELINED_REQUESTS;
+		}
+
+		private void dispatch(final byte[] request) {
+			running.incrementAndGet();
+			try {
+				execute(request);
+			} catch (ServerBusyException e) {
+				running.decrementAndGet();
+				byte[] response = RequestHandler.failure(request, e);
+				if (response == null) {
+					malformed = true;
+				}
+				respond(response);
+			}
+		}
+
+		private void execute(final byte[] request) throws ServerBusyException {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					byte[] response = null;
+					try {
+						response = handler.handle(request, subscriber);
+					} catch (IOException e) {
+						malformed = true;
+					} catch (Throwable e) {
+						Log.error("Request of %s failed", Connection.this, e);
+						// the client waits for the response
+						response = RequestHandler.failure(request,
+								new Exception("Request failed: " + e));
+						if (response == null) {
+							malformed = true;
+						}
+					} finally {
+						running.decrementAndGet();
+						respond(response);
+					}
+				}
+			}, RequestHandler.isWrite(request));
+		}
+
+		/**
+		 * Queues a response to be written by the selector thread.
+		 * 
+		 * @param response
+		 *            whole response frame, or null to update the selector
+		 *            only.
+		 */
+		private void respond(byte[] response) {
+			if (response != null) {
+				queued.incrementAndGet();
+				responses.add(ByteBuffer.wrap(response));
+			}
+			pendingUpdates.add(this);
+			selector.wakeup();
+		}
+
+		private void close() {
+			handler.unsubscribe(subscriber);
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(channel.socket().getRemoteSocketAddress());
+		}
+	}
+}
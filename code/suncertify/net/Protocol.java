@@ -0,0 +1,105 @@
+package suncertify.net;
+
+/**
+ * Constants of the binary protocol spoken between {@link NetServer} and
+ * {@link NetDBConnection}.
+ * <p/>
+ * Every message is a frame: a four byte big-endian length followed by that
+ * many bytes of body. A request body holds the request id as a variable
+ * length number, one byte of operation code and the arguments of the
+ * operation. A response body holds the id of the request it answers, one
+ * byte of status and either the result of the operation or the failure. A
+ * client may send any number of requests without waiting for the responses,
+ * and the server may answer them in any order; the ids tell which response
+ * belongs to which request. Values are encoded as described in
+ * {@link suncertify.common.WireFormat}.
+ * <p/>
+ * After a {@link #SUBSCRIBE} request the server also sends frames answering
+ * no request, with the id {@link #NOTIFICATION_ID}: notifications of the
+ * changed records, see {@link suncertify.api.ChangeListener}.
+ * <p/>
+ * The replication stream sent by {@link ReplicationServer} to
+ * {@link ReplicationClient} is not framed: it starts with the version of the
+ * leader snapshot and its rows, followed by messages each starting with one
+ * byte of message type: a {@link #REPLICATED_CHANGE} holds the database
+ * version the modification made, the row number, a flag telling whether the
+ * row exists and the row after the modification; a
+ * {@link #REPLICATION_HEARTBEAT} holds nothing.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class Protocol {
+
+	/**
+	 * Largest accepted frame body, in bytes.
+	 */
+	static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * Number of requests of a single connection the server runs at once;
+	 * further pipelined requests wait in the socket buffers.
+	 */
+	static final int MAX_PIPELINED_REQUESTS = 64;
+
+	/*
+	 * operation codes, one per method of DBConnection
+	 */
+	static final int CREATE = 1;
+	static final int READ = 2;
+	static final int READ_BATCH = 3;
+	static final int UPDATE = 4;
+	static final int UPDATE_VERSIONED = 5;
+	static final int UPDATE_BATCH = 6;
+	static final int BOOK = 7;
+	static final int DELETE = 8;
+	static final int DELETE_BATCH = 9;
+	static final int FIND = 10;
+	static final int COUNT_AVAILABLE = 11;
+	static final int FIND_BY_NAME = 12;
+	static final int SUBSCRIBE = 13;
+	static final int UNSUBSCRIBE = 14;
+	static final int CHANGES_SINCE = 15;
+
+	/**
+	 * Id of the frames notifying the changed records. Request ids start at 1.
+	 */
+	static final long NOTIFICATION_ID = 0;
+
+	/*
+	 * response statuses
+	 */
+	static final int OK = 0;
+	static final int FAILED = 1;
+
+	/*
+	 * failure codes, followed by the message of the exception
+	 */
+	static final int RECORD_NOT_FOUND = 1;
+	static final int SECURITY = 2;
+	static final int DUPLICATE_KEY = 3;
+	static final int VERSION_CONFLICT = 4;
+	static final int RETRY_LATER = 5;
+	static final int IO = 6;
+	static final int SERVER_ERROR = 7;
+	static final int SERVER_BUSY = 8;
+	static final int INVALID_ARGUMENT = 9;
+	static final int ALREADY_BOOKED = 10;
+
+	/*
+	 * message types of the replication stream
+	 */
+	static final int REPLICATED_CHANGE = 1;
+	static final int REPLICATION_HEARTBEAT = 2;
+
+	/**
+	 * Maximum time between two messages of the replication stream. A
+	 * follower which receives nothing for three times as long assumes the
+	 * leader is gone.
+	 */
+	static final int REPLICATION_HEARTBEAT_MILLIS = 5000;
+
+	private Protocol() {
+		// hidden constructor
+	}
+}
@@ -0,0 +1,142 @@
+package suncertify.net;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.util.List;
+
+import suncertify.api.Contractor;
+import suncertify.common.Log;
+import suncertify.common.WireFormat;
+import suncertify.impl.ReplicaDBConnection;
+
+/**
+ * Follower side of the replication: keeps a {@link ReplicaDBConnection} up
+ * to date with the leader database. A background thread connects to the
+ * replication port of the leader (see {@link ReplicationServer}), loads the
+ * snapshot into the replica and applies the modifications which follow. If
+ * the connection is lost, or the leader sends nothing for three heartbeats,
+ * the replica stops serving reads and the thread connects again, loading a
+ * new snapshot.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class ReplicationClient {
+
+	private static final long RECONNECT_MILLIS = 1000;
+
+	private final String host;
+	private final int port;
+	private final ReplicaDBConnection replica;
+	private volatile boolean running;
+	private volatile Socket socket;
+	private Thread thread;
+
+	/**
+	 * Creates a client replicating the leader into the given replica.
+	 * 
+	 * @param host
+	 *            name of the host where the leader is running.
+	 * @param port
+	 *            replication port number of the leader.
+	 * @param replica
+	 *            replica to keep up to date.
+	 */
+	public ReplicationClient(String host, int port, ReplicaDBConnection replica) {
+		this.host = host;
+		this.port = port;
+		this.replica = replica;
+	}
+
+	/**
+	 * Starts following the leader in a background thread.
+	 */
+	public synchronized void start() {
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				follow();
+			}
+		}, "db-replication-receiver");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops following the leader. The replica stops serving reads.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		Socket current = socket;
+		if (current != null) {
+			closeQuietly(current);
+		}
+		thread.interrupt();
+	}
+
+	private void follow() {
+		while (running) {
+			try {
+				socket = new Socket(host, port);
+				socket.setSoTimeout(3 * Protocol.REPLICATION_HEARTBEAT_MILLIS);
+				receive(new DataInputStream(new BufferedInputStream(socket
+						.getInputStream())));
+			} catch (IOException e) {
+				if (running) {
+					Log.warn("Lost replication stream of %s:%s: %s", host,
+							port, e);
+				}
+			} finally {
+				replica.disconnected();
+				if (socket != null) {
+					closeQuietly(socket);
+				}
+			}
+			try {
+				Thread.sleep(RECONNECT_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private void receive(DataInputStream in) throws IOException {
+		long version = WireFormat.readVarLong(in);
+		List<Contractor> rows = Codec.readContractors(in);
+		replica.load(version, rows);
+		Log.info("Loaded %s rows at version %s from %s:%s", rows.size(),
+				version, host, port);
+		while (running) {
+			int type = in.readUnsignedByte();
+			switch (type) {
+			case Protocol.REPLICATED_CHANGE:
+				long sequence = WireFormat.readVarLong(in);
+				long recNo = WireFormat.readSignedVarLong(in);
+				Contractor row = in.readBoolean() ? Codec.readContractor(in)
+						: null;
+				replica.apply(sequence, recNo, row);
+				break;
+			case Protocol.REPLICATION_HEARTBEAT:
+				break;
+			default:
+				throw new StreamCorruptedException("Unknown message type "
+						+ type);
+			}
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+}
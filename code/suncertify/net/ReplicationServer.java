@@ -0,0 +1,300 @@
+package suncertify.net;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import suncertify.api.Contractor;
+import suncertify.common.Log;
+import suncertify.common.WireFormat;
+import suncertify.db.ChangeEvent;
+import suncertify.db.ChangeFeedListener;
+import suncertify.db.Data;
+import suncertify.db.RecordNotFoundException;
+import suncertify.db.Snapshot;
+import suncertify.db.VersionedRecord;
+
+/**
+ * Leader side of the replication: streams the database to the follower
+ * servers, see {@link ReplicationClient}. Every follower connecting to the
+ * replication port gets a snapshot of the database, then every modification
+ * made after the snapshot, taken from the change feed of the database (see
+ * {@link Data#subscribe(ChangeFeedListener)}) in the order they were made.
+ * The format of the stream is described in {@link Protocol}.
+ * <p/>
+ * The modifications made while the snapshot is being sent are queued for the
+ * follower and sent after the snapshot, so a slow bootstrap does not hold up
+ * the change feed and the writers. A follower which does not keep up with
+ * the modifications, or whose queue overflows, is overrun; its connection is
+ * closed, and it loads a new snapshot when it connects again.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class ReplicationServer {
+
+	/**
+	 * Maximum number of modifications queued for a follower while its
+	 * snapshot is being sent.
+	 */
+	private static final int MAX_QUEUED_CHANGES = 65536;
+
+	private final Data data;
+	private final int port;
+	private final Set<Follower> followers = Collections
+			.newSetFromMap(new ConcurrentHashMap<Follower, Boolean>());
+	private ServerSocket serverSocket;
+	private volatile boolean running;
+
+	/**
+	 * Creates a replication server of the given database.
+	 * 
+	 * @param data
+	 *            database to replicate.
+	 * @param port
+	 *            port number to listen on for the followers.
+	 */
+	public ReplicationServer(Data data, int port) {
+		this.data = data;
+		this.port = port;
+	}
+
+	/**
+	 * Starts listening and streaming to the followers in background threads.
+	 * 
+	 * @throws IOException
+	 *             if the server socket cannot be opened.
+	 */
+	public synchronized void start() throws IOException {
+		serverSocket = new ServerSocket(port);
+		running = true;
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "db-replication-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Stops the server, closing the connections of all the followers.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		for (Follower follower : followers) {
+			follower.close();
+		}
+	}
+
+	private void accept() {
+		while (running) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (running) {
+					Log.warn("Failed to accept a follower: %s", e);
+				}
+				continue;
+			}
+			Log.info("Accepted follower %s", socket.getRemoteSocketAddress());
+			try {
+				Follower follower = new Follower(socket);
+				followers.add(follower);
+				Thread sender = new Thread(follower, "db-replication-sender");
+				sender.setDaemon(true);
+				sender.start();
+			} catch (IOException e) {
+				Log.warn("Closing follower %s: %s", socket
+						.getRemoteSocketAddress(), e);
+				closeQuietly(socket);
+			}
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+	}
+
+	/**
+	 * Connection of a single follower. Its thread sends the snapshot, the
+	 * modifications queued meanwhile and then the heartbeats; further
+	 * modifications are sent by the change feed thread of the follower.
+	 */
+	private class Follower implements Runnable, ChangeFeedListener {
+
+		private final Socket socket;
+		private final DataOutputStream out;
+		/*
+		 * modifications received before the snapshot and the changes queued
+		 * meanwhile were sent, guarded by itself; once streaming they are sent
+		 * as they come
+		 */
+		private final List<ChangeEvent> queued = new ArrayList<ChangeEvent>();
+		private boolean streaming;
+		// modifications made up to the snapshot version are not sent
+		private volatile long snapshotVersion;
+		private volatile boolean closed;
+
+		private Follower(Socket socket) throws IOException {
+			this.socket = socket;
+			this.out = new DataOutputStream(new BufferedOutputStream(socket
+					.getOutputStream()));
+		}
+
+		@Override
+		public void run() {
+			try {
+				// subscribed first, so that no modification after the
+				// snapshot is missed
+				data.subscribe(this);
+				sendSnapshot();
+				sendQueued();
+				while (!closed) {
+					Thread.sleep(Protocol.REPLICATION_HEARTBEAT_MILLIS);
+					synchronized (out) {
+						out.writeByte(Protocol.REPLICATION_HEARTBEAT);
+						out.flush();
+					}
+				}
+			} catch (IOException e) {
+				if (!closed) {
+					Log.warn("Closing follower %s: %s", this, e);
+				}
+			} catch (InterruptedException e) {
+				// closing
+			} finally {
+				close();
+			}
+		}
+
+		private void sendSnapshot() throws IOException {
+			List<Contractor> rows = new ArrayList<Contractor>();
+			Snapshot snapshot = data.openSnapshot();
+			try {
+				// null criteria match every record
+				for (long recNo : data.findByCriteria(new Contractor()
+						.toArray(), snapshot)) {
+					try {
+						VersionedRecord record = data.readVersionedRecord(
+								recNo, snapshot);
+						rows.add(new Contractor(record.getData(), recNo,
+								record.getVersion()));
+					} catch (RecordNotFoundException e) {
+						// deleted meanwhile, not in the snapshot
+					}
+				}
+				snapshotVersion = snapshot.getVersion();
+			} finally {
+				snapshot.release();
+			}
+			synchronized (out) {
+				WireFormat.writeVarLong(out, snapshotVersion);
+				Codec.writeContractors(out, rows);
+				out.flush();
+			}
+			Log.info("Sent %s rows at version %s to follower %s", rows.size(),
+					snapshotVersion, this);
+		}
+
+		/**
+		 * Sends the modifications queued while the snapshot was being sent,
+		 * until none is left and the follower is streaming.
+		 */
+		private void sendQueued() throws IOException {
+			while (true) {
+				List<ChangeEvent> events;
+				synchronized (queued) {
+					if (queued.isEmpty()) {
+						streaming = true;
+						return;
+					}
+					events = new ArrayList<ChangeEvent>(queued);
+					queued.clear();
+				}
+				for (ChangeEvent event : events) {
+					send(event);
+				}
+			}
+		}
+
+		@Override
+		public void changed(ChangeEvent event) {
+			synchronized (queued) {
+				if (!streaming && queued.size() < MAX_QUEUED_CHANGES) {
+					queued.add(event);
+					return;
+				}
+				if (!streaming) {
+					queued.clear();
+					Log.warn("Closing follower %s: too many modifications "
+							+ "during the snapshot", this);
+					close();
+					return;
+				}
+			}
+			try {
+				send(event);
+			} catch (IOException e) {
+				Log.warn("Closing follower %s: %s", this, e);
+				close();
+			}
+		}
+
+		private void send(ChangeEvent event) throws IOException {
+			if (closed || event.getSequence() <= snapshotVersion) {
+				return;
+			}
+			synchronized (out) {
+				out.writeByte(Protocol.REPLICATED_CHANGE);
+				WireFormat.writeVarLong(out, event.getSequence());
+				WireFormat.writeSignedVarLong(out, event.getRecNo());
+				out.writeBoolean(event.getAfter() != null);
+				if (event.getAfter() != null) {
+					Codec.writeContractor(out, new Contractor(event.getAfter(),
+							event.getRecNo(), event.getRecordVersion()));
+				}
+				out.flush();
+			}
+		}
+
+		@Override
+		public void overrun() {
+			Log.warn("Closing follower %s: too far behind", this);
+			close();
+		}
+
+		private void close() {
+			closed = true;
+			followers.remove(this);
+			data.unsubscribe(this);
+			closeQuietly(socket);
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(socket.getRemoteSocketAddress());
+		}
+	}
+}
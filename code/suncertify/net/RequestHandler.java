@@ -0,0 +1,265 @@
+package suncertify.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+import suncertify.api.ChangeListener;
+import suncertify.api.DBConnection;
+import suncertify.common.FrameInputStream;
+import suncertify.common.WireFormat;
+
+/**
+ * Decodes requests of the binary protocol, runs them on a database
+ * connection and encodes the responses, see {@link Protocol}.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class RequestHandler {
+
+	private final DBConnection connection;
+
+	/**
+	 * Creates a handler running requests on the given connection.
+	 * 
+	 * @param connection
+	 *            database connection to run the requests on.
+	 */
+	RequestHandler(DBConnection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Runs a request. Failures of the operation are sent back to the client
+	 * in the response.
+	 * 
+	 * @param request
+	 *            body of the request frame.
+	 * @param subscriber
+	 *            listener sending the change notifications to the client
+	 *            which sent the request.
+	 * @return the whole response frame, including the length.
+	 * @throws IOException
+	 *             if the request is malformed, so that it cannot be even
+	 *             answered.
+	 */
+	byte[] handle(byte[] request, ChangeListener subscriber)
+			throws IOException {
+		DataInputStream in = new FrameInputStream(request);
+		long id = WireFormat.readVarLong(in);
+		int operation = in.readUnsignedByte();
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		Exception failure = null;
+		try {
+			execute(operation, in, new DataOutputStream(result), subscriber);
+		} catch (StreamCorruptedException e) {
+			throw e;
+		} catch (Exception e) {
+			failure = e;
+		}
+		return response(id, result, failure);
+	}
+
+	/**
+	 * Encodes the failure of a request which was not run, e.g. because the
+	 * server failed or is busy.
+	 * 
+	 * @param request
+	 *            body of the request frame.
+	 * @param failure
+	 *            exception to send back to the client.
+	 * @return the whole response frame, including the length; or null if the
+	 *         request is malformed, so that it cannot be even answered.
+	 */
+	static byte[] failure(byte[] request, Exception failure) {
+		long id;
+		try {
+			id = WireFormat.readVarLong(new FrameInputStream(request));
+		} catch (IOException e) {
+			return null;
+		}
+		return response(id, null, failure);
+	}
+
+	/**
+	 * Tells whether a request modifies the database, so that it is run ahead
+	 * of the reads.
+	 * 
+	 * @param request
+	 *            body of the request frame.
+	 * @return true if the request modifies the database; false if it only
+	 *         reads it, or is malformed and fails anyway.
+	 */
+	static boolean isWrite(byte[] request) {
+		int operation;
+		try {
+			DataInputStream in = new FrameInputStream(request);
+			WireFormat.readVarLong(in);
+			operation = in.readUnsignedByte();
+		} catch (IOException e) {
+			return false;
+		}
+		switch (operation) {
+		case Protocol.CREATE:
+		case Protocol.UPDATE:
+		case Protocol.UPDATE_VERSIONED:
+		case Protocol.UPDATE_BATCH:
+		case Protocol.BOOK:
+		case Protocol.DELETE:
+		case Protocol.DELETE_BATCH:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Stops sending the change notifications to a client, when its
+	 * connection is closed.
+	 * 
+	 * @param subscriber
+	 *            listener sending the change notifications to the client.
+	 */
+	void unsubscribe(ChangeListener subscriber) {
+		try {
+			connection.removeChangeListener(subscriber);
+		} catch (IOException e) {
+			// the listener is dropped when it fails anyway
+		}
+	}
+
+	/**
+	 * Encodes a notification of changed records.
+	 * 
+	 * @param recNos
+	 *            numbers of the changed records, or null if any record may
+	 *            have changed.
+	 * @return the whole notification frame, including the length.
+	 */
+	static byte[] notification(long[] recNos) {
+		ByteArrayOutputStream notification = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(notification);
+		try {
+			// length is filled in below
+			out.writeInt(0);
+			WireFormat.writeVarLong(out, Protocol.NOTIFICATION_ID);
+			out.writeByte(Protocol.OK);
+			out.writeBoolean(recNos != null);
+			if (recNos != null) {
+				Codec.writeLongs(out, recNos);
+			}
+		} catch (IOException e) {
+			// writing to memory does not fail
+			throw new IllegalStateException(e);
+		}
+		return toFrame(notification);
+	}
+
+	/**
+	 * Encodes a response frame carrying either the result or the failure of
+	 * a request.
+	 */
+	private static byte[] response(long id, ByteArrayOutputStream result,
+			Exception failure) {
+		ByteArrayOutputStream response = new ByteArrayOutputStream(
+				result == null ? 64 : result.size() + 16);
+		DataOutputStream out = new DataOutputStream(response);
+		try {
+			// length is filled in below
+			out.writeInt(0);
+			WireFormat.writeVarLong(out, id);
+			if (failure == null) {
+				out.writeByte(Protocol.OK);
+				result.writeTo(out);
+			} else {
+				out.writeByte(Protocol.FAILED);
+				Codec.writeFailure(out, failure);
+			}
+		} catch (IOException e) {
+			// writing to memory does not fail
+			throw new IllegalStateException(e);
+		}
+		return toFrame(response);
+	}
+
+	private static byte[] toFrame(ByteArrayOutputStream message) {
+		byte[] frame = message.toByteArray();
+		ByteBuffer.wrap(frame).putInt(0, frame.length - 4);
+		return frame;
+	}
+
+	private void execute(int operation, DataInput in, DataOutput out,
+			ChangeListener subscriber) throws Exception {
+		switch (operation) {
+		case Protocol.CREATE:
+			WireFormat.writeVarLong(out, connection.createRecord(Codec
+					.readContractor(in)));
+			break;
+		case Protocol.READ:
+			Codec.writeContractor(out, connection.readRecord(WireFormat
+					.readVarLong(in)));
+			break;
+		case Protocol.READ_BATCH:
+			Codec.writeBatchResult(out, connection.readRecords(Codec
+					.readLongs(in)));
+			break;
+		case Protocol.UPDATE:
+			connection.updateRecord(WireFormat.readVarLong(in), Codec
+					.readContractor(in));
+			break;
+		case Protocol.UPDATE_VERSIONED:
+			WireFormat.writeVarLong(out, connection.updateRecord(WireFormat
+					.readVarLong(in), Codec.readContractor(in), WireFormat
+					.readVarLong(in)));
+			break;
+		case Protocol.UPDATE_BATCH:
+			Codec.writeBatchResult(out, connection.updateRecords(Codec
+					.readContractorMap(in)));
+			break;
+		case Protocol.BOOK:
+			Codec.writeContractor(out, connection.bookRecord(WireFormat
+					.readVarLong(in), WireFormat.readString(in)));
+			break;
+		case Protocol.DELETE:
+			connection.deleteRecord(WireFormat.readVarLong(in));
+			break;
+		case Protocol.DELETE_BATCH:
+			Codec.writeBatchResult(out, connection.deleteRecords(Codec
+					.readLongs(in)));
+			break;
+		case Protocol.FIND:
+			Codec.writeContractors(out, connection.findByCriteria(Codec
+					.readContractor(in), in.readBoolean(), Codec.readField(in),
+					in.readBoolean(), (int) WireFormat.readVarLong(in)));
+			break;
+		case Protocol.COUNT_AVAILABLE:
+			Codec.writeCounts(out, connection.countAvailable(Codec
+					.readField(in)));
+			break;
+		case Protocol.FIND_BY_NAME:
+			Codec.writeContractors(out, connection.findByName(WireFormat
+					.readString(in), (int) WireFormat.readVarLong(in)));
+			break;
+		case Protocol.CHANGES_SINCE:
+			Codec.writeChangeSet(out, connection.changesSince(WireFormat
+					.readSignedVarLong(in), Codec.readContractor(in), in
+					.readBoolean()));
+			break;
+		case Protocol.SUBSCRIBE:
+			connection.addChangeListener(subscriber);
+			break;
+		case Protocol.UNSUBSCRIBE:
+			connection.removeChangeListener(subscriber);
+			break;
+		default:
+			throw new StreamCorruptedException("Unknown operation "
+					+ operation);
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package suncertify.net;
+
+import java.io.IOException;
+
+/**
+ * Failure of an operation on the database server with a checked exception
+ * which is not an {@link IOException}. The client rethrows the original
+ * exception if the operation declares it.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+class ServerException extends IOException {
+
+	/**
+	 * Generated version of the class.
+	 */
+	private static final long serialVersionUID = -4203367735108853907L;
+
+	/**
+	 * Creates an exception wrapping the failure of an operation.
+	 * 
+	 * @param cause
+	 *            exception the operation failed with.
+	 */
+	ServerException(Exception cause) {
+		super(cause.getMessage(), cause);
+	}
+
+	/**
+	 * Throws the original exception if it is of the given type.
+	 * 
+	 * @param type
+	 *            type of exception the operation declares.
+	 * @throws E
+	 *             the original exception, if it is of the given type.
+	 */
+	<E extends Exception> void rethrowIf(Class<E> type) throws E {
+		if (type.isInstance(getCause())) {
+			throw type.cast(getCause());
+		}
+	}
+
+	/**
+	 * Throws the original exception if it is of the given type, otherwise
+	 * returns this exception to be thrown.
+	 * 
+	 * @param type
+	 *            type of exception the operation declares.
+	 * @return this exception, if the original one is of a different type.
+	 * @throws E
+	 *             the original exception, if it is of the given type.
+	 */
+	<E extends Exception> ServerException rethrow(Class<E> type) throws E {
+		rethrowIf(type);
+		return this;
+	}
+}
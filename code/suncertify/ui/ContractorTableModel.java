@@ -1,7 +1,12 @@
 package suncertify.ui;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.swing.table.AbstractTableModel;
 
@@ -164,4 +169,46 @@ public class ContractorTableModel extends AbstractTableModel {
 		data.addAll(newData);
 		fireTableDataChanged();
 	}
+
+	/**
+	 * Applies changes of the displayed rows: replaces the rows with the same
+	 * IDs as the changed ones, adds the other changed rows at the end and
+	 * removes the rows with the removed IDs.
+	 * 
+	 * @param changed
+	 *            rows to be replaced or added.
+	 * @param removed
+	 *            IDs of the rows to be removed, if displayed.
+	 */
+	public void applyChanges(List<Contractor> changed, long[] removed) {
+		if (changed.isEmpty() && removed.length == 0) {
+			return;
+		}
+		Map<Long, Integer> indexes = new HashMap<Long, Integer>();
+		for (int i = 0; i < data.size(); i++) {
+			indexes.put(data.get(i).getId(), i);
+		}
+		for (Contractor row : changed) {
+			Integer index = indexes.get(row.getId());
+			if (index != null) {
+				data.set(index, row);
+			} else {
+				indexes.put(row.getId(), data.size());
+				data.add(row);
+			}
+		}
+		if (removed.length > 0) {
+			Set<Long> removedIds = new HashSet<Long>();
+			for (long id : removed) {
+				removedIds.add(id);
+			}
+			Iterator<Contractor> i = data.iterator();
+			while (i.hasNext()) {
+				if (removedIds.contains(i.next().getId())) {
+					i.remove();
+				}
+			}
+		}
+		fireTableDataChanged();
+	}
 }
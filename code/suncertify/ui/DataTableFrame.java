@@ -196,7 +196,9 @@ public class DataTableFrame extends JFrame {
 				JTextField textField = new JTextField(currentValue);
 				textField.selectAll();
 				Object[] options = { "Book", "Cancel" };
-				Object[] message = { "Enter owner ID", textField };
+				Object[] message = {
+						"Enter owner ID, or clear it to cancel the booking",
+						textField };
 				int option = JOptionPane
 						.showOptionDialog(table, message, "Book contractor",
 								JOptionPane.OK_CANCEL_OPTION,
@@ -205,7 +207,17 @@ public class DataTableFrame extends JFrame {
 				if (option == JOptionPane.OK_OPTION) {
 					String ownerId = textField.getText();
 					try {
-						controller.bookRow(rowIndex, ownerId);
+						if (!controller.bookRow(rowIndex, ownerId)) {
+							String owner = model.getRow(rowIndex).getOwner();
+							String text = "Contractor was modified by another agent";
+							if (owner.trim().length() > 0) {
+								text = "Contractor is already booked by "
+										+ owner;
+							}
+							JOptionPane.showMessageDialog(table, text,
+									"Book contractor",
+									JOptionPane.WARNING_MESSAGE);
+						}
 					} catch (Exception e1) {
 						e1.printStackTrace();
 						ErrorHandler.handleException(e1,
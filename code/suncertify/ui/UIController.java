@@ -1,14 +1,17 @@
 package suncertify.ui;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
+import suncertify.api.AlreadyBookedException;
+import suncertify.api.ChangeSet;
 import suncertify.api.Contractor;
+import suncertify.api.ContractorField;
 import suncertify.api.DBConnection;
 import suncertify.db.DuplicateKeyException;
 import suncertify.db.RecordNotFoundException;
 import suncertify.db.SecurityException;
+import suncertify.db.VersionConflictException;
 
 /**
  * Class centralizing the logic of the database calls using a database connector
@@ -21,6 +24,8 @@ import suncertify.db.SecurityException;
 public class UIController {
 	private ContractorTableModel model;
 	private DBConnection dbConn;
+	private String[] lastCriteria;
+	private long lastVersion = -1;
 
 	/**
 	 * Creates a controller with a database connector for database calls and
@@ -37,13 +42,19 @@ public class UIController {
 	}
 
 	/**
-	 * Updates the database row with the ID of the customer who is booking the
-	 * row.
+	 * Books the database row for the customer with the given ID, or changes
+	 * or cancels the booking of a row which is booked already. A free row is
+	 * booked only if it is still free; the booking of a booked row is changed
+	 * only if nobody modified the row since it was displayed. The table row is
+	 * updated with the current state of the database row either way.
 	 * 
 	 * @param rowIndex
 	 *            index of the row being booked.
 	 * @param ownerId
-	 *            ID of the customer booking the row.
+	 *            ID of the customer booking the row, blank to cancel the
+	 *            booking.
+	 * @return true if the booking was made, changed or cancelled as asked,
+	 *         false if another client had booked or modified the row first.
 	 * @throws RecordNotFoundException
 	 *             if the row being booked cannot be found in the database.
 	 * @throws SecurityException
@@ -51,11 +62,31 @@ public class UIController {
 	 * @throws IOException
 	 *             if there is an error connecting to the database.
 	 */
-	public void bookRow(int rowIndex, String ownerId)
+	public boolean bookRow(int rowIndex, String ownerId)
 			throws RecordNotFoundException, SecurityException, IOException {
 		Contractor row = model.getRow(rowIndex);
-		row.setOwner(ownerId);
-		updateRow(rowIndex, row);
+		boolean free = row.getOwner() == null
+				|| row.getOwner().trim().length() == 0;
+		try {
+			if (free && ownerId.trim().length() > 0) {
+				model.updateRow(rowIndex, dbConn.bookRecord(row.getId(),
+						ownerId));
+				return true;
+			}
+			String[] update = new String[row.toArray().length];
+			update[ContractorField.OWNER.getIndex()] = ownerId.trim();
+			dbConn.updateRecord(row.getId(), new Contractor(update, row
+					.getId()), row.getVersion());
+		} catch (AlreadyBookedException e) {
+			model.updateRow(rowIndex, dbConn.readRecord(row.getId()));
+			return false;
+		} catch (VersionConflictException e) {
+			model.updateRow(rowIndex, dbConn.readRecord(row.getId()));
+			return false;
+		}
+		// updating the row may truncate the value
+		model.updateRow(rowIndex, dbConn.readRecord(row.getId()));
+		return true;
 	}
 
 	/**
@@ -123,7 +154,8 @@ public class UIController {
 
 	/**
 	 * Gets data from the database filtered with the criteria given, and updates
-	 * the UI table with the returned list.
+	 * the UI table with the returned list. Repeating the previous search only
+	 * fetches the rows changed since, and applies them to the table.
 	 * 
 	 * @param criteria
 	 *            criteria applied to database call.
@@ -131,8 +163,16 @@ public class UIController {
 	 *             if there is an error connecting to the database.
 	 */
 	public void filter(Contractor criteria) throws IOException {
-		List<Contractor> newData = new ArrayList<Contractor>();
-		newData = dbConn.findByCriteria(criteria, true);
-		model.updateRows(newData);
+		String[] criteriaArray = criteria.toArray();
+		long version = Arrays.equals(criteriaArray, lastCriteria) ? lastVersion
+				: -1;
+		ChangeSet changes = dbConn.changesSince(version, criteria, true);
+		if (changes.isComplete()) {
+			model.updateRows(changes.getChanged());
+		} else {
+			model.applyChanges(changes.getChanged(), changes.getRemoved());
+		}
+		lastCriteria = criteriaArray;
+		lastVersion = changes.getVersion();
 	}
 }
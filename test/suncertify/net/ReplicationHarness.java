@@ -0,0 +1,346 @@
+package suncertify.net;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import suncertify.api.Contractor;
+import suncertify.api.DBConnection;
+import suncertify.api.DBConnectionFactory;
+import suncertify.common.AppProperties;
+import suncertify.db.Data;
+import suncertify.db.RecordNotFoundException;
+
+/**
+ * Checks the replication end to end on localhost: starts a leader server and
+ * a follower server, each in a JVM of its own, and checks that the rows
+ * written on the leader become visible on the follower. The leader works on
+ * a temporary copy of the given database file, which is left untouched.
+ * Both servers run in an empty temporary directory, so that the follower
+ * cannot open a database file of its own and fails if it tries to.
+ * <p/>
+ * Run it with the compiled application on the class path, from the directory
+ * of the database file:
+ * 
+ * <pre>
+ * java -cp &lt;classes&gt; suncertify.net.ReplicationHarness [&lt;db file&gt;]
+ * </pre>
+ * 
+ * It prints the checks as they pass and exits with status 0 if all of them
+ * passed, or 1 at the first one which failed. The servers are stopped either
+ * way.
+ * 
+ * @author Szymon Bochniak (bochniak.szymon@gmail.com)
+ * 
+ */
+public class ReplicationHarness {
+
+	private static final String ROLE_LEADER = "leader";
+	private static final String ROLE_FOLLOWER = "follower";
+	private static final String READY = "ready";
+
+	/**
+	 * Maximum time in milliseconds a server takes to start, or a write takes
+	 * to reach the follower.
+	 */
+	private static final long TIMEOUT_MILLIS = 10000;
+	private static final long POLL_MILLIS = 50;
+
+	private final List<Process> servers = new ArrayList<Process>();
+	private File workDirectory;
+
+	/**
+	 * Runs the check, or one of the servers when started by the check.
+	 * 
+	 * @param args
+	 *            path of the database file to copy, "db-2x2.db" by default;
+	 *            or the role and the ports of a server.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals(ROLE_LEADER)) {
+			runLeader(Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+					args[3]);
+		} else if (args.length > 0 && args[0].equals(ROLE_FOLLOWER)) {
+			runFollower(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+		} else {
+			ReplicationHarness harness = new ReplicationHarness();
+			boolean passed;
+			try {
+				passed = harness.check(args.length > 0 ? args[0]
+						: "db-2x2.db");
+			} finally {
+				harness.stopServers();
+			}
+			System.out.println(passed ? "PASSED" : "FAILED");
+			System.exit(passed ? 0 : 1);
+		}
+	}
+
+	private static void runLeader(int port, int replicationPort, String file)
+			throws IOException {
+		AppProperties.put(AppProperties.DB_FILENAME, file);
+		new NetServer(DBConnectionFactory.getInstance().getLocal(), port)
+				.start();
+		new ReplicationServer(Data.getInstance(), replicationPort).start();
+		awaitParent();
+	}
+
+	private static void runFollower(int port, int leaderReplicationPort)
+			throws IOException {
+		new NetServer(DBConnectionFactory.getInstance().getFollower(
+				"localhost", leaderReplicationPort), port).start();
+		awaitParent();
+	}
+
+	/**
+	 * Tells the check that the server is ready, and exits once the check
+	 * closes the input of the server, or ends itself.
+	 */
+	private static void awaitParent() throws IOException {
+		System.out.println(READY);
+		System.out.flush();
+		while (System.in.read() >= 0) {
+			// nothing is sent but the end of the input
+		}
+		System.exit(0);
+	}
+
+	private boolean check(String dbFile) throws Exception {
+		File copy = File.createTempFile("replication", ".db");
+		copy.deleteOnExit();
+		copyFile(new File(dbFile), copy);
+		workDirectory = File.createTempFile("replication", "");
+		if (!workDirectory.delete() || !workDirectory.mkdir()) {
+			throw new IOException("Cannot create directory " + workDirectory);
+		}
+		int leaderPort = freePort();
+		int replicationPort = freePort();
+		int followerPort = freePort();
+		startServer(ROLE_LEADER, String.valueOf(leaderPort), String
+				.valueOf(replicationPort), copy.getAbsolutePath());
+		startServer(ROLE_FOLLOWER, String.valueOf(followerPort), String
+				.valueOf(replicationPort));
+		DBConnection leader = DBConnectionFactory.getInstance().getNet(
+				"localhost", leaderPort);
+		DBConnection follower = DBConnectionFactory.getInstance().getNet(
+				"localhost", followerPort);
+
+		int rows = leader.findByCriteria(new Contractor(), false).size();
+		if (!awaitRows(follower, rows)) {
+			return fail("follower did not load the " + rows + " rows");
+		}
+		pass("follower loaded the " + rows + " rows of the leader");
+
+		Contractor first = leader.findByCriteria(new Contractor(), false)
+				.get(0);
+		String size = String.valueOf(Integer.parseInt(first.getSize()) + 1);
+		long version = leader.updateRecord(first.getId(), new Contractor(
+				new String[] { null, null, null, size, null, null }, first
+						.getId()), first.getVersion());
+		if (!awaitSize(follower, first.getId(), size, version)) {
+			return fail("update of row " + first.getId()
+					+ " did not reach the follower");
+		}
+		pass("update of row " + first.getId() + " reached the follower");
+
+		long created = leader.createRecord(new Contractor(new String[] {
+				"Replication Harness", "Localhost", "Testing", "1", "$1.00",
+				"" }, -1));
+		if (!awaitSize(follower, created, "1", 0)) {
+			return fail("new row " + created + " did not reach the follower");
+		}
+		pass("new row " + created + " reached the follower");
+
+		leader.deleteRecord(created);
+		if (!awaitDeleted(follower, created)) {
+			return fail("deletion of row " + created
+					+ " did not reach the follower");
+		}
+		pass("deletion of row " + created + " reached the follower");
+		return true;
+	}
+
+	private boolean awaitRows(DBConnection follower, int rows)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				List<Contractor> found = follower.findByCriteria(
+						new Contractor(), false);
+				if (found.size() == rows) {
+					return true;
+				}
+			} catch (IOException e) {
+				// the snapshot is not loaded yet
+			}
+			Thread.sleep(POLL_MILLIS);
+		}
+		return false;
+	}
+
+	/**
+	 * Waits until the follower reads the given size, and a version not older
+	 * than the given one, from a row.
+	 */
+	private boolean awaitSize(DBConnection follower, long recNo, String size,
+			long version) throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				Contractor row = follower.readRecord(recNo);
+				if (size.equals(row.getSize()) && row.getVersion() >= version) {
+					return true;
+				}
+			} catch (RecordNotFoundException e) {
+				// not replicated yet
+			}
+			Thread.sleep(POLL_MILLIS);
+		}
+		return false;
+	}
+
+	private boolean awaitDeleted(DBConnection follower, long recNo)
+			throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			try {
+				follower.readRecord(recNo);
+			} catch (RecordNotFoundException e) {
+				return true;
+			}
+			Thread.sleep(POLL_MILLIS);
+		}
+		return false;
+	}
+
+	/**
+	 * Starts a server in a new JVM with the class path of this one, and waits
+	 * until it is ready. The output of the server is passed on to the output
+	 * of the check.
+	 */
+	private void startServer(String... args) throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(System.getProperty("java.home"), "bin/java")
+				.getPath());
+		command.add("-cp");
+		command.add(absoluteClassPath());
+		command.add(ReplicationHarness.class.getName());
+		for (String arg : args) {
+			command.add(arg);
+		}
+		Process server = new ProcessBuilder(command).directory(workDirectory)
+				.redirectErrorStream(true).start();
+		servers.add(server);
+		final BufferedReader output = new BufferedReader(
+				new InputStreamReader(server.getInputStream()));
+		final String name = args[0];
+		String line;
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!READY.equals(line = output.readLine())) {
+			if (line == null || System.currentTimeMillis() > deadline) {
+				throw new IOException("The " + name + " did not start");
+			}
+			System.out.println(name + ": " + line);
+		}
+		Thread printer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					String line;
+					while ((line = output.readLine()) != null) {
+						System.out.println(name + ": " + line);
+					}
+				} catch (IOException e) {
+					// the server has stopped
+				}
+			}
+		}, "harness-" + name + "-output");
+		printer.setDaemon(true);
+		printer.start();
+	}
+
+	private void stopServers() {
+		for (Process server : servers) {
+			try {
+				server.getOutputStream().close();
+			} catch (IOException e) {
+				// stopping anyway
+			}
+			server.destroy();
+			try {
+				server.waitFor();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (workDirectory != null) {
+			File[] files = workDirectory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			workDirectory.delete();
+		}
+	}
+
+	/**
+	 * Returns the class path of this JVM with the relative entries resolved,
+	 * so that it stays valid for the servers running in another directory.
+	 */
+	private static String absoluteClassPath() {
+		StringBuilder classPath = new StringBuilder();
+		for (String entry : System.getProperty("java.class.path").split(
+				File.pathSeparator)) {
+			if (classPath.length() > 0) {
+				classPath.append(File.pathSeparator);
+			}
+			classPath.append(new File(entry).getAbsolutePath());
+		}
+		return classPath.toString();
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void copyFile(File from, File to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		try {
+			OutputStream out = new FileOutputStream(to);
+			try {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					out.write(buffer, 0, n);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void pass(String check) {
+		System.out.println("ok: " + check);
+	}
+
+	private static boolean fail(String check) {
+		System.out.println("failed: " + check);
+		return false;
+	}
+}